@@ -0,0 +1,148 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 缓存相关配置（application.yaml中 hmdp.cache 前缀）
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache")
+public class CacheProperties {
+
+    /**
+     * 是否开启本地缓存（L1）：CacheClient查询时先查进程内缓存，命中时不访问redis、不解析json
+     */
+    private boolean localEnabled = false;
+
+    /**
+     * 本地缓存最多保存的key数，超过后淘汰访问少的key
+     */
+    private long localMaxSize = 10000;
+
+    /**
+     * 本地缓存写入后多久过期（秒）
+     * 数据更新时会通过redis pub/sub通知所有节点删除本地缓存，过期时间只是兜底通知丢失的情况，决定了最长的不一致时间
+     */
+    private long localTtlSeconds = 30;
+
+    /**
+     * 本地缓存是否只保存热点key（HotKeyDetector识别出来的），false表示所有key都放本地缓存
+     */
+    private boolean localHotOnly = false;
+
+    /**
+     * 缓存值的写入格式：json-原来的hutool json字符串；binary-紧凑的二进制格式（BinaryCacheCodec）
+     * 读取时自动识别两种格式，滚动升级时先用json，所有节点都升级后再改成binary
+     */
+    private String codec = "json";
+
+    /**
+     * 二进制格式下，数据超过多少字节时压缩（比如blog的正文），0表示不压缩
+     */
+    private int compressThreshold = 1024;
+
+    /**
+     * 逻辑过期提前重建（XFetch）的系数beta：剩余时间 <= 上次重建耗时 * beta * -ln(随机数) 时提前重建
+     * 越大越早重建，0表示关闭（只在过期后重建）
+     */
+    private double earlyRefreshBeta = 1.0;
+
+    /**
+     * 过期时间的随机抖动比例：实际过期时间 = 过期时间 * (1 + [0, ttlJitterRatio) 的随机数)，0表示不抖动
+     * 同一批预热/写入的key不会在同一时刻过期
+     */
+    private double ttlJitterRatio = 0.1;
+
+    /**
+     * 是否开启热点key识别：访问频率超过阈值的key自动改用逻辑过期缓存，冷却后降级回TTL缓存
+     */
+    private boolean hotKeyEnabled = false;
+
+    /**
+     * 成为热点key的访问次数阈值（按衰减后的次数算，每个衰减周期减半），低于一半时降级
+     */
+    private int hotKeyThreshold = 100;
+
+    /**
+     * 每个节点最多同时有多少个热点key
+     */
+    private int hotKeyMaxSize = 1000;
+
+    /**
+     * 热点key的访问次数每隔多久衰减（减半）一次（毫秒，HotKeyDecayJob）
+     */
+    private long hotKeyDecayMillis = 10000;
+
+    /**
+     * 缓存删除任务（tb_cache_outbox）每批处理多少条
+     */
+    private int outboxBatchSize = 500;
+
+    /**
+     * 提交后第一次删除缓存成功后，隔多久再删一次（延迟双删），0表示不双删
+     */
+    private long outboxDoubleDeleteDelayMillis = 1000;
+
+    /**
+     * 多久处理一次到期的延迟双删、失败重试的缓存删除任务（毫秒，CacheOutboxRelayJob）
+     */
+    private long outboxRelayIntervalMillis = 1000;
+
+    /**
+     * 启动时是否预热缓存（销量最高的店铺、店铺类型、进行中的秒杀券），预热完或者超过时间预算后才就绪
+     */
+    private boolean warmUpEnabled = false;
+
+    /**
+     * 预热销量最高的多少个店铺
+     */
+    private int warmUpShopTopN = 1000;
+
+    /**
+     * 预热时每页从数据库读多少行（一页用一个pipeline写入redis）
+     */
+    private int warmUpPageSize = 200;
+
+    /**
+     * 预热写redis的线程数（至少2个）
+     */
+    private int warmUpThreads = 4;
+
+    /**
+     * 预热的时间预算（毫秒），超过后不再等待，先就绪，没完成的继续在后台预热
+     */
+    private long warmUpTimeoutMillis = 30000;
+
+    /**
+     * 是否开启店铺、blog、用户id的本地布隆过滤器，拦截不存在的id（不查redis、不查数据库、也不缓存空值）
+     */
+    private boolean bloomEnabled = false;
+
+    /**
+     * 布隆过滤器的误判率（不存在的id被放过去的概率）
+     */
+    private double bloomFpp = 0.01;
+
+    /**
+     * 布隆过滤器的最小容量，实际容量取 max(该值, 数据库行数*2)
+     */
+    private long bloomExpectedInsertions = 1000000;
+
+    /**
+     * 从数据库加载id时每批查多少行
+     */
+    private int bloomLoadBatchSize = 5000;
+
+    /**
+     * 布隆过滤器全量重建的间隔（毫秒）；最近新增的id在redis里保留两个间隔，各节点定时同步，兜底丢失的新增通知
+     */
+    private long bloomRebuildIntervalMillis = 3600000;
+
+    /**
+     * 多久从redis同步一次最近新增的id到本地过滤器（毫秒，IdBloomFilterSyncJob），新增通知丢失时新id最多被误拦这么久
+     */
+    private long bloomRecentSyncMillis = 5000;
+}
@@ -28,8 +28,12 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/shop/**",
                         "/shop-type/**",
                         "/voucher/**",
-                        "/upload/**"
+                        "/upload/**",
+                        "/cache/ready"  // 就绪检查，负载均衡/k8s探针调用
                 ).order(1);
+        // 店铺的查询不需要登录，新增、修改（POST /shop、PUT /shop、PUT /shop/batch）需要登录
+        registry.addInterceptor(new LoginInterceptor("GET"))
+                .addPathPatterns("/shop", "/shop/**").order(1);
         // token刷新拦截器（先执行）
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate))
                 .addPathPatterns("/**").order(0);
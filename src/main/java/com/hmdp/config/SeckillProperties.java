@@ -0,0 +1,228 @@
+package com.hmdp.config;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+
+/**
+ * 秒杀相关配置（application.yaml中 hmdp.seckill 前缀）
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill")
+public class SeckillProperties {
+
+    /**
+     * 每次从stream.orders读取的订单条数
+     * 1：逐条处理（一条消息一个事务、一把锁、一次ACK）；大于1：批量下单（多行insert + 按券分组扣库存 + 一次ACK）
+     */
+    private int orderBatchSize = 1;
+
+    /**
+     * 每个节点的订单消费线程数，每个线程是消费者组里一个独立的消费者
+     */
+    private int consumerThreads = 1;
+
+    /**
+     * 节点名，为空时取 主机名-进程号；订单消费者名为 节点名-线程序号，库存租约也按节点名记账
+     */
+    private String consumerName;
+
+    /**
+     * 订单stream的key（分区时是前缀），测试时改成单独的stream，不会把订单投递到正式的stream.orders
+     */
+    private String orderStream = SECKILL_ORDER_STREAM;
+
+    /**
+     * stream.orders分区数，大于1时按 voucherId % N 投递到 stream.orders:{i}
+     */
+    private int streamPartitions = 1;
+
+    /**
+     * pending消息空闲超过该时长（秒），认为原消费者已宕机，由其他消费者XCLAIM接管
+     */
+    private long claimMinIdleSeconds = 60;
+
+    /**
+     * 扫描pending-list、接管空闲消息的间隔（秒）
+     */
+    private long claimIntervalSeconds = 30;
+
+    /**
+     * 订单stream最大长度，XADD时近似裁剪（MAXLEN ~），0表示不限制
+     * 只是兜底内存的上限，要远大于消费者停机期间可能积压的订单数；正常情况下消费者会定时裁剪已经确认的消息
+     */
+    private long streamMaxLen = 1000000;
+
+    /**
+     * 一条订单消息最多投递几次，超过后移入死信stream stream.orders.dlq
+     */
+    private int orderMaxDeliveries = 5;
+
+    /**
+     * 订单处理失败后第一次重试的间隔（毫秒），之后每次翻倍
+     */
+    private long orderRetryBaseMillis = 1000;
+
+    /**
+     * 订单重试的最大间隔（毫秒）
+     */
+    private long orderRetryMaxMillis = 60000;
+
+    /**
+     * 新建秒杀券时库存拆成的分片数，1表示不分片（单个 seckill:stock:{voucherId}）
+     * 分片后用户按 userId % N 落到自己的分片，本分片卖完才去兄弟分片扣库存
+     */
+    private int stockShards = 1;
+
+    /**
+     * 一人一单bitmap存法的最大偏移量（userId，分片时是 userId/分片数），bitmap的大小是 最大偏移量/8 字节，默认1亿约12MB
+     * 偏移量超过它（或userId为负）的用户改存到同一张券的set里，防止一个很大的userId让redis分配几百MB的bitmap
+     */
+    private long bitmapMaxOffset = 100_000_000L;
+
+    /**
+     * 节点本地库存租约：每次从redis租多少个库存到本地内存里卖，0表示不开启（每次下单都扣redis库存）
+     */
+    private int stockLeaseSize = 0;
+
+    /**
+     * 租约心跳间隔（秒），节点心跳超过3个间隔没续上，其他节点会把它没卖完的库存收回redis
+     */
+    private long leaseHeartbeatSeconds = 10;
+
+    /**
+     * 本地售罄标记多久后放一次请求去redis重新确认（毫秒），兜底pub/sub消息丢失
+     */
+    private long soldOutRecheckMillis = 3000;
+
+    /**
+     * 秒杀开始前多久（秒）把券预热到redis（库存、分片数、一人一单存法、时间窗口）
+     */
+    private long prewarmAheadSeconds = 300;
+
+    /**
+     * 秒杀结束后多久（秒）清理券在redis里的key
+     */
+    private long teardownDelaySeconds = 600;
+
+    /**
+     * 是否开启秒杀排队入场：先 GET /voucher-order/ticket/{id} 领签名的入场券，下单时带上请求头 seckill-ticket
+     */
+    private boolean admissionEnabled = false;
+
+    /**
+     * 入场令牌桶每秒补充的令牌数（按订单处理能力设置）
+     */
+    private int admissionRate = 1000;
+
+    /**
+     * 入场令牌桶容量（允许的突发量）
+     */
+    private int admissionBurst = 2000;
+
+    /**
+     * 每张券最多发放的入场券 = 库存 * admissionOverbook（有人领了券不下单，留一点余量）
+     */
+    private double admissionOverbook = 1.5;
+
+    /**
+     * 节点每次从redis令牌桶取多少个令牌到本地发放
+     */
+    private int admissionBatchSize = 50;
+
+    /**
+     * 入场券有效期（秒）
+     */
+    private long admissionTicketSeconds = 30;
+
+    /**
+     * 入场券签名密钥，为空时所有节点共用redis里随机生成的密钥
+     */
+    private String admissionSecret;
+
+    /**
+     * 订单状态（排队中/已入库/失败）在redis里保留多久（秒）
+     */
+    private long orderStatusTtlSeconds = 600;
+
+    /**
+     * 长轮询查询订单状态时最多等待多久（毫秒）
+     */
+    private long orderStatusWaitMillis = 10000;
+
+    /**
+     * 秒杀订单多久不支付自动取消（秒），取消后库存还回redis和tb_seckill_voucher
+     */
+    private long orderPayTimeoutSeconds = 900;
+
+    /**
+     * 超时订单每批处理多少个
+     */
+    private int orderTimeoutBatchSize = 100;
+
+    /**
+     * 超时订单被一个节点领走后，多久没处理完（节点宕机）允许其他节点重新领取（秒）
+     */
+    private long orderTimeoutLeaseSeconds = 60;
+
+    /**
+     * 库存对账每批检查多少张券（一批一次pipeline、一次数据库查询）
+     */
+    private int reconcileBatchSize = 100;
+
+    /**
+     * 定时对账发现redis库存和数据库对不上时，是否自动修复redis库存（false只打日志）
+     */
+    private boolean reconcileRepair = false;
+
+    /**
+     * 对账时每个订单stream最多读多少条消息来统计在途订单，积压超过这个数不做修复
+     */
+    private long reconcileStreamScanLimit = 100000;
+
+    /**
+     * 当前节点名
+     */
+    public String nodeId() {
+        if (StrUtil.isNotBlank(consumerName)) {
+            return consumerName;
+        }
+        // 主机名-进程号，同一台机器上的多个进程也不会重名
+        String[] pidAtHost = ManagementFactory.getRuntimeMXBean().getName().split("@");
+        return pidAtHost.length == 2 ? pidAtHost[1] + "-" + pidAtHost[0] : pidAtHost[0];
+    }
+
+    /**
+     * 第partition个订单stream的key，不分区时就是 stream.orders
+     */
+    public String orderStreamKey(int partition) {
+        return streamPartitions <= 1 ? orderStream : orderStream + ":" + partition;
+    }
+
+    /**
+     * 秒杀券的订单投递到哪个stream：按 voucherId % 分区数 选择
+     */
+    public String orderStreamKey(Long voucherId) {
+        return orderStreamKey((int) Math.floorMod(voucherId, (long) Math.max(1, streamPartitions)));
+    }
+
+    /**
+     * 所有订单stream的key
+     */
+    public List<String> orderStreamKeys() {
+        int n = Math.max(1, streamPartitions);
+        List<String> keys = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            keys.add(orderStreamKey(i));
+        }
+        return keys;
+    }
+}
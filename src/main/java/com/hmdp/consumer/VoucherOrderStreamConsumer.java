@@ -0,0 +1,463 @@
+package com.hmdp.consumer;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.VoucherOrderDeadLetterQueue;
+import com.hmdp.utils.VoucherOrderDelayQueue;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettucePoolingClientConfiguration;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+
+/**
+ * 秒杀订单stream消费者池（替代原来VoucherOrderServiceImpl里的单线程VoucherOrderHandler）
+ * <p>
+ * 1.每个节点启动consumerThreads个消费线程，消费者名 = 节点名-线程序号，节点之间不会再共用c1互相抢pending消息；<br>
+ * 2.stream.orders可以按voucherId分成N个分区（seckill.lua负责选分区），每个线程一次XREADGROUP读所有分区；<br>
+ * 3.定时扫描pending-list，把空闲超时的消息（消费者宕机）XCLAIM给本节点的消费者重新处理；<br>
+ * 4.XREADGROUP BLOCK 走独立的连接池（连接配置和自动配置的一样，只有连接池不同），不占用业务共享的lettuce连接池；<br>
+ * 5.处理完的订单把结果（已入库/失败）写到 seckill:order:status:{orderId}，供客户端查询；入库的订单在ACK之前加入超时取消的延时队列；<br>
+ * 6.处理失败的消息留在pending-list里，按投递次数指数退避后重试，投递超过 orderMaxDeliveries 次移入死信stream，不会卡住后面的消息；<br>
+ * 7.定时裁剪已经确认的消息（XTRIM MINID），stream只保留在途的订单。
+ * </p>
+ */
+@Slf4j
+@Component
+public class VoucherOrderStreamConsumer {
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private LettuceConnectionFactory redisConnectionFactory;       // spring boot自动配置的连接工厂（单机/哨兵/集群、ssl、超时等都在里面）
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private VoucherOrderDelayQueue voucherOrderDelayQueue;
+    @Resource
+    private VoucherOrderDeadLetterQueue voucherOrderDeadLetterQueue;
+
+    // 创建消费者组的lua脚本（stream不存在时一起创建）
+    private static final DefaultRedisScript<Long> CREATE_GROUP_SCRIPT;
+    // 裁剪已确认消息的lua脚本
+    private static final DefaultRedisScript<Long> TRIM_SCRIPT;
+
+    static {
+        CREATE_GROUP_SCRIPT = new DefaultRedisScript<>();
+        CREATE_GROUP_SCRIPT.setLocation(new ClassPathResource("stream_group.lua"));
+        CREATE_GROUP_SCRIPT.setResultType(Long.class);
+        TRIM_SCRIPT = new DefaultRedisScript<>();
+        TRIM_SCRIPT.setLocation(new ClassPathResource("stream_trim.lua"));
+        TRIM_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final int PENDING_SCAN_COUNT = 100;          // 每次检查自己pending-list里的多少条消息
+    private static final long READ_BLOCK_MILLIS = 2000;
+
+    private LettuceConnectionFactory streamConnectionFactory;   // 消费者专用的连接工厂
+    private StringRedisTemplate streamRedisTemplate;
+    private ExecutorService consumerExecutor;                   // 消费线程池
+    private ScheduledExecutorService claimExecutor;             // 接管pending消息、裁剪stream的定时线程
+    private final List<Worker> workers = new ArrayList<>();
+    private final AtomicInteger claimRoundRobin = new AtomicInteger();
+    private List<String> streamKeys;
+    private volatile boolean running = true;
+
+    @PostConstruct
+    private void init() {
+        int threads = Math.max(1, seckillProperties.getConsumerThreads());
+        streamKeys = seckillProperties.orderStreamKeys();
+        // 1.消费者专用连接：阻塞读每个线程独占一个连接，ack、pending等走共享连接
+        streamConnectionFactory = createStreamConnectionFactory(threads + 1);
+        streamRedisTemplate = new StringRedisTemplate(streamConnectionFactory);
+        // 2.创建消费者组，不再需要手动执行 xgroup create stream.orders g1 0 MKSTREAM
+        for (String key : streamKeys) {
+            streamRedisTemplate.execute(CREATE_GROUP_SCRIPT, Collections.singletonList(key), SECKILL_ORDER_GROUP);
+        }
+        // 3.启动消费线程
+        String nodeName = seckillProperties.nodeId();
+        consumerExecutor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            Worker worker = new Worker(nodeName + "-" + i);
+            workers.add(worker);
+            consumerExecutor.submit(worker);
+        }
+        // 4.定时接管宕机消费者的pending消息，裁剪已经确认的消息
+        claimExecutor = Executors.newSingleThreadScheduledExecutor();
+        long interval = Math.max(1, seckillProperties.getClaimIntervalSeconds());
+        claimExecutor.scheduleWithFixedDelay(() -> {
+            claimIdlePending();
+            trimStreams();
+        }, interval, interval, TimeUnit.SECONDS);
+        log.info("秒杀订单消费者启动, streams: {}, consumers: {}-0..{}", streamKeys, nodeName, threads - 1);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        claimExecutor.shutdownNow();
+        consumerExecutor.shutdown();
+        try {
+            // 等待正在阻塞读(最多2s)、处理中的消息结束
+            consumerExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        streamConnectionFactory.destroy();
+    }
+
+    /**
+     * 消费者专用的连接工厂：连接哪个redis（单机/哨兵/集群）和客户端配置（ssl、超时、客户端名...）都照搬自动配置的连接工厂，
+     * 只把连接池换成消费线程数大小的独立连接池
+     */
+    private LettuceConnectionFactory createStreamConnectionFactory(int poolSize) {
+        GenericObjectPoolConfig<?> poolConfig = new GenericObjectPoolConfig<>();
+        poolConfig.setMaxTotal(poolSize);
+        poolConfig.setMaxIdle(poolSize);
+        LettuceClientConfiguration shared = redisConnectionFactory.getClientConfiguration();
+        LettucePoolingClientConfiguration.LettucePoolingClientConfigurationBuilder builder = LettucePoolingClientConfiguration.builder();
+        builder.poolConfig(poolConfig)
+                .commandTimeout(shared.getCommandTimeout())
+                .shutdownTimeout(shared.getShutdownTimeout())
+                .shutdownQuietPeriod(shared.getShutdownQuietPeriod());
+        shared.getClientOptions().ifPresent(builder::clientOptions);
+        shared.getClientResources().ifPresent(builder::clientResources);
+        shared.getClientName().ifPresent(builder::clientName);
+        shared.getReadFrom().ifPresent(builder::readFrom);
+        if (shared.isUseSsl()) {
+            LettuceClientConfiguration.LettuceSslClientConfigurationBuilder ssl = builder.useSsl();
+            if (!shared.isVerifyPeer()) {
+                ssl.disablePeerVerification();
+            }
+            if (shared.isStartTls()) {
+                ssl.startTls();
+            }
+        }
+        LettucePoolingClientConfiguration clientConfig = builder.build();
+        LettuceConnectionFactory factory;
+        if (redisConnectionFactory.isRedisSentinelAware()) {
+            factory = new LettuceConnectionFactory(redisConnectionFactory.getSentinelConfiguration(), clientConfig);
+        } else if (redisConnectionFactory.isClusterAware()) {
+            factory = new LettuceConnectionFactory(redisConnectionFactory.getClusterConfiguration(), clientConfig);
+        } else {
+            factory = new LettuceConnectionFactory(redisConnectionFactory.getStandaloneConfiguration(), clientConfig);
+        }
+        factory.afterPropertiesSet();
+        return factory;
+    }
+
+    /**
+     * 扫描所有分区的pending-list，把其他消费者名下空闲超时的消息XCLAIM给本节点的消费者
+     * (所用redis客户端不支持XAUTOCLAIM，这里用 XPENDING + XCLAIM 实现同样的效果)
+     */
+    private void claimIdlePending() {
+        Duration minIdle = Duration.ofSeconds(seckillProperties.getClaimMinIdleSeconds());
+        Set<String> ownConsumers = new HashSet<>();
+        for (Worker worker : workers) {
+            ownConsumers.add(worker.consumerName);
+        }
+        for (String key : streamKeys) {
+            try {
+                // 1.XPENDING stream.orders g1 - + 100
+                PendingMessages pendingMessages = streamRedisTemplate.opsForStream()
+                        .pending(key, SECKILL_ORDER_GROUP, Range.unbounded(), 100);
+                List<RecordId> idleIds = new ArrayList<>();
+                for (PendingMessage message : pendingMessages) {
+                    if (!ownConsumers.contains(message.getConsumerName())
+                            && message.getElapsedTimeSinceLastDelivery().compareTo(minIdle) >= 0) {
+                        idleIds.add(message.getId());
+                    }
+                }
+                if (idleIds.isEmpty()) {
+                    continue;
+                }
+                // 2.XCLAIM stream.orders g1 消费者 minIdle id...（XCLAIM本身会再检查一次空闲时间，不会抢走刚被处理的消息）
+                Worker target = workers.get(Math.floorMod(claimRoundRobin.getAndIncrement(), workers.size()));
+                byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                List<RecordId> claimed = streamRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                        connection.streamCommands().xClaimJustId(rawKey, SECKILL_ORDER_GROUP, target.consumerName,
+                                RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(idleIds.toArray(new RecordId[0]))));
+                if (claimed != null && !claimed.isEmpty()) {
+                    log.warn("接管空闲的pending消息, stream: {}, 消费者: {}, 条数: {}", key, target.consumerName, claimed.size());
+                }
+            } catch (Exception e) {
+                log.error("接管pending消息异常, stream: {}", key, e);
+            }
+        }
+        // 3.每个消费者都重新处理一遍自己的pending-list（刚接管的消息、之前处理失败的消息）
+        for (Worker worker : workers) {
+            worker.pendingDirty = true;
+        }
+    }
+
+    /**
+     * 裁剪所有分区里已经确认的消息，保留pending和还没投递的（stream_trim.lua）
+     */
+    private void trimStreams() {
+        for (String key : streamKeys) {
+            try {
+                Long trimmed = streamRedisTemplate.execute(TRIM_SCRIPT, Collections.singletonList(key), SECKILL_ORDER_GROUP);
+                if (trimmed != null && trimmed > 0) {
+                    log.debug("裁剪已确认的订单消息, stream: {}, 条数: {}", key, trimmed);
+                }
+            } catch (Exception e) {
+                log.error("裁剪订单stream异常, stream: {}", key, e);
+            }
+        }
+    }
+
+    /**
+     * 第deliveries次投递失败后，隔多久再重试：orderRetryBaseMillis * 2^(deliveries-1)，最多orderRetryMaxMillis
+     */
+    private long retryBackoffMillis(long deliveries) {
+        long base = Math.max(1, seckillProperties.getOrderRetryBaseMillis());
+        long max = Math.max(base, seckillProperties.getOrderRetryMaxMillis());
+        int shift = (int) Math.min(Math.max(deliveries - 1, 0), 30);
+        return Math.min(base << shift, max);
+    }
+
+    // 消费任务，一个线程对应消费者组里的一个消费者
+    private class Worker implements Runnable {
+
+        private final String consumerName;
+        private final StreamOffset<String>[] newOffsets;        // 读未消费的消息 >
+        private volatile boolean pendingDirty = true;           // 启动时先处理自己名下遗留的pending消息
+        private volatile long nextPendingAt;                    // 下一次处理pending-list的时间（等最早的一条退避到期）
+
+        @SuppressWarnings("unchecked")
+        Worker(String consumerName) {
+            this.consumerName = consumerName;
+            this.newOffsets = streamKeys.stream()
+                    .map(key -> StreamOffset.create(key, ReadOffset.lastConsumed()))
+                    .toArray(StreamOffset[]::new);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    long block = READ_BLOCK_MILLIS;
+                    if (pendingDirty) {
+                        long wait = nextPendingAt - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            pendingDirty = false;
+                            handlePendingList();
+                        } else {
+                            // 阻塞读不要超过下一次重试的时间
+                            block = Math.min(block, wait);
+                        }
+                    }
+                    // 1.获取消息队列中的订单信息
+                    // XREADGROUP GROUP g1 消费者 COUNT n BLOCK 2000 STREAMS stream.orders:0 stream.orders:1 ... > > ...
+                    List<MapRecord<String, Object, Object>> list = streamRedisTemplate.opsForStream().read(
+                            Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(batchSize()).block(Duration.ofMillis(block)),
+                            newOffsets
+                    );
+                    // 2.没有新消息，继续下一次循环
+                    if (list == null || list.isEmpty()) {
+                        continue;
+                    }
+                    // 3.下单、ACK
+                    handleRecords(list);
+                } catch (Exception e) {
+                    if (!running) {
+                        break;
+                    }
+                    log.error("处理订单异常", e);
+                    // 消息没有被确认，进入了pending-list，下一轮先处理pending-list
+                    pendingDirty = true;
+                    sleepQuietly(20);
+                }
+            }
+        }
+
+        /**
+         * 处理自己名下pending-list里的消息：
+         * 投递次数到了上限的移入死信；退避时间到了的XCLAIM给自己（投递次数+1）重新处理；没到的记下最早的重试时间
+         */
+        private void handlePendingList() {
+            long now = System.currentTimeMillis();
+            long next = Long.MAX_VALUE;
+            int maxDeliveries = Math.max(1, seckillProperties.getOrderMaxDeliveries());
+            Map<Long, Integer> deadLetters = new HashMap<>();
+            for (String key : streamKeys) {
+                // 1.XPENDING stream.orders g1 - + 100 消费者
+                PendingMessages pendingMessages = streamRedisTemplate.opsForStream().pending(key,
+                        Consumer.from(SECKILL_ORDER_GROUP, consumerName), Range.unbounded(), (long) PENDING_SCAN_COUNT);
+                List<RecordId> due = new ArrayList<>();
+                long minIdle = Long.MAX_VALUE;
+                for (PendingMessage message : pendingMessages) {
+                    long deliveries = message.getTotalDeliveryCount();
+                    if (deliveries >= maxDeliveries) {
+                        // 2.重试太多次了，移入死信，订单记为失败
+                        Long orderId = voucherOrderDeadLetterQueue.moveToDeadLetter(key, message.getId(), deliveries);
+                        if (orderId != null) {
+                            deadLetters.put(orderId, SeckillOrderStatus.FAILED);
+                        }
+                        continue;
+                    }
+                    long backoff = retryBackoffMillis(deliveries);
+                    long idle = message.getElapsedTimeSinceLastDelivery().toMillis();
+                    if (idle >= backoff) {
+                        due.add(message.getId());
+                        minIdle = Math.min(minIdle, backoff);
+                    } else {
+                        next = Math.min(next, now + backoff - idle);
+                    }
+                }
+                if (pendingMessages.size() >= PENDING_SCAN_COUNT) {
+                    // 这一页之后还有，下一轮接着处理
+                    next = now;
+                }
+                if (due.isEmpty()) {
+                    continue;
+                }
+                // 3.XCLAIM stream.orders g1 自己 minIdle id...，重新拿到消息内容，投递次数+1
+                byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                Duration idle = Duration.ofMillis(minIdle);
+                List<ByteRecord> claimed = streamRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                        connection.streamCommands().xClaim(rawKey, SECKILL_ORDER_GROUP, consumerName,
+                                RedisStreamCommands.XClaimOptions.minIdle(idle).ids(due.toArray(new RecordId[0]))));
+                if (claimed == null || claimed.isEmpty()) {
+                    continue;
+                }
+                List<MapRecord<String, Object, Object>> records = new ArrayList<>(claimed.size());
+                for (ByteRecord record : claimed) {
+                    Map<Object, Object> value = new HashMap<>();
+                    record.getValue().forEach((field, v) ->
+                            value.put(new String(field, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8)));
+                    records.add(StreamRecords.newRecord().in(key).withId(record.getId()).ofMap(value));
+                }
+                // 4.重新下单，又失败的继续留在pending-list里
+                handleRecords(records);
+            }
+            publishStatuses(deadLetters);
+            if (next != Long.MAX_VALUE || pendingDirty) {
+                // 还有没到期的消息，或者刚才重试又失败了（下一次退避更久，到时候重新算）
+                pendingDirty = true;
+                nextPendingAt = Math.min(next, now + Math.max(1, seckillProperties.getOrderRetryBaseMillis()));
+            }
+        }
+
+        /**
+         * 下单并确认，返回确认的条数
+         * 多条时先整批下单（多行insert + 一次ACK），整批失败再逐条兜底，失败的留在pending-list里
+         */
+        private int handleRecords(List<MapRecord<String, Object, Object>> records) {
+            List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+            for (MapRecord<String, Object, Object> record : records) {
+                voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+            }
+            if (records.size() > 1) {
+                try {
+                    Set<Long> saved = new HashSet<>();
+                    for (VoucherOrder voucherOrder : voucherOrderService.createVoucherOrderBatch(voucherOrders)) {
+                        saved.add(voucherOrder.getId());
+                    }
+                    // 先加入延时队列再ACK，加入失败抛异常，改为逐条处理（订单已入库，逐条处理时按重复投递处理）
+                    voucherOrderDelayQueue.add(saved);
+                    acknowledge(records);
+                    Map<Long, Integer> statuses = new HashMap<>();
+                    for (VoucherOrder voucherOrder : voucherOrders) {
+                        statuses.put(voucherOrder.getId(), saved.contains(voucherOrder.getId())
+                                ? SeckillOrderStatus.PERSISTED : SeckillOrderStatus.FAILED);
+                    }
+                    publishStatuses(statuses);
+                    return records.size();
+                } catch (Exception e) {
+                    log.error("批量处理订单异常，改为逐条处理", e);
+                }
+            }
+            List<MapRecord<String, Object, Object>> done = new ArrayList<>(records.size());
+            Map<Long, Integer> statuses = new HashMap<>();
+            for (int i = 0; i < records.size(); i++) {
+                VoucherOrder voucherOrder = voucherOrders.get(i);
+                try {
+                    boolean saved = voucherOrderService.handleVoucherOrder(voucherOrder);
+                    done.add(records.get(i));
+                    statuses.put(voucherOrder.getId(), saved ? SeckillOrderStatus.PERSISTED : SeckillOrderStatus.FAILED);
+                } catch (Exception e) {
+                    // 留在pending-list里重试，状态还是排队中
+                    log.error("处理订单异常", e);
+                    pendingDirty = true;
+                }
+            }
+            publishStatuses(statuses);
+            List<Long> saved = new ArrayList<>();
+            statuses.forEach((orderId, status) -> {
+                if (status == SeckillOrderStatus.PERSISTED) {
+                    saved.add(orderId);
+                }
+            });
+            // 入库的订单先加入未支付超时取消的延时队列（幂等）再ACK，加入失败就不ACK，留在pending-list里重新投递
+            try {
+                voucherOrderDelayQueue.add(saved);
+            } catch (Exception e) {
+                log.error("订单加入延时队列异常，等待重新投递, orderIds: {}", saved, e);
+                pendingDirty = true;
+                return 0;
+            }
+            acknowledge(done);
+            return done.size();
+        }
+
+        // 订单状态写入失败不影响消费，客户端查不到结果时会继续轮询直到过期
+        private void publishStatuses(Map<Long, Integer> statuses) {
+            try {
+                seckillOrderStatus.publish(statuses);
+            } catch (Exception e) {
+                log.error("写入订单状态异常", e);
+            }
+        }
+
+        // 按分区分组，每个分区一次 XACK stream.orders:i g1 id1 id2 ...
+        private void acknowledge(List<MapRecord<String, Object, Object>> records) {
+            Map<String, List<RecordId>> idsByStream = new HashMap<>();
+            for (MapRecord<String, Object, Object> record : records) {
+                idsByStream.computeIfAbsent(record.getStream(), k -> new ArrayList<>()).add(record.getId());
+            }
+            idsByStream.forEach((stream, ids) ->
+                    streamRedisTemplate.opsForStream().acknowledge(stream, SECKILL_ORDER_GROUP, ids.toArray(new RecordId[0])));
+        }
+
+        private int batchSize() {
+            return Math.max(1, seckillProperties.getOrderBatchSize());
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);   // 休眠下，避免太频繁
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
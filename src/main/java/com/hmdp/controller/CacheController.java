@@ -0,0 +1,66 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.job.CacheWarmUpRunner;
+import com.hmdp.utils.CacheClient;
+import org.springframework.boot.availability.ApplicationAvailability;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Map;
+
+/**
+ * 缓存-前端控制器（运维查看用）
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private CacheWarmUpRunner cacheWarmUpRunner;
+    @Resource
+    private ApplicationAvailability applicationAvailability;
+
+    /**
+     * 查询缓存的分层命中统计
+     *
+     * @return L1（本地缓存）、L2（redis）的命中次数和命中率，回源数据库的次数和耗时（合计，和prefixes里按key前缀的），重建线程池的排队情况
+     */
+    @GetMapping("/metrics")
+    public Result metrics() {
+        return Result.ok(cacheClient.metrics());
+    }
+
+    /**
+     * 查询本节点当前的热点key
+     *
+     * @return 热点key和衰减后的访问次数，按访问次数从高到低
+     */
+    @GetMapping("/hot-keys")
+    public Result hotKeys() {
+        return Result.ok(cacheClient.hotKeys());
+    }
+
+    /**
+     * 就绪检查：启动预热完成（或超过时间预算）之后才就绪，之前返回503
+     *
+     * @return 是否就绪，预热状态和进度
+     */
+    @GetMapping("/ready")
+    public Result ready(HttpServletResponse response) {
+        Map<String, Object> status = cacheWarmUpRunner.status();
+        boolean ready = applicationAvailability.getReadinessState() == ReadinessState.ACCEPTING_TRAFFIC;
+        status.put("ready", ready);
+        if (!ready) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return new Result(false, "缓存预热中", status, null);
+        }
+        return Result.ok(status);
+    }
+}
@@ -11,6 +11,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.List;
 
 /**
  * 店铺-前端控制器
@@ -44,7 +45,7 @@ public class ShopController {
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
-        return Result.ok();
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -56,6 +57,15 @@ public class ShopController {
         return shopService.update(shop);
     }
 
+    /**
+     * 批量更新商铺信息
+     */
+    @PutMapping("/batch")
+    public Result updateShops(@RequestBody List<Shop> shops) {
+        log.info("批量更新商铺信息，数量: {}", shops.size());
+        return shopService.updateBatch(shops);
+    }
+
     /**
      * 根据商铺类型分页查询商铺信息
      *
@@ -1,11 +1,9 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
-import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
@@ -91,12 +89,11 @@ public class UserController {
      */
     @GetMapping("/{id}")
     public Result queryUserById(@PathVariable("id") Long userId) {
-        // 查询详情
-        User user = userService.getById(userId);
-        if (user == null) {
+        // 查询详情（走缓存，布隆过滤器判断一定不存在的用户不查redis和数据库）
+        UserDTO userDTO = userService.queryUserDTO(userId);
+        if (userDTO == null) {
             return Result.ok();
         }
-        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
         // 返回
         return Result.ok(userDTO);
     }
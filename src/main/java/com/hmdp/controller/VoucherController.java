@@ -43,6 +43,17 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 秒杀库存对账：redis库存、已购用户和数据库库存、订单对不上的券
+     *
+     * @param repair 是否修复redis库存
+     * @return 不一致的券
+     */
+    @GetMapping("/seckill/reconcile")
+    public Result reconcileSeckillStock(@RequestParam(value = "repair", defaultValue = "false") Boolean repair) {
+        return voucherService.reconcileSeckillStock(repair);
+    }
+
     /**
      * 查询店铺的优惠券列表
      *
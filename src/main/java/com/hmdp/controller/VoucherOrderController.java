@@ -3,10 +3,18 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.VoucherOrderDeadLetterQueue;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 
@@ -19,16 +27,95 @@ public class VoucherOrderController {
 
     @Resource
     private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillAdmission seckillAdmission;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private VoucherOrderDeadLetterQueue voucherOrderDeadLetterQueue;
+
+    /**
+     * 领取秒杀入场券（开启排队入场时，抢购前先领券）
+     *
+     * @param voucherId 优惠券id
+     * @return 入场券，抢购时放在请求头seckill-ticket里
+     */
+    @GetMapping("ticket/{id}")
+    public Result seckillTicket(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.seckillTicket(voucherId);
+    }
 
     /**
      * 抢购优惠券
      *
      * @param voucherId 优惠券id
+     * @param ticket    入场券（开启排队入场时必须）
      * @return 订单id
      */
     @PostMapping("seckill/{id}")
-    public Result seckillVoucher(@PathVariable("id") Long voucherId) {
+    public Result seckillVoucher(@PathVariable("id") Long voucherId,
+                                 @RequestHeader(value = "seckill-ticket", required = false) String ticket) {
+        if (!seckillAdmission.isEnabled()) {
+            return voucherOrderService.seckillVoucher(voucherId);
+        }
+        // 没有有效入场券的请求直接拒绝（伪造/过期的不访问redis），下单成功后入场券作废
+        Long userId = UserHolder.getUser().getId();
+        if (!seckillAdmission.useTicket(voucherId, userId, ticket)) {
+            return Result.fail("请先排队领取入场券");
+        }
+        Result result = null;
+        try {
+            result = voucherOrderService.seckillVoucher(voucherId);
+            return result;
+        } finally {
+            // 没下单成功（还没开始、库存不足、异常）归还入场券，用户还能再抢
+            if (result == null || !Boolean.TRUE.equals(result.getSuccess())) {
+                seckillAdmission.returnTicket(voucherId, userId, ticket);
+            }
+        }
+    }
+
+    /**
+     * 申请退款
+     *
+     * @param orderId 订单id
+     */
+    @PostMapping("refund/{orderId}")
+    public Result refund(@PathVariable("orderId") Long orderId) {
+        return voucherOrderService.applyRefund(orderId);
+    }
+
+    /**
+     * 查询秒杀订单的处理结果（只读redis）
+     *
+     * @param orderId 订单id
+     * @param wait    订单还在排队时是否挂起等待结果（长轮询）
+     * @return 0-排队中 1-已入库 2-失败
+     */
+    @GetMapping("status/{orderId}")
+    public DeferredResult<Result> orderStatus(@PathVariable("orderId") Long orderId,
+                                              @RequestParam(value = "wait", defaultValue = "false") boolean wait) {
+        return seckillOrderStatus.query(orderId, wait);
+    }
+
+    /**
+     * 查询订单死信（重试多次仍处理失败的订单消息）
+     *
+     * @param count 最多返回多少条
+     */
+    @GetMapping("dead-letters")
+    public Result deadLetters(@RequestParam(value = "count", defaultValue = "20") Integer count) {
+        return Result.ok(voucherOrderDeadLetterQueue.list(count));
+    }
 
-        return voucherOrderService.seckillVoucher(voucherId);
+    /**
+     * 重放订单死信，重新投递到订单stream
+     *
+     * @param count 最多重放多少条
+     * @return 重放的条数
+     */
+    @PostMapping("dead-letters/replay")
+    public Result replayDeadLetters(@RequestParam(value = "count", defaultValue = "100") Integer count) {
+        return Result.ok(voucherOrderDeadLetterQueue.replay(count));
     }
 }
@@ -0,0 +1,28 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 一张秒杀券的库存对账结果
+ */
+@Data
+public class SeckillStockReport {
+    private Long voucherId;
+    private List<Long> shardStocks;     // redis各分片的库存
+    private long redisStock;            // redis库存之和
+    private long leasedStock;           // 各节点租走还没卖的库存
+    private long inFlightOrders;        // stream里还没ACK的订单
+    private boolean inFlightComplete;   // stream是否完整统计了，没统计完不做修复
+    private long redisBuyers;           // redis里的已购用户数
+    private long dbStock;               // tb_seckill_voucher.stock
+    private long dbOrders;              // 有效订单数（未取消、未退款）
+    private long stockDiff;             // 应有的redis库存 - 实际redis库存，正数说明redis少了
+    private long buyerDiff;             // redis已购用户数 - 应有的已购用户数，正数说明redis多了
+    private boolean repaired;
+
+    public boolean isConsistent() {
+        return stockDiff == 0 && buyerDiff == 0;
+    }
+}
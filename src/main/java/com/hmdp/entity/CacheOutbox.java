@@ -0,0 +1,64 @@
+package com.hmdp.entity;
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.experimental.Accessors;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * tb_cache_outbox对应的实体类：和业务数据在同一个事务里写入的缓存删除任务
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+@Accessors(chain = true)
+@TableName("tb_cache_outbox")
+public class CacheOutbox implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 等待提交后删除
+     */
+    public static final int PHASE_DELETE = 0;
+
+    /**
+     * 等待延迟双删
+     */
+    public static final int PHASE_DOUBLE_DELETE = 1;
+
+    /**
+     * 主键
+     */
+    @TableId(value = "id", type = IdType.AUTO)
+    private Long id;
+
+    /**
+     * 要删除的缓存key
+     */
+    private String cacheKey;
+
+    /**
+     * 处理阶段 0-等待提交后删除 1-等待延迟双删
+     */
+    private Integer phase;
+
+    /**
+     * 连续失败次数
+     */
+    private Integer attempts;
+
+    /**
+     * 下次处理时间
+     */
+    private LocalDateTime nextTime;
+
+    /**
+     * 创建时间
+     */
+    private LocalDateTime createTime;
+}
@@ -37,6 +37,11 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * 一人一单的已购用户在redis中的存法 set/bitmap
+     */
+    private String dedupeType;
+
     /**
      * 创建时间
      */
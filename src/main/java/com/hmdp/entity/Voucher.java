@@ -74,6 +74,12 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 一人一单的已购用户在redis中的存法 set(默认)/bitmap，买家多、用户id连续时用bitmap更省内存
+     */
+    @TableField(exist = false)
+    private String dedupeType;
+
     /**
      * 生效时间
      */
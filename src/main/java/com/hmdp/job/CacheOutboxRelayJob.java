@@ -0,0 +1,22 @@
+package com.hmdp.job;
+
+import com.hmdp.service.ICacheOutboxService;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 定时处理缓存删除任务：延迟双删、删除失败后的重试、宕机前没处理完的任务
+ */
+@Component
+public class CacheOutboxRelayJob {
+
+    @Resource
+    private ICacheOutboxService cacheOutboxService;
+
+    @Scheduled(fixedDelayString = "#{@cacheProperties.outboxRelayIntervalMillis}")
+    public void run() {
+        cacheOutboxService.relay();
+    }
+}
@@ -0,0 +1,190 @@
+package com.hmdp.job;
+
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 启动时预热缓存，部署后或者redis数据清空后，第一波请求不会全部打到数据库
+ * <p>
+ * 1.销量最高的 warmUpShopTopN 个店铺：按(销量, id)分页（keyset，不用offset）从数据库读，每页交给线程池用一个pipeline写入redis；<br>
+ * 2.店铺类型列表、进行中的秒杀券（库存、元数据）各一个任务；<br>
+ * 3.ApplicationRunner执行完之后spring才发布ReadinessState.ACCEPTING_TRAFFIC，/cache/ready在这之前返回503；
+ * 超过时间预算 warmUpTimeoutMillis 就不再等待，没完成的继续在后台预热。
+ * </p>
+ * 线程池队列满了由读数据库的线程自己写，读得再快也不会在内存里堆积太多页。
+ * 超时后读店铺的任务还在往线程池提交写入，所以线程池要等所有任务（包括写入）结束后再关闭，
+ * 提前shutdown的话CallerRunsPolicy会直接丢弃新提交的写入，它的future永远不会完成。
+ */
+@Slf4j
+@Component
+public class CacheWarmUpRunner implements ApplicationRunner {
+
+    @Resource
+    private CacheProperties cacheProperties;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private IShopTypeService shopTypeService;
+    @Resource
+    private SeckillVoucherWarmUpJob seckillVoucherWarmUpJob;
+
+    private final Progress shops = new Progress();
+    private final Progress shopTypes = new Progress();
+    private final Progress seckillVouchers = new Progress();
+    private volatile String state = "PENDING";
+    private volatile long beginTime;
+    private volatile long endTime;
+
+    @Override
+    public void run(ApplicationArguments args) throws InterruptedException {
+        if (!cacheProperties.isWarmUpEnabled()) {
+            state = "DISABLED";
+            return;
+        }
+        state = "WARMING";
+        beginTime = System.currentTimeMillis();
+        int threads = Math.max(2, cacheProperties.getWarmUpThreads());
+        AtomicInteger index = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 2), r -> {
+            Thread thread = new Thread(r, "cache-warm-up-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+        CompletableFuture<Void> all = CompletableFuture.allOf(
+                submit(shops, () -> warmUpShops(pool, shops), pool),
+                submit(shopTypes, () -> shopTypeService.queryShopTypeList(), pool),
+                submit(seckillVouchers, () -> seckillVoucherWarmUpJob.warmUp(), pool));
+        try {
+            all.get(cacheProperties.getWarmUpTimeoutMillis(), TimeUnit.MILLISECONDS);
+            state = "DONE";
+            log.info("缓存预热完成, 耗时: {}ms, {}", System.currentTimeMillis() - beginTime, status().get("progress"));
+        } catch (TimeoutException e) {
+            state = "TIMEOUT";
+            log.warn("缓存预热超过时间预算{}ms，先就绪，剩下的在后台继续, {}",
+                    cacheProperties.getWarmUpTimeoutMillis(), status().get("progress"));
+        } catch (ExecutionException e) {
+            // 每个任务自己记录了异常，不会走到这里
+            state = "FAILED";
+        } finally {
+            endTime = System.currentTimeMillis();
+            // 所有预热任务（读店铺的任务等它的写入都完成才结束）执行完再关闭线程池，超时的话在后台完成后关闭
+            all.whenComplete((v, e) -> pool.shutdown());
+        }
+    }
+
+    /**
+     * 预热状态和进度
+     */
+    public Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("state", state);
+        if (beginTime > 0) {
+            status.put("elapsedMillis", (endTime > 0 ? endTime : System.currentTimeMillis()) - beginTime);
+        }
+        Map<String, Object> items = new LinkedHashMap<>();
+        items.put("shop", shops.toMap());
+        items.put("shopType", shopTypes.toMap());
+        items.put("seckillVoucher", seckillVouchers.toMap());
+        status.put("progress", items);
+        return status;
+    }
+
+    // 销量最高的店铺，按(sold desc, id asc)分页读，每页一个pipeline写入
+    private void warmUpShops(ThreadPoolExecutor pool, Progress progress) {
+        int topN = cacheProperties.getWarmUpShopTopN();
+        int pageSize = Math.max(1, cacheProperties.getWarmUpPageSize());
+        progress.total = Math.min(topN, shopService.count());
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        Integer lastSold = null;
+        Long lastId = null;
+        int read = 0;
+        while (read < topN) {
+            Integer sold = lastSold;
+            Long id = lastId;
+            List<Shop> page = shopService.query()
+                    .and(sold != null, w -> w.lt("sold", sold).or(w2 -> w2.eq("sold", sold).gt("id", id)))
+                    .orderByDesc("sold").orderByAsc("id")
+                    .last("limit " + Math.min(pageSize, topN - read))
+                    .list();
+            if (page.isEmpty()) {
+                break;
+            }
+            read += page.size();
+            Shop last = page.get(page.size() - 1);
+            lastSold = last.getSold();
+            lastId = last.getId();
+            writes.add(CompletableFuture.runAsync(() -> {
+                Map<String, Shop> values = new LinkedHashMap<>(page.size() * 2);
+                for (Shop shop : page) {
+                    values.put(RedisConstants.CACHE_SHOP_KEY + shop.getId(), shop);
+                }
+                cacheClient.setAll(values, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                long done = progress.done.addAndGet(page.size());
+                log.info("缓存预热-店铺: {}/{}", done, progress.total);
+            }, pool));
+            if (page.size() < pageSize) {
+                break;
+            }
+        }
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).join();
+    }
+
+    // 执行一个预热任务，异常记录在进度里，不影响其他任务
+    private static CompletableFuture<Void> submit(Progress progress, Runnable task, ThreadPoolExecutor pool) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                task.run();
+                progress.finished = true;
+            } catch (Exception e) {
+                progress.error = e.getMessage();
+                log.error("缓存预热异常", e);
+            }
+        }, pool);
+    }
+
+    private static class Progress {
+        private final AtomicLong done = new AtomicLong();
+        private volatile long total = -1;       // 不知道总数时为-1
+        private volatile boolean finished;
+        private volatile String error;
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("finished", finished);
+            if (total >= 0) {
+                map.put("done", done.get());
+                map.put("total", total);
+            }
+            if (error != null) {
+                map.put("error", error);
+            }
+            return map;
+        }
+    }
+}
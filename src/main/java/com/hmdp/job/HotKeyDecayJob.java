@@ -0,0 +1,22 @@
+package com.hmdp.job;
+
+import com.hmdp.utils.CacheClient;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 定时衰减热点key的访问次数，冷却的热点key降级回TTL缓存
+ */
+@Component
+public class HotKeyDecayJob {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Scheduled(fixedDelayString = "#{@cacheProperties.hotKeyDecayMillis}")
+    public void run() {
+        cacheClient.decayHotKeys();
+    }
+}
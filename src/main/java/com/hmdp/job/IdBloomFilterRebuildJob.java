@@ -0,0 +1,23 @@
+package com.hmdp.job;
+
+import com.hmdp.utils.IdBloomFilter;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 定时全量重建id布隆过滤器：去掉已删除的id，补上pub/sub丢失的新增id
+ */
+@Component
+public class IdBloomFilterRebuildJob {
+
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
+    @Scheduled(fixedDelayString = "${hmdp.cache.bloom-rebuild-interval-millis:3600000}",
+            initialDelayString = "${hmdp.cache.bloom-rebuild-interval-millis:3600000}")
+    public void run() {
+        idBloomFilter.rebuildAll();
+    }
+}
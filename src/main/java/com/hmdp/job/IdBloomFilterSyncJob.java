@@ -0,0 +1,22 @@
+package com.hmdp.job;
+
+import com.hmdp.utils.IdBloomFilter;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 定时把其他节点最近新增的id同步到本地布隆过滤器，补上pub/sub丢失的新增通知（查询时不再访问redis）
+ */
+@Component
+public class IdBloomFilterSyncJob {
+
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
+    @Scheduled(fixedDelayString = "#{@cacheProperties.bloomRecentSyncMillis}")
+    public void run() {
+        idBloomFilter.syncRecent();
+    }
+}
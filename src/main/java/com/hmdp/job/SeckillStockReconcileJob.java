@@ -0,0 +1,42 @@
+package com.hmdp.job;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.dto.SeckillStockReport;
+import com.hmdp.service.ISeckillStockReconcileService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 秒杀库存定时对账：redis库存、已购用户 和 数据库库存、订单对不上时打日志，开启reconcileRepair时修复redis库存
+ */
+@Slf4j
+@Component
+public class SeckillStockReconcileJob {
+
+    @Resource
+    private ISeckillStockReconcileService seckillStockReconcileService;
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile-interval-millis:300000}",
+            initialDelayString = "${hmdp.seckill.reconcile-interval-millis:300000}")
+    public void run() {
+        try {
+            // 确认差异的第二遍在对账线程上延时执行，不占着定时任务线程等待
+            seckillStockReconcileService.reconcile(seckillProperties.isReconcileRepair()).whenComplete((reports, e) -> {
+                if (e != null) {
+                    log.error("秒杀库存对账异常", e);
+                    return;
+                }
+                for (SeckillStockReport report : reports) {
+                    log.warn("秒杀库存对账不一致: {}", report);
+                }
+            });
+        } catch (Exception e) {
+            log.error("秒杀库存对账异常", e);
+        }
+    }
+}
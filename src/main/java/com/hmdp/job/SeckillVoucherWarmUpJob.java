@@ -0,0 +1,110 @@
+package com.hmdp.job;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_WARM_VOUCHERS_KEY;
+
+/**
+ * 秒杀券预热/清理定时任务
+ * <p>
+ * 1.开始前 prewarmAheadSeconds 把券的库存、元数据、时间窗口写入redis，并SCRIPT LOAD秒杀脚本；<br>
+ * 2.结束 teardownDelaySeconds 后删除券在redis里的key，释放内存。<br>
+ * 预热/清理后清掉本节点缓存的券元数据；其他节点上的缓存写入后60秒过期。<br>
+ * 多个节点同时执行也没关系：库存用SETNX写入，已预热的券不会被覆盖。
+ * </p>
+ */
+@Slf4j
+@Component
+public class SeckillVoucherWarmUpJob {
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.prewarm-interval-millis:10000}")
+    public void run() {
+        try {
+            warmUp();
+        } catch (Exception e) {
+            log.error("秒杀券预热异常", e);
+        }
+        try {
+            tearDown();
+        } catch (Exception e) {
+            log.error("秒杀券清理异常", e);
+        }
+    }
+
+    /**
+     * 预热即将开始、还没结束的秒杀券 select * from tb_seckill_voucher where begin_time <= now + ahead and end_time > now
+     */
+    public void warmUp() {
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .le("begin_time", now.plusSeconds(seckillProperties.getPrewarmAheadSeconds()))
+                .gt("end_time", now)
+                .list();
+        if (vouchers.isEmpty()) {
+            return;
+        }
+        Set<String> warm = stringRedisTemplate.opsForSet().members(SECKILL_WARM_VOUCHERS_KEY);
+        int shards = Math.max(1, seckillProperties.getStockShards());
+        for (SeckillVoucher voucher : vouchers) {
+            if (warm != null && warm.contains(voucher.getVoucherId().toString())) {
+                continue;
+            }
+            boolean loaded = seckillVoucherService.warmUpSeckillVoucher(voucher, shards);
+            // 元数据（时间窗口）刷新了，本节点缓存的旧元数据作废
+            voucherOrderService.evictVoucherMeta(voucher.getVoucherId());
+            if (loaded) {
+                log.info("秒杀券预热完成, voucherId: {}, 库存: {}, 开始时间: {}",
+                        voucher.getVoucherId(), voucher.getStock(), voucher.getBeginTime());
+            }
+        }
+        // 脚本缓存在redis重启后会丢，有券在窗口内就每次都确认一遍，SCRIPT LOAD是幂等的
+        voucherOrderService.loadSeckillScripts();
+    }
+
+    /**
+     * 清理已经结束 teardownDelaySeconds 的秒杀券
+     */
+    public void tearDown() {
+        Set<String> warm = stringRedisTemplate.opsForSet().members(SECKILL_WARM_VOUCHERS_KEY);
+        if (warm == null || warm.isEmpty()) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() - seckillProperties.getTeardownDelaySeconds() * 1000;
+        for (String voucherId : warm) {
+            Object end = stringRedisTemplate.opsForHash().get(SECKILL_VOUCHER_KEY + voucherId, "end");
+            if (end == null) {
+                // 元数据已经没了（被清理过/redis数据丢失），下次预热时会重新加载
+                stringRedisTemplate.opsForSet().remove(SECKILL_WARM_VOUCHERS_KEY, voucherId);
+                voucherOrderService.evictVoucherMeta(Long.valueOf(voucherId));
+                continue;
+            }
+            long endTime = Long.parseLong(end.toString());
+            if (endTime > 0 && endTime < deadline) {
+                seckillVoucherService.tearDownSeckillVoucher(Long.valueOf(voucherId));
+                voucherOrderService.evictVoucherMeta(Long.valueOf(voucherId));
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.hmdp.job;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.VoucherOrderDelayQueue;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.List;
+
+/**
+ * 未支付订单超时取消定时任务：从延时队列批量领取到期的订单，取消订单并把库存还回数据库和redis
+ * <p>
+ * 退款的订单也会以"立即到期"进入延时队列，由这里兜底把库存还回redis
+ * </p>
+ */
+@Slf4j
+@Component
+public class VoucherOrderTimeoutJob {
+
+    private static final int MAX_BATCHES_PER_RUN = 50;  // 每次最多处理多少批，避免一直占着调度线程
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private VoucherOrderDelayQueue voucherOrderDelayQueue;
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order-timeout-scan-millis:1000}")
+    public void run() {
+        int batchSize = Math.max(1, seckillProperties.getOrderTimeoutBatchSize());
+        try {
+            for (int i = 0; i < MAX_BATCHES_PER_RUN; i++) {
+                List<Long> orderIds = voucherOrderDelayQueue.claimDue(batchSize);
+                if (orderIds.isEmpty()) {
+                    return;
+                }
+                voucherOrderService.handleExpiredOrders(orderIds);
+                if (orderIds.size() < batchSize) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.error("处理超时订单异常", e);
+        }
+    }
+}
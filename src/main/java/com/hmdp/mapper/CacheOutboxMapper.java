@@ -0,0 +1,11 @@
+package com.hmdp.mapper;
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.entity.CacheOutbox;
+
+/**
+ * 缓存删除任务 Mapper 接口
+ */
+public interface CacheOutboxMapper extends BaseMapper<CacheOutbox> {
+
+}
@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,17 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 写入订单，一人一单唯一索引或主键冲突时忽略
+     *
+     * @return 插入的行数，0表示冲突被忽略
+     */
+    int insertIgnore(VoucherOrder voucherOrder);
+
+    /**
+     * 批量写入订单（一条多行insert，冲突的行忽略）
+     *
+     * @return 插入的行数
+     */
+    int insertBatch(@Param("list") List<VoucherOrder> voucherOrders);
 }
@@ -0,0 +1,26 @@
+package com.hmdp.service;
+
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.entity.CacheOutbox;
+
+import java.util.Collection;
+
+/**
+ * 缓存删除的事务outbox：更新数据库的同一个事务里写入要删除的缓存key，提交后由中继删除
+ */
+public interface ICacheOutboxService extends IService<CacheOutbox> {
+
+    /**
+     * 在当前事务里写入缓存删除任务，事务提交后立即触发中继（回滚则任务也不存在）
+     *
+     * @param keys 要删除的缓存key
+     */
+    void add(Collection<String> keys);
+
+    /**
+     * 分批处理所有到期的任务：删除redis缓存并通知所有节点删除本地缓存，失败的退避后重试
+     *
+     * @return 处理的任务数
+     */
+    int relay();
+}
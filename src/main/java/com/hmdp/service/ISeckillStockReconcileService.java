@@ -0,0 +1,23 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.SeckillStockReport;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 秒杀库存对账：redis里的库存、已购用户 和 数据库里的库存、订单对不上时报告差异，可选修复redis库存
+ */
+public interface ISeckillStockReconcileService {
+
+    /**
+     * 对账所有预热过的秒杀券
+     * <p>
+     * 第一遍在调用线程上检查，有差异的券隔一会儿在对账线程上再查一次确认，调用线程不用等待
+     * </p>
+     *
+     * @param repair 是否修复redis库存
+     * @return 确认不一致的券（第二遍检查完成时完成）
+     */
+    CompletableFuture<List<SeckillStockReport>> reconcile(boolean repair);
+}
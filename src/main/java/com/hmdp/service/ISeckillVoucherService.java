@@ -13,4 +13,16 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    /**
+     * 秒杀券预热到redis：库存（按分片拆开）、分片数、一人一单存法、时间窗口。已经预热过的券不会覆盖库存
+     *
+     * @param shards 库存分片数，已预热过的券沿用原来的分片数
+     * @return 是否是本次新写入的库存
+     */
+    boolean warmUpSeckillVoucher(SeckillVoucher voucher, int shards);
+
+    /**
+     * 清理秒杀券在redis里的key（库存、已购用户、租约、元数据）
+     */
+    void tearDownSeckillVoucher(Long voucherId);
 }
@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * 服务类
  */
@@ -17,6 +19,14 @@ public interface IShopService extends IService<Shop> {
      */
     Result queryById(Long id);
 
+    /**
+     * 新增商铺信息
+     *
+     * @param shop
+     * @return 商铺id
+     */
+    Result saveShop(Shop shop);
+
     /**
      * 更新商铺信息
      *
@@ -24,4 +34,12 @@ public interface IShopService extends IService<Shop> {
      * @return
      */
     Result update(Shop shop);
+
+    /**
+     * 批量更新商铺信息，一个事务里更新所有店铺并写入缓存删除任务
+     *
+     * @param shops
+     * @return
+     */
+    Result updateBatch(List<Shop> shops);
 }
@@ -3,9 +3,11 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.List;
 
 /**
  * 服务类
@@ -15,4 +17,20 @@ public interface IUserService extends IService<User> {
     Result sendCode(String phone, HttpSession session);
 
     Result login(LoginFormDTO loginForm, HttpSession session);
+
+    /**
+     * 根据id查询用户（昵称、头像），走缓存
+     *
+     * @param id
+     * @return 用户不存在时返回null
+     */
+    UserDTO queryUserDTO(Long id);
+
+    /**
+     * 根据id批量查询用户（昵称、头像），走缓存，一次MGET + 未命中的一次IN查询
+     *
+     * @param ids
+     * @return 和ids一一对应，用户不存在的位置为null
+     */
+    List<UserDTO> queryUserDTOs(List<Long> ids);
 }
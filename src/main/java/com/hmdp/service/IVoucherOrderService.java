@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 
 /**
  * 优惠券订单-service类
@@ -17,10 +19,74 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
      */
     Result seckillVoucher(Long voucherId);
 
+    /**
+     * 领取秒杀入场券（开启排队入场时，下单前先领券）
+     *
+     * @param voucherId 优惠券id
+     */
+    Result seckillTicket(Long voucherId);
+
+    /**
+     * 异步处理秒杀券订单（stream消费者调用）：创建订单，一人一单由唯一索引保证
+     *
+     * @param voucherOrder 优惠券订单
+     * @return 订单是否入库，false表示不会再入库（重复下单、库存不足）
+     */
+    boolean handleVoucherOrder(VoucherOrder voucherOrder);
+
     /**
      * 创建秒杀券订单
      *
      * @param voucherOrder 优惠券订单
+     * @return 订单是否入库
+     */
+    boolean createVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 批量创建秒杀券订单，任何一步失败整批回滚，由调用方逐条兜底
+     *
+     * @param voucherOrders 优惠券订单
+     * @return 入库的订单，其余的是重复订单
+     */
+    List<VoucherOrder> createVoucherOrderBatch(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 处理延时队列里到期的订单：未支付的取消，已取消/已退款的把库存还回redis，已支付的移出队列
+     *
+     * @param orderIds 到期的订单id
+     */
+    void handleExpiredOrders(List<Long> orderIds);
+
+    /**
+     * 取消未支付的订单（状态1->4），tb_seckill_voucher库存+1
+     *
+     * @return 是否取消成功，订单已经不是未支付状态时返回false
+     */
+    boolean cancelVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 已支付/退款中的订单退款（状态->6），tb_seckill_voucher库存+1
+     *
+     * @return 是否退款成功，订单状态不允许退款时返回false
+     */
+    boolean refundVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 用户申请退款，退款后库存和超时取消走同一条路径还回redis
+     *
+     * @param orderId 订单id
+     */
+    Result applyRefund(Long orderId);
+
+    /**
+     * 提前把秒杀lua脚本加载到redis（秒杀券预热时调用）
+     */
+    void loadSeckillScripts();
+
+    /**
+     * 清除本节点缓存的秒杀券元数据（券重新预热/清理后调用），下次下单时从redis重新读取
+     *
+     * @param voucherId 优惠券id
      */
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    void evictVoucherMeta(Long voucherId);
 }
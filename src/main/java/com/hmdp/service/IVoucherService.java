@@ -27,4 +27,12 @@ public interface IVoucherService extends IService<Voucher> {
      * @param voucher 优惠券
      */
     void addSeckillVoucher(Voucher voucher);
+
+    /**
+     * 秒杀库存对账：对比redis库存、已购用户和数据库库存、订单
+     *
+     * @param repair 是否修复redis库存
+     * @return 不一致的券
+     */
+    Result reconcileSeckillStock(boolean repair);
 }
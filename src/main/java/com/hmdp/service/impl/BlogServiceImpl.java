@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
@@ -10,11 +9,11 @@ import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
@@ -29,6 +28,7 @@ import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -48,6 +48,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private IFollowService followService;
+    @Resource
+    private IdBloomFilter idBloomFilter;
 
     private final RabbitTemplate rabbitTemplate;
 
@@ -64,6 +66,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess) {
             return Result.fail("新增blog失败!");
         }
+        idBloomFilter.add(IdBloomFilter.BLOG, blog.getId());
         // 3.查询blog作者的所有粉丝 select * from tb_follow where follow_user_id = 当前用户id
         List<Follow> follows = followService.query().eq("follow_user_id", userDTO.getId()).list();
         // 4.推送笔记id给所有粉丝
@@ -127,9 +130,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         List<Blog> blogs = query().in("id", blogIds).last("ORDER BY FIELD(id," + blogIdsStr + ")").list();
 
         // 6.处理每个blog--点赞数
+        // 6.1 批量查询blog相关用户
+        queryBlogUsers(blogs);
         for (Blog blog : blogs) {
-            // 6.1 查询blog相关用户
-            queryBlogUser(blog);
             // 6.2 查询blog是否被当前用户点赞了，并设置blog对应成员变量
             isBlogLiked(blog);
         }
@@ -156,9 +159,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         // 获取当前页数据
         List<Blog> records = page.getRecords();
 
+        // 批量查询blog相关用户
+        this.queryBlogUsers(records);
         records.forEach(blog -> {
-            // 查询blog相关用户
-            this.queryBlogUser(blog);
             // 查询blog是否被当前用户点赞了，并设置blog对应成员
             this.isBlogLiked(blog);
         });
@@ -172,8 +175,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      */
     @Override
     public Result qeryBlogById(Long id) {
-        // 1.查询blog
-        Blog blog = getById(id);
+        // 1.查询blog（布隆过滤器判断一定不存在的id不查数据库）
+        Blog blog = idBloomFilter.mightContain(IdBloomFilter.BLOG, id) ? getById(id) : null;
         if (blog == null) {
             return Result.fail("blog不存在!");
         }
@@ -272,13 +275,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         // 2.解析出其中的用户id
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idStr = StrUtil.join(",", ids);      // 把list拼接为字符串
-        // 3.根据用户id查询用户     按条件顺序排序: WHERE id IN (5,1) ORDER BY FIELD(id, 5, 1)
-        List<UserDTO> userDTOs = userService.query()
-                .in("id", ids)
-                .last("ORDER BY FIELD(id," + idStr + ")").list()
+        // 3.根据用户id批量查询用户（走缓存），结果和ids顺序相同
+        List<UserDTO> userDTOs = userService.queryUserDTOs(ids)
                 .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                .filter(Objects::nonNull)
                 .collect(Collectors.toList());
         // 4.返回
         return Result.ok(userDTOs);
@@ -288,10 +288,31 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      * 查询blog相关用户，封装用户部分消息
      */
     private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
+        UserDTO user = userService.queryUserDTO(blog.getUserId());
+        if (user == null) {
+            return;
+        }
         // blog显示用户昵称、头像
         blog.setName(user.getNickName());
         blog.setIcon(user.getIcon());
     }
+
+    /**
+     * 批量查询blog相关用户（一次MGET + 未命中的一次IN查询），封装用户部分消息
+     */
+    private void queryBlogUsers(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        List<UserDTO> users = userService.queryUserDTOs(userIds);
+        for (int i = 0; i < blogs.size(); i++) {
+            UserDTO user = users.get(i);
+            if (user != null) {
+                // blog显示用户昵称、头像
+                blogs.get(i).setName(user.getNickName());
+                blogs.get(i).setIcon(user.getIcon());
+            }
+        }
+    }
 }
@@ -0,0 +1,162 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.mapper.CacheOutboxMapper;
+import com.hmdp.service.ICacheOutboxService;
+import com.hmdp.utils.CacheClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 缓存删除的事务outbox
+ * <p>
+ * 1.业务事务里写入tb_cache_outbox，和数据库更新一起提交或回滚，进程宕机也不会丢失缓存删除；<br>
+ * 2.事务提交后唤醒中继线程（只有一个，多次唤醒合并成一次），按到期时间分批取出任务，一条DEL删除这一批key，再用pipeline广播本地缓存失效；<br>
+ * 3.第一次删除成功后，任务改成 outboxDoubleDeleteDelayMillis 之后再删一次（延迟双删，清掉并发读者在提交前读到旧数据后写回的缓存），第二次成功后删除任务；<br>
+ * 4.删除失败的任务按失败次数退避后重试，不丢弃；定时任务（CacheOutboxRelayJob）兜底处理延迟双删、重试和宕机前没处理完的任务。
+ * </p>
+ * 多个节点可能同时处理同一个任务，删除缓存是幂等的，没关系。
+ */
+@Slf4j
+@Service
+public class CacheOutboxServiceImpl extends ServiceImpl<CacheOutboxMapper, CacheOutbox> implements ICacheOutboxService {
+
+    private static final long RETRY_MIN_MILLIS = 500;      // 删除失败后的重试间隔，每次翻倍
+    private static final long RETRY_MAX_MILLIS = 60000;
+
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private CacheProperties cacheProperties;
+
+    private final ExecutorService relayExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "cache-outbox-relay");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean relayScheduled = new AtomicBoolean();
+
+    @PreDestroy
+    public void destroy() {
+        relayExecutor.shutdownNow();
+    }
+
+    @Override
+    @Transactional
+    public void add(Collection<String> keys) {
+        LocalDateTime now = LocalDateTime.now();
+        List<CacheOutbox> tasks = new ArrayList<>(keys.size());
+        for (String key : new LinkedHashSet<>(keys)) {
+            tasks.add(new CacheOutbox()
+                    .setCacheKey(key)
+                    .setPhase(CacheOutbox.PHASE_DELETE)
+                    .setAttempts(0)
+                    .setNextTime(now));
+        }
+        saveBatch(tasks);
+        // 提交后再删除缓存，提交前删除的话，并发的读者还会把旧数据写回缓存
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                triggerRelay();
+            }
+        });
+    }
+
+    @Override
+    public int relay() {
+        int total = 0;
+        int batchSize = Math.max(1, cacheProperties.getOutboxBatchSize());
+        while (true) {
+            int count = relayBatch(batchSize);
+            total += count;
+            if (count < batchSize) {
+                return total;
+            }
+        }
+    }
+
+    // 唤醒中继线程，正在等待执行的只保留一个
+    private void triggerRelay() {
+        if (!relayScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        relayExecutor.execute(() -> {
+            relayScheduled.set(false);
+            try {
+                relay();
+            } catch (Exception e) {
+                // 定时任务会再处理
+                log.error("处理缓存删除任务异常", e);
+            }
+        });
+    }
+
+    // 处理一批到期的任务，返回取到的任务数
+    private int relayBatch(int batchSize) {
+        LocalDateTime now = LocalDateTime.now();
+        List<CacheOutbox> tasks = query()
+                .le("next_time", now)
+                .orderByAsc("next_time")
+                .last("limit " + batchSize)
+                .list();
+        if (tasks.isEmpty()) {
+            return 0;
+        }
+        Set<String> keys = new LinkedHashSet<>();
+        for (CacheOutbox task : tasks) {
+            keys.add(task.getCacheKey());
+        }
+        try {
+            cacheClient.evictAll(keys);
+        } catch (Exception e) {
+            log.error("删除缓存失败，稍后重试, keys: {}", keys.size(), e);
+            for (CacheOutbox task : tasks) {
+                int attempts = task.getAttempts() + 1;
+                long backoff = Math.min(RETRY_MIN_MILLIS << Math.min(attempts - 1, 20), RETRY_MAX_MILLIS);
+                task.setAttempts(attempts).setNextTime(now.plusNanos(backoff * 1_000_000));
+            }
+            updateBatchById(tasks);
+            return tasks.size();
+        }
+        // 第一次删除的改成延迟双删，第二次删除的任务完成
+        List<CacheOutbox> delayed = new ArrayList<>();
+        List<Long> finished = new ArrayList<>();
+        LocalDateTime doubleDeleteTime = now.plusNanos(cacheProperties.getOutboxDoubleDeleteDelayMillis() * 1_000_000);
+        for (CacheOutbox task : tasks) {
+            if (task.getPhase() == CacheOutbox.PHASE_DELETE && cacheProperties.getOutboxDoubleDeleteDelayMillis() > 0) {
+                delayed.add(new CacheOutbox()
+                        .setId(task.getId())
+                        .setPhase(CacheOutbox.PHASE_DOUBLE_DELETE)
+                        .setAttempts(0)
+                        .setNextTime(doubleDeleteTime));
+            } else {
+                finished.add(task.getId());
+            }
+        }
+        if (!delayed.isEmpty()) {
+            updateBatchById(delayed);
+        }
+        if (!finished.isEmpty()) {
+            removeByIds(finished);
+        }
+        return tasks.size();
+    }
+}
@@ -0,0 +1,507 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.dto.SeckillStockReport;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillStockReconcileService;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LEASE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+import static com.hmdp.utils.SystemConstants.ORDER_CANCELLED;
+import static com.hmdp.utils.SystemConstants.ORDER_REFUNDED;
+
+/**
+ * 秒杀库存对账：redis里的库存、已购用户 和 数据库里的库存、订单对不上时报告差异，可选修复redis库存
+ * <p>
+ * 每张预热过的券（SCAN seckill:voucher:*）应该满足：<br>
+ * 1.redis库存（各分片之和）+ 租约上还没卖的库存 + 在途订单 = tb_seckill_voucher.stock；<br>
+ * 2.已购用户数（SCARD，bitmap券再加上 BITCOUNT）= 有效订单数（未取消、未退款）+ 在途订单。<br>
+ * 在途订单是订单stream里还没ACK的消息（pending-list里的 + 还没投递的），加上死信stream里的消息：
+ * 死信已经ACK了，但还占着redis库存和已购用户、没有入库，重放后才会入库，不算在途的话修复会把这份库存再还回redis，重放后卖两次。
+ * </p>
+ * <p>
+ * 全程SCAN + pipeline按批读取，大bitmap分段BITCOUNT，高峰期跑也不会阻塞redis。
+ * 几个数据源不是同一时刻读的（订单入库和ACK之间、取消订单和还redis库存之间都有短暂的差异），
+ * 所以有差异的券隔一会儿再查一次，两次差值一样才算真的不一致。第二遍是提交到对账线程的延时任务，不在调用线程上sleep，
+ * 不会占住共用的@Scheduled线程。修复只改redis库存并且是CAS，期间库存变了就等下一轮；
+ * 已购用户数只报告不修复（不知道该删掉哪个用户）。
+ * </p>
+ */
+@Slf4j
+@Service
+public class SeckillStockReconcileServiceImpl implements ISeckillStockReconcileService {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    private static final DefaultRedisScript<Long> RECONCILE_SCRIPT;
+
+    static {
+        RECONCILE_SCRIPT = new DefaultRedisScript<>();
+        RECONCILE_SCRIPT.setLocation(new ClassPathResource("seckill_stock_reconcile.lua"));
+        RECONCILE_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final long CONFIRM_DELAY_MILLIS = 500;       // 有差异的券隔多久再查一次
+    private static final int SCAN_COUNT = 200;
+    private static final long BITCOUNT_CHUNK_BYTES = 1 << 20;   // bitmap每次BITCOUNT 1MB
+    private static final int STREAM_PAGE_SIZE = 500;
+
+    // 第二遍检查的延时任务
+    private final ScheduledExecutorService confirmExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "seckill-stock-reconcile");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PreDestroy
+    public void destroy() {
+        confirmExecutor.shutdownNow();
+    }
+
+    @Override
+    public CompletableFuture<List<SeckillStockReport>> reconcile(boolean repair) {
+        List<Long> voucherIds = scanVoucherIds();
+        if (voucherIds.isEmpty()) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+        // 1.第一遍：所有券
+        Map<Long, SeckillStockReport> suspects = new HashMap<>();
+        for (SeckillStockReport report : check(voucherIds)) {
+            if (!report.isConsistent()) {
+                suspects.put(report.getVoucherId(), report);
+            }
+        }
+        if (suspects.isEmpty()) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+        // 2.第二遍：隔一会儿在对账线程上只查有差异的券
+        CompletableFuture<List<SeckillStockReport>> future = new CompletableFuture<>();
+        confirmExecutor.schedule(() -> {
+            try {
+                future.complete(confirm(suspects, repair));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }, CONFIRM_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    // 两次差值一样才算不一致
+    private List<SeckillStockReport> confirm(Map<Long, SeckillStockReport> suspects, boolean repair) {
+        List<SeckillStockReport> mismatched = new ArrayList<>();
+        for (SeckillStockReport report : check(new ArrayList<>(suspects.keySet()))) {
+            SeckillStockReport before = suspects.get(report.getVoucherId());
+            if (report.isConsistent() || report.getStockDiff() != before.getStockDiff()
+                    || report.getBuyerDiff() != before.getBuyerDiff()) {
+                continue;
+            }
+            if (repair && report.isInFlightComplete() && report.getStockDiff() != 0) {
+                repairStock(report);
+            }
+            mismatched.add(report);
+        }
+        return mismatched;
+    }
+
+    // 分批检查，在途订单每次统计一遍所有stream（stream里的消息不按券分开）
+    private List<SeckillStockReport> check(List<Long> voucherIds) {
+        InFlight inFlight = countInFlight();
+        int batchSize = Math.max(1, seckillProperties.getReconcileBatchSize());
+        List<SeckillStockReport> reports = new ArrayList<>(voucherIds.size());
+        for (int from = 0; from < voucherIds.size(); from += batchSize) {
+            List<Long> batch = voucherIds.subList(from, Math.min(from + batchSize, voucherIds.size()));
+            try {
+                reports.addAll(checkBatch(batch, inFlight));
+            } catch (Exception e) {
+                log.error("秒杀库存对账异常, voucherIds: {}", batch, e);
+            }
+        }
+        return reports;
+    }
+
+    // SCAN seckill:voucher:* 找出所有预热过的券
+    private List<Long> scanVoucherIds() {
+        ScanOptions options = ScanOptions.scanOptions().match(SECKILL_VOUCHER_KEY + "*").count(SCAN_COUNT).build();
+        List<Long> voucherIds = stringRedisTemplate.execute((RedisCallback<List<Long>>) connection -> {
+            List<Long> ids = new ArrayList<>();
+            try (Cursor<byte[]> cursor = connection.scan(options)) {
+                while (cursor.hasNext()) {
+                    String key = new String(cursor.next(), StandardCharsets.UTF_8);
+                    try {
+                        ids.add(Long.valueOf(key.substring(SECKILL_VOUCHER_KEY.length())));
+                    } catch (NumberFormatException ignored) {
+                        // 不是券的元数据
+                    }
+                }
+            } catch (Exception e) {
+                log.error("扫描秒杀券异常", e);
+            }
+            return ids;
+        });
+        return voucherIds == null ? Collections.emptyList() : voucherIds;
+    }
+
+    private List<SeckillStockReport> checkBatch(List<Long> voucherIds, InFlight inFlight) {
+        // 1.元数据 HMGET seckill:voucher:{id} shards dedupe
+        List<Object> metas = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long voucherId : voucherIds) {
+                conn.hMGet(SECKILL_VOUCHER_KEY + voucherId, "shards", "dedupe");
+            }
+            return null;
+        });
+        int[] shards = new int[voucherIds.size()];
+        String[] dedupes = new String[voucherIds.size()];
+        for (int i = 0; i < voucherIds.size(); i++) {
+            List<?> meta = (List<?>) metas.get(i);
+            shards[i] = meta.get(0) == null ? 1 : Integer.parseInt(meta.get(0).toString());
+            dedupes[i] = SeckillKeys.dedupeType(meta.get(1));
+        }
+        // 2.库存、已购用户、租约：GET 各分片库存，SCARD 已购用户set（bitmap券再 STRLEN bitmap），HVALS 租约
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < voucherIds.size(); i++) {
+                Long voucherId = voucherIds.get(i);
+                for (int s = 0; s < shards[i]; s++) {
+                    conn.get(SeckillKeys.stockKey(voucherId, s, shards[i]));
+                }
+                for (int s = 0; s < shards[i]; s++) {
+                    // bitmap券上偏移量超过上限的用户存在set里，两个都要数
+                    if (SeckillKeys.DEDUPE_BITMAP.equals(dedupes[i])) {
+                        conn.strLen(SeckillKeys.orderBitmapKey(voucherId, s, shards[i]));
+                    }
+                    conn.sCard(SeckillKeys.orderKey(voucherId, s, shards[i]));
+                }
+                conn.hVals(SECKILL_LEASE_KEY + voucherId);
+            }
+            return null;
+        });
+        Map<Long, SeckillStockReport> reports = new HashMap<>();
+        Map<String, Long> bitmapLengths = new HashMap<>();
+        int index = 0;
+        for (int i = 0; i < voucherIds.size(); i++) {
+            Long voucherId = voucherIds.get(i);
+            SeckillStockReport report = new SeckillStockReport();
+            report.setVoucherId(voucherId);
+            List<Long> shardStocks = new ArrayList<>(shards[i]);
+            boolean warm = false;
+            for (int s = 0; s < shards[i]; s++) {
+                Object stock = values.get(index++);
+                warm |= stock != null;
+                shardStocks.add(stock == null ? 0L : Long.parseLong(stock.toString()));
+            }
+            long buyers = 0;
+            for (int s = 0; s < shards[i]; s++) {
+                if (SeckillKeys.DEDUPE_BITMAP.equals(dedupes[i])) {
+                    bitmapLengths.put(SeckillKeys.orderBitmapKey(voucherId, s, shards[i]), (Long) values.get(index++));
+                }
+                buyers += (Long) values.get(index++);
+            }
+            long leased = 0;
+            for (Object v : (List<?>) values.get(index++)) {
+                leased += Long.parseLong(v.toString());
+            }
+            if (!warm) {
+                // 库存key已经没了（券刚被清理），跳过
+                continue;
+            }
+            report.setShardStocks(shardStocks);
+            report.setRedisStock(shardStocks.stream().mapToLong(Long::longValue).sum());
+            report.setLeasedStock(leased);
+            report.setRedisBuyers(buyers);
+            reports.put(voucherId, report);
+        }
+        if (reports.isEmpty()) {
+            return Collections.emptyList();
+        }
+        // 3.bitmap分段BITCOUNT，一次数完大bitmap会阻塞redis
+        if (!bitmapLengths.isEmpty()) {
+            countBitmaps(bitmapLengths, reports);
+        }
+        // 4.数据库：库存、有效订单数
+        // select voucher_id, count(*) from tb_voucher_order where voucher_id in (...) and status not in (4, 6) group by voucher_id
+        Map<Long, Long> dbStocks = new HashMap<>();
+        for (SeckillVoucher voucher : seckillVoucherService.listByIds(reports.keySet())) {
+            dbStocks.put(voucher.getVoucherId(), voucher.getStock().longValue());
+        }
+        Map<Long, Long> dbOrders = new HashMap<>();
+        for (Map<String, Object> row : voucherOrderService.listMaps(new QueryWrapper<VoucherOrder>()
+                .select("voucher_id", "count(*) AS cnt")
+                .in("voucher_id", reports.keySet())
+                .notIn("status", ORDER_CANCELLED, ORDER_REFUNDED)
+                .groupBy("voucher_id"))) {
+            dbOrders.put(((Number) row.get("voucher_id")).longValue(), ((Number) row.get("cnt")).longValue());
+        }
+        // 5.比较
+        List<SeckillStockReport> result = new ArrayList<>(reports.size());
+        for (SeckillStockReport report : reports.values()) {
+            Long dbStock = dbStocks.get(report.getVoucherId());
+            if (dbStock == null) {
+                // 数据库里没有这张券（测试数据/已删除），没法对账
+                continue;
+            }
+            long inFlightOrders = inFlight.counts.getOrDefault(report.getVoucherId(), 0L);
+            report.setInFlightOrders(inFlightOrders);
+            report.setInFlightComplete(inFlight.complete);
+            report.setDbStock(dbStock);
+            report.setDbOrders(dbOrders.getOrDefault(report.getVoucherId(), 0L));
+            report.setStockDiff(dbStock - inFlightOrders - report.getLeasedStock() - report.getRedisStock());
+            report.setBuyerDiff(report.getRedisBuyers() - report.getDbOrders() - inFlightOrders);
+            result.add(report);
+        }
+        return result;
+    }
+
+    private void countBitmaps(Map<String, Long> bitmapLengths, Map<Long, SeckillStockReport> reports) {
+        List<String> keys = new ArrayList<>(bitmapLengths.keySet());
+        List<Object> counts = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String key : keys) {
+                long length = bitmapLengths.get(key);
+                for (long start = 0; start < length; start += BITCOUNT_CHUNK_BYTES) {
+                    conn.bitCount(key, start, Math.min(start + BITCOUNT_CHUNK_BYTES, length) - 1);
+                }
+            }
+            return null;
+        });
+        int index = 0;
+        for (String key : keys) {
+            long length = bitmapLengths.get(key);
+            long buyers = 0;
+            for (long start = 0; start < length; start += BITCOUNT_CHUNK_BYTES) {
+                buyers += (Long) counts.get(index++);
+            }
+            SeckillStockReport report = reports.get(voucherIdOfBitmap(key));
+            if (report != null) {
+                report.setRedisBuyers(report.getRedisBuyers() + buyers);
+            }
+        }
+    }
+
+    // seckill:bitmap:{voucherId} 或 seckill:bitmap:{{voucherId:i}}
+    private static Long voucherIdOfBitmap(String key) {
+        String s = key.substring(RedisConstants.SECKILL_ORDER_BITMAP_KEY.length());
+        if (s.startsWith("{")) {
+            s = s.substring(1, s.indexOf(':'));
+        }
+        return Long.valueOf(s);
+    }
+
+    // 统计所有订单stream里还没ACK的消息和死信，按券计数
+    private InFlight countInFlight() {
+        InFlight inFlight = new InFlight();
+        for (String key : seckillProperties.orderStreamKeys()) {
+            try {
+                countInFlight(key, inFlight);
+            } catch (Exception e) {
+                log.error("统计在途订单异常, stream: {}", key, e);
+                inFlight.complete = false;
+            }
+        }
+        try {
+            countDeadLetters(inFlight);
+        } catch (Exception e) {
+            log.error("统计订单死信异常", e);
+            inFlight.complete = false;
+        }
+        return inFlight;
+    }
+
+    // 死信stream里的每条消息都还占着一份redis库存 XRANGE stream.orders.dlq - + COUNT n
+    private void countDeadLetters(InFlight inFlight) {
+        StreamOperations<String, Object, Object> ops = stringRedisTemplate.opsForStream();
+        long limit = seckillProperties.getReconcileStreamScanLimit();
+        long scanned = 0;
+        RecordId last = null;
+        Range<String> range = Range.unbounded();
+        while (true) {
+            List<MapRecord<String, Object, Object>> page = ops.range(SECKILL_ORDER_DLQ, range,
+                    RedisZSetCommands.Limit.limit().count(STREAM_PAGE_SIZE));
+            if (page == null || page.isEmpty()) {
+                return;
+            }
+            for (MapRecord<String, Object, Object> record : page) {
+                if (last != null && compare(record.getId(), last) <= 0) {
+                    // 上一页的最后一条
+                    continue;
+                }
+                last = record.getId();
+                Object voucherId = record.getValue().get("voucherId");
+                if (voucherId != null) {
+                    inFlight.counts.merge(Long.valueOf(voucherId.toString()), 1L, Long::sum);
+                }
+            }
+            scanned += page.size();
+            if (page.size() < STREAM_PAGE_SIZE) {
+                return;
+            }
+            if (scanned >= limit) {
+                log.warn("订单死信超过{}条，没有统计完", limit);
+                inFlight.complete = false;
+                return;
+            }
+            range = Range.rightUnbounded(Range.Bound.inclusive(last.getValue()));
+        }
+    }
+
+    private void countInFlight(String key, InFlight inFlight) {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(key))) {
+            return;
+        }
+        StreamOperations<String, Object, Object> ops = stringRedisTemplate.opsForStream();
+        long limit = seckillProperties.getReconcileStreamScanLimit();
+        // 1.消费者组投递到哪了 XINFO GROUPS
+        RecordId lastDelivered = RecordId.of("0-0");
+        boolean hasGroup = false;
+        for (StreamInfo.XInfoGroup group : ops.groups(key)) {
+            if (SECKILL_ORDER_GROUP.equals(group.groupName())) {
+                lastDelivered = RecordId.of(group.lastDeliveredId());
+                hasGroup = true;
+            }
+        }
+        // 2.投递了还没ACK的 XPENDING stream.orders g1 - + n
+        Set<String> pendingIds = new HashSet<>();
+        RecordId from = lastDelivered;
+        if (hasGroup) {
+            Range<String> range = Range.unbounded();
+            while (pendingIds.size() < limit) {
+                PendingMessages page = ops.pending(key, SECKILL_ORDER_GROUP, range, (long) STREAM_PAGE_SIZE);
+                String last = null;
+                for (PendingMessage message : page) {
+                    last = message.getIdAsString();
+                    if (pendingIds.add(last) && compare(message.getId(), from) < 0) {
+                        from = message.getId();
+                    }
+                }
+                if (page.size() < STREAM_PAGE_SIZE) {
+                    break;
+                }
+                range = Range.rightUnbounded(Range.Bound.inclusive(last));
+            }
+        }
+        // 3.从最早的pending消息往后读，pending的和还没投递的就是在途订单 XRANGE stream.orders from + COUNT n
+        long scanned = 0;
+        RecordId last = null;
+        while (true) {
+            List<MapRecord<String, Object, Object>> page = ops.range(key,
+                    Range.rightUnbounded(Range.Bound.inclusive(from.getValue())),
+                    RedisZSetCommands.Limit.limit().count(STREAM_PAGE_SIZE));
+            if (page == null || page.isEmpty()) {
+                break;
+            }
+            for (MapRecord<String, Object, Object> record : page) {
+                RecordId id = record.getId();
+                if (last != null && compare(id, last) <= 0) {
+                    // 上一页的最后一条
+                    continue;
+                }
+                last = id;
+                if (pendingIds.contains(id.getValue()) || compare(id, lastDelivered) > 0) {
+                    Object voucherId = record.getValue().get("voucherId");
+                    if (voucherId != null) {
+                        inFlight.counts.merge(Long.valueOf(voucherId.toString()), 1L, Long::sum);
+                    }
+                }
+            }
+            scanned += page.size();
+            if (page.size() < STREAM_PAGE_SIZE) {
+                break;
+            }
+            if (scanned >= limit) {
+                // 积压太多，不统计完了，这一轮只报告不修复
+                log.warn("订单stream积压超过{}条，在途订单没有统计完, stream: {}", limit, key);
+                inFlight.complete = false;
+                break;
+            }
+            from = last;
+        }
+    }
+
+    private static int compare(RecordId a, RecordId b) {
+        int c = Long.compare(a.getTimestamp(), b.getTimestamp());
+        return c != 0 ? c : Long.compare(a.getSequence(), b.getSequence());
+    }
+
+    // 把差值加到库存最多（补库存时任选一个，扣库存时扣得最多）的分片上
+    private void repairStock(SeckillStockReport report) {
+        List<Long> shardStocks = report.getShardStocks();
+        int shard = 0;
+        for (int s = 1; s < shardStocks.size(); s++) {
+            if (shardStocks.get(s) > shardStocks.get(shard)) {
+                shard = s;
+            }
+        }
+        Long voucherId = report.getVoucherId();
+        Long r = stringRedisTemplate.execute(
+                RECONCILE_SCRIPT,
+                Collections.singletonList(SeckillKeys.stockKey(voucherId, shard, shardStocks.size())),
+                shardStocks.get(shard).toString(), String.valueOf(report.getStockDiff())
+        );
+        if (r == null || r != 1) {
+            log.warn("秒杀库存在对账期间有变化，放弃本次修复, voucherId: {}", voucherId);
+            return;
+        }
+        report.setRepaired(true);
+        log.warn("修复秒杀库存, voucherId: {}, 分片: {}, redis库存: {}, 调整: {}",
+                voucherId, shard, report.getRedisStock(), report.getStockDiff());
+        if (report.getStockDiff() > 0) {
+            seckillSoldOutRegistry.reset(voucherId);
+        }
+    }
+
+    // 在途订单：voucherId -> 条数
+    private static class InFlight {
+        private final Map<Long, Long> counts = new HashMap<>();
+        private boolean complete = true;
+    }
+}
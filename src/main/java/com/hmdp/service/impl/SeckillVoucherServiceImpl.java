@@ -1,11 +1,25 @@
 package com.hmdp.service.impl;
 
+import com.hmdp.config.SeckillProperties;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.SeckillKeys;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.*;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
@@ -14,7 +28,76 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2022-01-04
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    /**
+     * 秒杀券预热到redis，元数据记在 seckill:voucher:{voucherId} 里：
+     * shards-分片数，dedupe-一人一单存法，begin/end-秒杀时间窗口（毫秒时间戳，lua脚本据此拒绝窗口外的请求）；
+     * 入场令牌桶 seckill:admission:{voucherId} 的limit字段记录最多发放的入场券数
+     */
+    @Override
+    public boolean warmUpSeckillVoucher(SeckillVoucher voucher, int shards) {
+        Long voucherId = voucher.getVoucherId();
+        String metaKey = SECKILL_VOUCHER_KEY + voucherId;
+        boolean loaded = false;
+        Object warmShards = stringRedisTemplate.opsForHash().get(metaKey, "shards");
+        if (warmShards != null) {
+            // 已经预热过（可能已经开卖了），库存以redis为准，只刷新元数据
+            shards = Integer.parseInt(warmShards.toString());
+        } else {
+            // 库存均分到shards个分片（除不尽的余数从0号分片开始各多分1个），多个节点同时预热时只有一个能写进去
+            int stock = voucher.getStock();
+            for (int i = 0; i < shards; i++) {
+                int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+                Boolean ok = stringRedisTemplate.opsForValue()
+                        .setIfAbsent(SeckillKeys.stockKey(voucherId, i, shards), String.valueOf(shardStock));
+                loaded |= Boolean.TRUE.equals(ok);
+            }
+        }
+        Map<String, String> meta = new HashMap<>();
+        meta.put("shards", String.valueOf(shards));
+        meta.put("dedupe", SeckillKeys.dedupeType(voucher.getDedupeType()));
+        meta.put("begin", String.valueOf(toMillis(voucher.getBeginTime())));
+        meta.put("end", String.valueOf(toMillis(voucher.getEndTime())));
+        stringRedisTemplate.opsForHash().putAll(metaKey, meta);
+        // 入场令牌桶最多发放的令牌数（开启排队入场时用）
+        long tickets = (long) Math.ceil(voucher.getStock() * Math.max(1, seckillProperties.getAdmissionOverbook()));
+        stringRedisTemplate.opsForHash().putIfAbsent(SECKILL_ADMISSION_KEY + voucherId, "limit", String.valueOf(tickets));
+        stringRedisTemplate.opsForSet().add(SECKILL_WARM_VOUCHERS_KEY, voucherId.toString());
+        return loaded;
+    }
+
+    @Override
+    public void tearDownSeckillVoucher(Long voucherId) {
+        String metaKey = SECKILL_VOUCHER_KEY + voucherId;
+        Object value = stringRedisTemplate.opsForHash().get(metaKey, "shards");
+        int shards = value == null ? 1 : Integer.parseInt(value.toString());
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            keys.add(SeckillKeys.stockKey(voucherId, i, shards));
+            keys.add(SeckillKeys.orderKey(voucherId, i, shards));
+            keys.add(SeckillKeys.orderBitmapKey(voucherId, i, shards));
+            keys.add(SeckillKeys.returnedKey(voucherId, i, shards));
+        }
+        keys.add(SECKILL_LEASE_KEY + voucherId);
+        keys.add(SECKILL_ADMISSION_KEY + voucherId);
+        keys.add(SECKILL_ADMISSION_TICKET_KEY + voucherId);
+        keys.add(metaKey);
+        stringRedisTemplate.delete(keys);
+        stringRedisTemplate.opsForSet().remove(SECKILL_LEASE_VOUCHERS_KEY, voucherId.toString());
+        stringRedisTemplate.opsForSet().remove(SECKILL_WARM_VOUCHERS_KEY, voucherId.toString());
+        log.info("秒杀券已结束，清理redis中的key, voucherId: {}", voucherId);
+    }
+
+    // 没有设置时间的按不限制处理（0）
+    private static long toMillis(LocalDateTime time) {
+        return time == null ? 0 : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
 }
@@ -8,7 +8,11 @@ import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.CacheMetrics;
 import com.hmdp.utils.RedisConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
@@ -20,12 +24,22 @@ import java.util.stream.Collectors;
 /**
  * 店铺类型-服务实现类
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisTemplate<String, byte[]> byteRedisTemplate;
+
+    @Resource
+    private CacheCodec cacheCodec;
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
     /**
      * 查询店铺分类列表
      * case1: redis中value数据类型是String
@@ -54,34 +68,42 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
 
     /**
      * 查询店铺分类列表
-     * case2: redis中value数据类型是List
+     * case2: redis中value数据类型是List，每个元素由CacheCodec编码（json或二进制）
      */
     @Override
     public Result queryShopTypeList() {
         // 1.查缓存中是否有店铺分类数据
         String key = "cache:type-list";
-        List<String> shopTypeListJson = stringRedisTemplate.opsForList().range(key, 0, -1);
+        CacheMetrics.Stats stats = cacheMetrics.of(key);
+        List<byte[]> cachedList = byteRedisTemplate.opsForList().range(key, 0, -1);
         // 2.缓存中有，直接返回
-        if (shopTypeListJson != null && !shopTypeListJson.isEmpty()) {
-            List<ShopType> shopTypeList = shopTypeListJson.stream().map(s -> {
-                ShopType shopType = JSONUtil.toBean(s, ShopType.class);
-                return shopType;
-            }).collect(Collectors.toList());
-
-            return Result.ok(shopTypeList);
+        if (cachedList != null && !cachedList.isEmpty()) {
+            try {
+                List<ShopType> shopTypeList = cachedList.stream()
+                        .map(bytes -> cacheCodec.decode(bytes, ShopType.class))
+                        .collect(Collectors.toList());
+                stats.redisHit();
+                return Result.ok(shopTypeList);
+            } catch (Exception e) {
+                // 格式不对（类的字段改了），删掉缓存重新查
+                log.warn("店铺分类缓存解码失败，重新加载, {}", e.getMessage());
+                stats.decodeFail();
+                byteRedisTemplate.delete(key);
+            }
         }
+        stats.redisMiss();
         // 3.缓存中没有，查询数据库
+        long begin = System.currentTimeMillis();
         List<ShopType> typeList = query().orderByAsc("sort").list();
         // 4.数据库没有，返回报错信息
         if (typeList == null || typeList.isEmpty()) {
+            stats.dbLoad(System.currentTimeMillis() - begin);
             return Result.fail("店铺分类不存在");
         }
         // 5.写入redis缓存
-        List<String> typeList2Json = typeList.stream().map(s -> {
-            String json = JSONUtil.toJsonStr(s);
-            return json;
-        }).collect(Collectors.toList());
-        stringRedisTemplate.opsForList().rightPushAll(key, typeList2Json); // rpush第一个放入的元素在最左边
+        List<byte[]> encodedList = typeList.stream().map(cacheCodec::encode).collect(Collectors.toList());
+        byteRedisTemplate.opsForList().rightPushAll(key, encodedList); // rpush第一个放入的元素在最左边
+        stats.dbLoad(System.currentTimeMillis() - begin);
         // 6.返回
         return Result.ok(typeList);
     }
@@ -11,6 +11,8 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilter;
 import com.hmdp.utils.RegexUtils;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.BeanUtils;
@@ -21,8 +23,10 @@ import org.springframework.stereotype.Service;
 import javax.servlet.http.HttpSession;
 import java.time.LocalDateTime;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
@@ -37,6 +41,12 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    @Autowired
+    private IdBloomFilter idBloomFilter;
+
+    @Autowired
+    private CacheClient cacheClient;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         // 1.校验手机号
@@ -100,6 +110,23 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(token);
     }
 
+    @Override
+    public UserDTO queryUserDTO(Long id) {
+        return cacheClient.queryWithCachePenetrate(CACHE_USER_KEY, id, UserDTO.class,
+                id2 -> {
+                    User user = getById(id2);
+                    return user == null ? null : BeanUtil.copyProperties(user, UserDTO.class);
+                }, CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public List<UserDTO> queryUserDTOs(List<Long> ids) {
+        return cacheClient.queryMany(CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> listByIds(missIds).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
     private User creatrUserWithPhone(String phone) {
         // 1.创建用户
         User user = new User();
@@ -110,6 +137,7 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
         // 2.保存用户（用mybatisplus）
         save(user);
+        idBloomFilter.add(IdBloomFilter.USER, user.getId());
 
         return user;
     }
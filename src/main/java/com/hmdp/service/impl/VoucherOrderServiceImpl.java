@@ -1,6 +1,8 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.config.SeckillProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
@@ -8,29 +10,35 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.IdWorker;
+import com.hmdp.utils.SeckillAdmission;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockLease;
 import com.hmdp.utils.SimpleRedisLock;
 import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.VoucherOrderDelayQueue;
 import lombok.Synchronized;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
 import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
-import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.Duration;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.SystemConstants.*;
 
 /**
  * 优惠券订单服务实现类
@@ -42,11 +50,21 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private ISeckillVoucherService seckillVoucherService;   // 秒杀券service
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private IdWorker idWorker;     // hmdp.id.strategy=snowflake时是SnowflakeIdWorker，否则是RedisIdWorker
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillProperties seckillProperties;
+    @Resource
+    private SeckillStockLease seckillStockLease;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    @Resource
+    private SeckillAdmission seckillAdmission;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private VoucherOrderDelayQueue voucherOrderDelayQueue;
 
     // 优惠券秒杀，一人一单lua脚本
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
@@ -57,91 +75,49 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setResultType(Long.class);
     }
 
-    // 线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor(); // 单线程的线程池
+    // 分片库存的秒杀lua脚本：在home分片判断重复下单、登记用户、扣库存（每个脚本只访问一个slot）
+    private static final DefaultRedisScript<Long> SECKILL_SHARD_SCRIPT;
+    // 从兄弟分片扣减1个库存
+    private static final DefaultRedisScript<Long> SECKILL_SHARD_TAKE_SCRIPT;
+    // 下单没有完成时归还库存、撤销用户登记
+    private static final DefaultRedisScript<Long> SECKILL_SHARD_RELEASE_SCRIPT;
+    // 扣完库存后投递订单消息
+    private static final DefaultRedisScript<Long> SECKILL_ORDER_XADD_SCRIPT;
 
-    @PostConstruct  // 在这个类完成之后执行这个方法
-    private void init() {
-        // 异步线程，执行保存订单的任务
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+    static {
+        SECKILL_SHARD_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SECKILL_SHARD_SCRIPT.setResultType(Long.class);
+        SECKILL_SHARD_TAKE_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_TAKE_SCRIPT.setLocation(new ClassPathResource("seckill_shard_take.lua"));
+        SECKILL_SHARD_TAKE_SCRIPT.setResultType(Long.class);
+        SECKILL_SHARD_RELEASE_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SHARD_RELEASE_SCRIPT.setLocation(new ClassPathResource("seckill_shard_release.lua"));
+        SECKILL_SHARD_RELEASE_SCRIPT.setResultType(Long.class);
+        SECKILL_ORDER_XADD_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_ORDER_XADD_SCRIPT.setLocation(new ClassPathResource("seckill_order_xadd.lua"));
+        SECKILL_ORDER_XADD_SCRIPT.setResultType(Long.class);
     }
 
-    // 任务类
-    private class VoucherOrderHandler implements Runnable {
-
-        // 项目启动前，得在redis命令行输入，否则会死循环报错：xgroup create stream.orders g1 0 MKSTREAM
-        String queueName = "stream.orders";  // 消息队列名字
-
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    // 1.获取消息队列中的订单信息
-                    // XREADGROUP GROUP g1 c1(消费者组g1里的消费者c1) COUNT 1(1条) BLOCK 2000(阻塞2s) STREAMS stream.order(消息队列名) > (>表示读队列未被消费的消息)
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())   // 获取消息队列中未消费的消息 new ReadOffset(">")
-                    );
-                    // 2. 判断消息获取是否成功
-                    if (list == null || list.isEmpty()) {
-                        // 如果获取失败，说明消息队列没有新消息，继续下一次循环
-                        continue;
-                    }
-                    // 3. 解析消息中的订单消息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    // 4. 如果获取成功，可以下单，处理订单消息
-                    handleVoucherOrder(voucherOrder);
-                    // 5. ACK确认
-                    // redis命令: SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                    // 消息没有被确认(出现异常)，消息进入pending-list，要取出pending-list中的订单消息，继续处理并确认
-                    handlePendingList();
-                }
-            }
-        }
+    // 订单取消/退款后把库存还给redis（延时队列里的订单id作为标记，只还一次）
+    private static final DefaultRedisScript<Long> STOCK_RETURN_SCRIPT;
 
-        // 处理异常的消息（未确认的订单信息），即pending-list里的，确保异常的订单一定能得到处理
-        private void handlePendingList() {
-            while (true) {
-                try {
-                    // 1.获取pending-list中的订单信息
-                    // XREADGROUP GROUP g1 c1 COUNT 1 STREAMS stream.order 0（0表示不是从消息队列中取出消息，而是从pending-list中取出消息）
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-                    // 2. 判断消息获取是否成功
-                    if (list == null || list.isEmpty()) {
-                        // 获取失败，说明pending-list没有异常的订单信息，结束循环
-                        break;
-                    }
-                    // 3. 解析消息中的订单消息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    // 4. 如果获取成功，可以下单，处理订单消息
-                    handleVoucherOrder(voucherOrder);
-                    // 5. ACK确认 （确认pending-list里的消息，至pending-list清空）
-                    // SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理pending-list异常", e);
-                    try {
-                        Thread.sleep(20);   // 休眠下，避免太频繁
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                }
-            }
-        }
+    static {
+        STOCK_RETURN_SCRIPT = new DefaultRedisScript<>();
+        STOCK_RETURN_SCRIPT.setLocation(new ClassPathResource("seckill_stock_return.lua"));
+        STOCK_RETURN_SCRIPT.setResultType(Long.class);
     }
 
+    // 秒杀券的库存分片数、一人一单存法、时间窗口（本地缓存，避免每次下单都查一次）
+    // 预热时会刷新时间窗口、结束后会清理，所以写入后过期，清理/重新预热的券最多这么久后在所有节点上重新加载
+    private static final long VOUCHER_META_TTL_SECONDS = 60;
+    private final Cache<Long, VoucherMeta> voucherMetas = Caffeine.newBuilder()
+            .expireAfterWrite(VOUCHER_META_TTL_SECONDS, TimeUnit.SECONDS)
+            .maximumSize(10000)
+            .build();
+
+    // 消费stream.orders、异步保存订单的任务，见 com.hmdp.consumer.VoucherOrderStreamConsumer（多线程消费者池）
+
     //// 阻塞队列，次新版本（最新版本在上面，不再使用阻塞队列，改用消息队列）
     //private final BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
     //
@@ -162,31 +138,16 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     //    }
     //}
 
-    // 异步处理，不再需要返回值了
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        // 1.获取用户id（由于是线程池里的线程，不能再去UserHolder里获取userId了，子线程不能获取父线程的ThreadLocal）
-        Long userId = voucherOrder.getUserId();
-        // 2.创建锁对象(一个用户一把锁)
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        // 3.获取锁
-        boolean isLock = lock.tryLock();
-        // 4.判断是否获取锁成功
-        if (!isLock) {
-            // 获取锁失败
-            log.error("不允许重复下单");
-        }
-        try {
-            // 拿到线程的代理对象，异步执行创建订单
-            proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            // 释放锁
-            lock.unlock();
-        }
+    /**
+     * 异步处理订单（由stream消费者线程调用）
+     * 不再加 lock:order:{userId} 分布式锁：一人一单由 uk_user_voucher 唯一索引保证，同一用户并发写入时只有一条能插进去
+     */
+    public boolean handleVoucherOrder(VoucherOrder voucherOrder) {
+        // 拿到当前对象的代理对象（事务生效），执行创建订单
+        IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
+        return proxy.createVoucherOrder(voucherOrder);
     }
 
-    // 当前对象的代理对象（为了让子线程能够拿到父线程的同一个代理对象）
-    private IVoucherOrderService proxy;  // 获取当前对象的代理对象
-
 
     /**
      * [优惠券秒杀下单] 2.0最新版本：使用lua脚本+redis消息队列
@@ -194,22 +155,47 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      * @param voucherId 优惠券id
      */
     public Result seckillVoucher(Long voucherId) {
+        // 0.本地已标记售罄，直接返回，不再访问redis
+        if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
         // 获取用户id
         Long userId = UserHolder.getUser().getId();
         // 订单id
-        long orderId = redisIdWorker.generateId("order");
-        // 1.执行lua脚本，判断用户有无购买资格
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(), String.valueOf(orderId)
-        );
+        long orderId = idWorker.generateId("order");
+        // 1.执行lua脚本，判断用户有无购买资格（有资格则把订单消息投递到voucherId对应的stream分区）
+        VoucherMeta meta = getVoucherMeta(voucherId);
+        // bitmap券上偏移量超过上限的用户改用set，bitmap不会因为个别很大的userId膨胀
+        String dedupe = SeckillKeys.userDedupe(meta.dedupe, userId, meta.shards, seckillProperties.getBitmapMaxOffset());
+        long member = SeckillKeys.dedupeMember(userId, meta.shards, dedupe);
+        Long result;
+        if (meta.shards > 1) {
+            // 1.1 分片库存
+            result = seckillWithShards(voucherId, userId, orderId, meta, dedupe, member);
+        } else if (seckillStockLease.isEnabled()) {
+            // 1.2 节点本地库存租约：本地扣库存，redis只做一人一单
+            result = seckillStockLease.seckill(voucherId, userId, orderId, dedupe, member, meta.begin, meta.end);
+        } else {
+            result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId),
+                    seckillProperties.orderStreamKey(voucherId), dedupe, String.valueOf(member),
+                    String.valueOf(meta.begin), String.valueOf(meta.end), String.valueOf(seckillProperties.getStreamMaxLen())
+            );
+        }
         // 2.判断结果是否为0
         int r = result.intValue();
+        if (r == 1 && meta.shards <= 1 && !seckillStockLease.isEnabled()) {
+            // 库存不足，通知所有节点本地标记售罄（租约模式下其他节点可能还有租到的库存，只在本地判断）
+            seckillSoldOutRegistry.markSoldOut(voucherId);
+        }
         if (r != 0) {
             // 2.1 不为0，没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+            return Result.fail(seckillFailMessage(r));
         }
+        // 2.2 订单排队中，客户端可以通过 /voucher-order/status/{orderId} 查询结果
+        seckillOrderStatus.queued(orderId);
         // 下面这段注释的在新lua脚本里完成了
 
         //// 2.2 为0，用户有购买资格，把下单信息(优惠券订单信息)保存到阻塞队列
@@ -224,13 +210,178 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         //// 2.6 订单放入阻塞队列，交给异步线程处理
         //orderTasks.add(voucherOrder);
 
-        // 3. 获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-
-        // 4. 返回订单id
+        // 3. 返回订单id
         return Result.ok(orderId);
     }
 
+    /**
+     * 领取秒杀入场券：已售罄的直接拒绝，其余从本地令牌里发，本地没有了才去redis令牌桶取一批；每人每张券只发一张
+     *
+     * @param voucherId 优惠券id
+     */
+    public Result seckillTicket(Long voucherId) {
+        if (!seckillAdmission.isEnabled()) {
+            // 没开启排队入场，不需要入场券
+            return Result.ok();
+        }
+        if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        Long userId = UserHolder.getUser().getId();
+        // 每人每张券只发一张入场券：没用过、没过期的重复领取返回同一张，用过的（已经下单成功）不再发，过期的换发新的
+        String issued = seckillAdmission.issuedTicket(voucherId, userId);
+        if (issued != null) {
+            if (seckillAdmission.isUsed(issued)) {
+                return Result.fail("每人只能领取一张入场券");
+            }
+            if (seckillAdmission.verifyTicket(voucherId, userId, issued)) {
+                return Result.ok(issued);
+            }
+        }
+        String ticket = seckillAdmission.issueTicket(voucherId, userId, issued);
+        if (ticket == null) {
+            return Result.fail("排队人数过多，请稍后再试");
+        }
+        return Result.ok(ticket);
+    }
+
+    /**
+     * 分片库存下单：先在用户的home分片登记用户、扣库存（一人一单也只在home分片判断），home分片卖完再依次去兄弟分片扣，
+     * 扣到库存后投递订单消息
+     * <p>
+     * 每一步都是只访问一个slot的脚本（redis cluster下不会CROSSSLOT），步骤之间不是原子的，所以没有走到成功的结果都要显式归还：
+     * 兄弟分片都卖完了撤销home分片的用户登记；投递订单消息失败时把扣到的库存还给原分片，并撤销用户登记。
+     * 所有分片都卖完时标记售罄，之后的请求在本地直接拒绝，不用每次都扫一遍所有分片。
+     * </p>
+     *
+     * @return 0-成功 1-库存不足 2-重复下单 3-秒杀尚未开始 4-秒杀已经结束
+     */
+    private Long seckillWithShards(Long voucherId, Long userId, long orderId, VoucherMeta meta, String dedupe, long member) {
+        int shards = meta.shards;
+        int home = SeckillKeys.homeShard(userId, shards);
+        String homeStockKey = SeckillKeys.stockKey(voucherId, home, shards);
+        String dedupeKey = SeckillKeys.dedupeKey(voucherId, home, shards, dedupe);
+        String dedupeMember = SeckillKeys.DEDUPE_BITMAP.equals(dedupe) ? String.valueOf(member) : userId.toString();
+        // 1.home分片：判断重复下单、登记用户、扣库存
+        Long result = stringRedisTemplate.execute(SECKILL_SHARD_SCRIPT, Arrays.asList(homeStockKey, dedupeKey),
+                userId.toString(), dedupe, String.valueOf(member), String.valueOf(meta.begin), String.valueOf(meta.end));
+        if (result == null || (result != 0 && result != 5)) {
+            return result;
+        }
+        String stockKey = result == 0 ? homeStockKey : null;
+        // 2.home分片卖完了（用户已经登记），依次去兄弟分片扣1个库存
+        for (int i = 1; i < shards && stockKey == null; i++) {
+            String siblingKey = SeckillKeys.stockKey(voucherId, (home + i) % shards, shards);
+            try {
+                Long taken = stringRedisTemplate.execute(SECKILL_SHARD_TAKE_SCRIPT, Collections.singletonList(siblingKey));
+                if (taken != null && taken == 1) {
+                    stockKey = siblingKey;
+                }
+            } catch (Exception e) {
+                release(dedupeKey, dedupe, dedupeMember);
+                throw e;
+            }
+        }
+        if (stockKey == null) {
+            // 3.所有分片都卖完了：撤销用户登记，标记售罄
+            release(dedupeKey, dedupe, dedupeMember);
+            seckillSoldOutRegistry.markSoldOut(voucherId);
+            return 1L;
+        }
+        // 4.投递订单消息，失败时归还库存、撤销登记
+        try {
+            stringRedisTemplate.execute(SECKILL_ORDER_XADD_SCRIPT,
+                    Collections.singletonList(seckillProperties.orderStreamKey(voucherId)),
+                    String.valueOf(seckillProperties.getStreamMaxLen()), userId.toString(), voucherId.toString(), String.valueOf(orderId));
+        } catch (Exception e) {
+            release(stockKey, "stock", null);
+            release(dedupeKey, dedupe, dedupeMember);
+            throw e;
+        }
+        return 0L;
+    }
+
+    // 归还分片库存/撤销用户登记，失败只打日志（库存对账会修正库存）
+    private void release(String key, String type, String member) {
+        try {
+            stringRedisTemplate.execute(SECKILL_SHARD_RELEASE_SCRIPT, Collections.singletonList(key),
+                    member == null ? new Object[]{type} : new Object[]{type, member});
+        } catch (Exception e) {
+            log.error("归还秒杀分片资源失败, key: {}, type: {}, member: {}", key, type, member, e);
+        }
+    }
+
+    // lua脚本返回值对应的提示
+    private static String seckillFailMessage(int r) {
+        switch (r) {
+            case 1:
+                return "库存不足";
+            case 3:
+                return "秒杀尚未开始";
+            case 4:
+                return "秒杀已经结束";
+            default:
+                return "不能重复下单";
+        }
+    }
+
+    // 秒杀券的库存分片数、一人一单存法、时间窗口，没有记录的（分片功能上线前创建的券）按不分片、set、不限时间处理
+    private VoucherMeta getVoucherMeta(Long voucherId) {
+        VoucherMeta meta = voucherMetas.getIfPresent(voucherId);
+        if (meta != null) {
+            return meta;
+        }
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(
+                RedisConstants.SECKILL_VOUCHER_KEY + voucherId, Arrays.asList("shards", "dedupe", "begin", "end"));
+        if (values.get(0) == null) {
+            return VoucherMeta.DEFAULT;
+        }
+        meta = new VoucherMeta(Integer.parseInt(values.get(0).toString()), SeckillKeys.dedupeType(values.get(1)),
+                parseMillis(values.get(2)), parseMillis(values.get(3)));
+        voucherMetas.put(voucherId, meta);
+        return meta;
+    }
+
+    private static long parseMillis(Object value) {
+        return value == null ? 0 : Long.parseLong(value.toString());
+    }
+
+    @Override
+    public void evictVoucherMeta(Long voucherId) {
+        voucherMetas.invalidate(voucherId);
+    }
+
+    /**
+     * 提前把秒杀lua脚本加载到redis（SCRIPT LOAD），开卖后的第一批请求直接EVALSHA，不用再传脚本内容
+     */
+    public void loadSeckillScripts() {
+        List<RedisScript<Long>> scripts = new ArrayList<>(Arrays.asList(SECKILL_SCRIPT, SECKILL_SHARD_SCRIPT, SECKILL_SHARD_TAKE_SCRIPT,
+                SECKILL_SHARD_RELEASE_SCRIPT, SECKILL_ORDER_XADD_SCRIPT));
+        scripts.addAll(seckillStockLease.seckillScripts());
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            for (RedisScript<Long> script : scripts) {
+                connection.scriptLoad(script.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+    private static class VoucherMeta {
+        private static final VoucherMeta DEFAULT = new VoucherMeta(1, SeckillKeys.DEDUPE_SET, 0, 0);
+
+        private final int shards;
+        private final String dedupe;
+        private final long begin;   // 秒杀开始时间（毫秒时间戳），0表示不限制
+        private final long end;     // 秒杀结束时间
+
+        private VoucherMeta(int shards, String dedupe, long begin, long end) {
+            this.shards = shards;
+            this.dedupe = dedupe;
+            this.begin = begin;
+            this.end = end;
+        }
+    }
+
     ///**
     // * [优惠券秒杀下单] 1.1版本：使用lua脚本+阻塞队列
     // *
@@ -316,28 +467,28 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      * 创建秒杀券订单，保存到数据库中
      */
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
-        // 5.一人一单
-        Long userId = voucherOrder.getUserId();
+    public boolean createVoucherOrder(VoucherOrder voucherOrder) {
         Long voucherId = voucherOrder.getVoucherId();
-        // 查询订单
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
-        // 判断是否满足：一个用户只能买一张秒杀券
-        if (count > 0) {
-            // 用户已经买过这张秒杀券
+        // 5.一人一单：insert ignore，uk_user_voucher(user_id, voucher_id, active)冲突时不插入，不用再先count查一次
+        if (getBaseMapper().insertIgnore(voucherOrder) == 0) {
+            // 主键冲突说明同一条消息重复投递，订单之前已经入库了；否则是用户已经买过这张秒杀券
+            if (getById(voucherOrder.getId()) != null) {
+                return true;
+            }
             log.error("该秒杀券只能购买一次");
-            return;
+            return false;
         }
 
-        // 6.扣减库存（写tb_seckill_voucher表）
+        // 6.插入成功才扣减库存（写tb_seckill_voucher表）
         boolean success = seckillVoucherService.update()
                 .setSql("stock=stock-1")    // set stock = stock-1
                 .eq("voucher_id", voucherId).gt("stock", 0)    // where id=? and stock>0
                 .update();
         if (!success) {
-            // 扣减失败
+            // 扣减失败，回滚刚插入的订单
             log.error("库存不足!");
-            return;
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return false;
         }
 
         //// 7.创建订单
@@ -350,10 +501,198 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         //// 7.3 优惠券id
         //voucherOrder.setVoucherId(voucherId);
 
-        // 7.写入订单数据（写tb_voucher_order表）
-        save(voucherOrder);
+        // 7.订单数据已经在第5步写入（写tb_voucher_order表）
 
         //// 8.返回订单id
         //return Result.ok(orderId);
+        return true;
+    }
+
+    /**
+     * 批量创建秒杀券订单：批内去重 + 一次查询过滤已下单用户 + 一条多行insert ignore + 按券分组扣库存
+     * 插入行数和预期不一致（其他消费者并发写入了同一用户）或任何一张券库存扣减失败，都抛异常回滚整批，由消费者逐条兜底
+     */
+    @Transactional
+    public List<VoucherOrder> createVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        // 1.一人一单：查出这批用户的有效订单
+        // select id, user_id, voucher_id from tb_voucher_order where user_id in (...) and voucher_id in (...) and status not in (4, 6)
+        Set<Long> userIds = new HashSet<>();
+        Set<Long> voucherIds = new HashSet<>();
+        Set<Long> orderIds = new HashSet<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            userIds.add(voucherOrder.getUserId());
+            voucherIds.add(voucherOrder.getVoucherId());
+            orderIds.add(voucherOrder.getId());
+        }
+        Set<String> bought = new HashSet<>();
+        Set<Long> persisted = new HashSet<>();
+        for (VoucherOrder exist : query().select("id", "user_id", "voucher_id")
+                .in("user_id", userIds).in("voucher_id", voucherIds)
+                .notIn("status", ORDER_CANCELLED, ORDER_REFUNDED).list()) {
+            bought.add(exist.getUserId() + ":" + exist.getVoucherId());
+            if (orderIds.contains(exist.getId())) {
+                // 同一条消息重复投递，订单之前已经入库了
+                persisted.add(exist.getId());
+            }
+        }
+        // 2.过滤重复订单（数据库已有的 + 同一批里重复的），按优惠券统计要扣减的库存
+        List<VoucherOrder> toSave = new ArrayList<>(voucherOrders.size());
+        List<VoucherOrder> saved = new ArrayList<>(voucherOrders.size());
+        Map<Long, Integer> stockDelta = new HashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            if (persisted.contains(voucherOrder.getId())) {
+                saved.add(voucherOrder);
+                continue;
+            }
+            if (!bought.add(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId())) {
+                log.error("该秒杀券只能购买一次");
+                continue;
+            }
+            toSave.add(voucherOrder);
+            stockDelta.merge(voucherOrder.getVoucherId(), 1, Integer::sum);
+        }
+        if (toSave.isEmpty()) {
+            return saved;
+        }
+        // 3.一条多行insert ignore写入订单，有行被唯一索引挡掉说明查询之后有并发写入，交给逐条处理
+        int inserted = getBaseMapper().insertBatch(toSave);
+        if (inserted != toSave.size()) {
+            throw new IllegalStateException("订单并发写入冲突, 预期" + toSave.size() + "条, 实际" + inserted + "条");
+        }
+        // 4.按优惠券分组扣减库存 set stock = stock - k where voucher_id = ? and stock >= k
+        for (Map.Entry<Long, Integer> entry : stockDelta.entrySet()) {
+            int k = entry.getValue();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock=stock-" + k)
+                    .eq("voucher_id", entry.getKey()).ge("stock", k)
+                    .update();
+            if (!success) {
+                // 整批回滚，交给逐条处理，只让真正没库存的那几单失败
+                throw new IllegalStateException("库存不足! voucherId=" + entry.getKey());
+            }
+        }
+        saved.addAll(toSave);
+        return saved;
+    }
+
+    /**
+     * 处理到期的订单，可以重复执行：数据库按订单状态条件更新，redis库存以分片里的已还订单set为准只还一次
+     */
+    public void handleExpiredOrders(List<Long> orderIds) {
+        Map<Long, VoucherOrder> orders = new HashMap<>();
+        for (VoucherOrder voucherOrder : listByIds(orderIds)) {
+            orders.put(voucherOrder.getId(), voucherOrder);
+        }
+        IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
+        for (Long orderId : orderIds) {
+            VoucherOrder voucherOrder = orders.get(orderId);
+            try {
+                if (voucherOrder == null) {
+                    // 订单不存在
+                    voucherOrderDelayQueue.remove(orderId);
+                    continue;
+                }
+                int status = voucherOrder.getStatus();
+                if (status == ORDER_UNPAID) {
+                    // 1.超时未支付，取消订单，数据库库存+1
+                    if (!proxy.cancelVoucherOrder(voucherOrder)) {
+                        // 刚好被支付了，租期过后重新领取时再判断
+                        continue;
+                    }
+                    log.info("订单超时未支付，已取消, orderId: {}", orderId);
+                } else if (status != ORDER_CANCELLED && status != ORDER_REFUNDED) {
+                    // 2.已支付/已核销，不需要取消
+                    voucherOrderDelayQueue.remove(orderId);
+                    continue;
+                }
+                // 3.已取消/已退款，库存还回redis（上次数据库已经改了、redis没还成功的，这里补上）
+                returnStock(voucherOrder);
+            } catch (Exception e) {
+                // 留在队列里，租期过后重试
+                log.error("处理超时订单异常, orderId: {}", orderId, e);
+            }
+        }
+    }
+
+    @Transactional
+    public boolean cancelVoucherOrder(VoucherOrder voucherOrder) {
+        // update tb_voucher_order set status = 4 where id = ? and status = 1
+        boolean success = update()
+                .set("status", ORDER_CANCELLED)
+                .eq("id", voucherOrder.getId()).eq("status", ORDER_UNPAID)
+                .update();
+        if (!success) {
+            return false;
+        }
+        seckillVoucherService.update()
+                .setSql("stock=stock+1")
+                .eq("voucher_id", voucherOrder.getVoucherId())
+                .update();
+        return true;
+    }
+
+    @Transactional
+    public boolean refundVoucherOrder(VoucherOrder voucherOrder) {
+        // update tb_voucher_order set status = 6, refund_time = now() where id = ? and status in (2, 5)
+        boolean success = update()
+                .set("status", ORDER_REFUNDED)
+                .set("refund_time", LocalDateTime.now())
+                .eq("id", voucherOrder.getId()).in("status", ORDER_PAID, ORDER_REFUNDING)
+                .update();
+        if (!success) {
+            return false;
+        }
+        seckillVoucherService.update()
+                .setSql("stock=stock+1")
+                .eq("voucher_id", voucherOrder.getVoucherId())
+                .update();
+        return true;
+    }
+
+    public Result applyRefund(Long orderId) {
+        VoucherOrder voucherOrder = getById(orderId);
+        if (voucherOrder == null || !voucherOrder.getUserId().equals(UserHolder.getUser().getId())) {
+            return Result.fail("订单不存在");
+        }
+        IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
+        if (!proxy.refundVoucherOrder(voucherOrder)) {
+            return Result.fail("订单状态不允许退款");
+        }
+        // 退款成功，订单以"立即到期"加入延时队列，和超时取消走同一条还库存的路径；这里先直接还一次，失败了由定时任务重试
+        voucherOrderDelayQueue.addNow(orderId);
+        try {
+            returnStock(voucherOrder);
+        } catch (Exception e) {
+            log.error("退款还库存异常，等待定时任务重试, orderId: {}", orderId, e);
+        }
+        return Result.ok();
+    }
+
+    /**
+     * 库存还回redis（分片时还给用户的home分片），并把用户移出已购用户，再把订单移出延时队列，能重复调用
+     * <p>
+     * 还库存的脚本只访问home分片的key（redis cluster下不会CROSSSLOT），幂等标记记在同一分片的已还订单set里；
+     * 移出延时队列是单独的一步，没移出去的下次重试时脚本发现已经还过了，只会再移一次。
+     * </p>
+     */
+    private void returnStock(VoucherOrder voucherOrder) {
+        Long voucherId = voucherOrder.getVoucherId();
+        Long userId = voucherOrder.getUserId();
+        VoucherMeta meta = getVoucherMeta(voucherId);
+        int home = SeckillKeys.homeShard(userId, meta.shards);
+        String dedupe = SeckillKeys.userDedupe(meta.dedupe, userId, meta.shards, seckillProperties.getBitmapMaxOffset());
+        Long returned = stringRedisTemplate.execute(
+                STOCK_RETURN_SCRIPT,
+                Arrays.asList(SeckillKeys.stockKey(voucherId, home, meta.shards),
+                        SeckillKeys.dedupeKey(voucherId, home, meta.shards, dedupe),
+                        SeckillKeys.returnedKey(voucherId, home, meta.shards)),
+                voucherOrder.getId().toString(), dedupe, userId.toString(),
+                String.valueOf(SeckillKeys.dedupeMember(userId, meta.shards, dedupe))
+        );
+        if (returned != null && returned == 1) {
+            // 库存回补了，清除各节点的售罄标记
+            seckillSoldOutRegistry.reset(voucherId);
+        }
+        voucherOrderDelayQueue.remove(voucherOrder.getId());
     }
 }
@@ -1,14 +1,16 @@
 package com.hmdp.service.impl;
 
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.config.SeckillProperties;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillStockReconcileService;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import com.hmdp.utils.RedisConstants;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillSoldOutRegistry;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -24,7 +26,11 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillProperties seckillProperties;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    @Resource
+    private ISeckillStockReconcileService seckillStockReconcileService;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -48,10 +54,18 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
         seckillVoucher.setStock(voucher.getStock());
+        seckillVoucher.setDedupeType(SeckillKeys.dedupeType(voucher.getDedupeType()));
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        // 保存秒杀券库存到redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 保存秒杀券库存、时间窗口到redis（分片时拆到多个库存key）
+        seckillVoucherService.warmUpSeckillVoucher(seckillVoucher, Math.max(1, seckillProperties.getStockShards()));
+        // 库存重新写入，清除各节点的售罄标记
+        seckillSoldOutRegistry.reset(voucher.getId());
+    }
+
+    @Override
+    public Result reconcileSeckillStock(boolean repair) {
+        return Result.ok(seckillStockReconcileService.reconcile(repair).join());
     }
 }
@@ -0,0 +1,520 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 紧凑的二进制缓存格式，比json小、编解码快、分配少
+ * <p>
+ * 格式：魔数0xC1(1) + 版本(1) + 标志位(1) + 字段指纹(4) + [逻辑过期时间] + [重建耗时] + [压缩前长度] + 数据<br>
+ * 1.魔数0xC1不可能是UTF-8文本的第一个字节，所以能和原来的json缓存区分开，滚动升级期间两种格式共存；<br>
+ * 2.字段指纹 = 字段名和类型的哈希，类的字段改了以后旧数据解码失败，当作缓存未命中重新加载；
+ * 格式变了就升级版本，老节点读到新版本的数据同样当作未命中；<br>
+ * 3.数据 = 空值位图 + 按字段名排序的非空字段值：整数用zigzag变长编码，字符串是 长度+UTF-8，时间是 秒+纳秒，
+ * 其他类型的字段退化成json字符串；<br>
+ * 4.数据超过 compressThreshold 字节时用Deflater压缩（比如blog的正文），压缩后没变小就不压缩。
+ * </p>
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    public static final byte MAGIC = (byte) 0xC1;
+    private static final byte VERSION = 2;         // 2：加了重建耗时（FLAG_REBUILD_COST）
+    private static final byte MIN_VERSION = 1;     // 能读的最老版本（1没有重建耗时，按2的格式读也对）
+    private static final int FLAG_DEFLATED = 1;
+    private static final int FLAG_EXPIRE = 1 << 1;
+    private static final int FLAG_REBUILD_COST = 1 << 2;
+    private static final int KNOWN_FLAGS = FLAG_DEFLATED | FLAG_EXPIRE | FLAG_REBUILD_COST;
+    private static final int HEADER_SIZE = 7;
+
+    private final int compressThreshold;
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    /**
+     * @param compressThreshold 数据超过多少字节时压缩，0表示不压缩
+     */
+    public BinaryCacheCodec(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return write(value, null, 0);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return type.cast(read(bytes, type, null));
+    }
+
+    @Override
+    public byte[] encodeWithExpire(Object value, LocalDateTime expireTime, long rebuildMillis) {
+        return write(value, expireTime, rebuildMillis);
+    }
+
+    @Override
+    public RedisData decodeWithExpire(byte[] bytes, Class<?> type) {
+        RedisData redisData = new RedisData();
+        redisData.setData(read(bytes, type, redisData));
+        if (redisData.getExpireTime() == null) {
+            throw new IllegalStateException("缓存数据没有逻辑过期时间");
+        }
+        return redisData;
+    }
+
+    private byte[] write(Object value, LocalDateTime expireTime, long rebuildMillis) {
+        if (value == null) {
+            throw new IllegalArgumentException("不能编码null");
+        }
+        Schema schema = schema(value.getClass());
+        Output body = new Output(128);
+        schema.write(body, value);
+
+        byte[] deflated = compressThreshold > 0 && body.size >= compressThreshold ? deflate(body) : null;
+        int flags = (deflated != null ? FLAG_DEFLATED : 0) | (expireTime != null ? FLAG_EXPIRE : 0)
+                | (rebuildMillis > 0 ? FLAG_REBUILD_COST : 0);
+        Output out = new Output(HEADER_SIZE + 16 + (deflated != null ? deflated.length : body.size));
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(flags);
+        out.writeInt(schema.fingerprint);
+        if (expireTime != null) {
+            out.writeLocalDateTime(expireTime);
+        }
+        if (rebuildMillis > 0) {
+            out.writeVarLong(rebuildMillis);
+        }
+        if (deflated != null) {
+            out.writeVarLong(body.size);
+            out.writeBytes(deflated, 0, deflated.length);
+        } else {
+            out.writeBytes(body.buf, 0, body.size);
+        }
+        return out.toByteArray();
+    }
+
+    private Object read(byte[] bytes, Class<?> type, RedisData expireHolder) {
+        if (bytes.length < HEADER_SIZE || bytes[0] != MAGIC) {
+            throw new IllegalStateException("不是二进制缓存格式");
+        }
+        if (bytes[1] < MIN_VERSION || bytes[1] > VERSION) {
+            throw new IllegalStateException("不支持的二进制缓存版本: " + bytes[1]);
+        }
+        Schema schema = schema(type);
+        Input in = new Input(bytes, 3);
+        int flags = bytes[2];
+        if ((flags & ~KNOWN_FLAGS) != 0) {
+            throw new IllegalStateException("不支持的二进制缓存标志位: " + flags);
+        }
+        if (in.readInt() != schema.fingerprint) {
+            throw new IllegalStateException("缓存数据的字段和" + type.getSimpleName() + "不一致");
+        }
+        if ((flags & FLAG_EXPIRE) != 0) {
+            LocalDateTime expireTime = in.readLocalDateTime();
+            if (expireHolder != null) {
+                expireHolder.setExpireTime(expireTime);
+            }
+        }
+        if ((flags & FLAG_REBUILD_COST) != 0) {
+            long rebuildMillis = in.readVarLong();
+            if (expireHolder != null) {
+                expireHolder.setRebuildMillis(rebuildMillis);
+            }
+        }
+        if ((flags & FLAG_DEFLATED) != 0) {
+            int rawSize = (int) in.readVarLong();
+            in = new Input(inflate(bytes, in.pos, rawSize), 0);
+        }
+        return schema.read(in);
+    }
+
+    private Schema schema(Class<?> type) {
+        Schema schema = schemas.get(type);
+        if (schema == null) {
+            schema = schemas.computeIfAbsent(type, Schema::new);
+        }
+        return schema;
+    }
+
+    // 压缩数据，压缩后没有变小返回null
+    private static byte[] deflate(Output body) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(body.buf, 0, body.size);
+            deflater.finish();
+            byte[] out = new byte[body.size];
+            int size = 0;
+            while (!deflater.finished() && size < out.length) {
+                size += deflater.deflate(out, size, out.length - size);
+            }
+            return deflater.finished() ? Arrays.copyOf(out, size) : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes, int offset, int rawSize) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, offset, bytes.length - offset);
+            byte[] raw = new byte[rawSize];
+            int size = 0;
+            while (size < rawSize) {
+                int n = inflater.inflate(raw, size, rawSize - size);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalStateException("压缩数据不完整");
+                }
+                size += n;
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("压缩数据格式错误", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private enum Kind {
+        LONG, INT, SHORT, BYTE, BOOLEAN, DOUBLE, FLOAT, STRING, LOCAL_DATE_TIME, LOCAL_DATE, BIG_DECIMAL, JSON;
+
+        static Kind of(Class<?> type) {
+            if (type == Long.class || type == long.class) {
+                return LONG;
+            } else if (type == Integer.class || type == int.class) {
+                return INT;
+            } else if (type == Short.class || type == short.class) {
+                return SHORT;
+            } else if (type == Byte.class || type == byte.class) {
+                return BYTE;
+            } else if (type == Boolean.class || type == boolean.class) {
+                return BOOLEAN;
+            } else if (type == Double.class || type == double.class) {
+                return DOUBLE;
+            } else if (type == Float.class || type == float.class) {
+                return FLOAT;
+            } else if (type == String.class) {
+                return STRING;
+            } else if (type == LocalDateTime.class) {
+                return LOCAL_DATE_TIME;
+            } else if (type == LocalDate.class) {
+                return LOCAL_DATE;
+            } else if (type == BigDecimal.class) {
+                return BIG_DECIMAL;
+            }
+            return JSON;
+        }
+    }
+
+    /**
+     * 一个类的编码方式：Long、String这类简单类型直接编码值；其他类按字段编码（不含static、transient字段）
+     */
+    private static class Schema {
+        private final Class<?> type;
+        private final Kind scalar;              // 简单类型时非null
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final Kind[] kinds;
+        private final int fingerprint;
+
+        Schema(Class<?> type) {
+            this.type = type;
+            Kind kind = Kind.of(type);
+            if (kind != Kind.JSON || type.isArray() || type.isInterface() || type.isEnum()) {
+                this.scalar = kind;
+                this.constructor = null;
+                this.fields = new Field[0];
+                this.kinds = new Kind[0];
+                this.fingerprint = type.getName().hashCode();
+                return;
+            }
+            this.scalar = null;
+            try {
+                this.constructor = type.getDeclaredConstructor();
+                this.constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException(type.getName() + "没有无参构造方法，不能用二进制缓存格式", e);
+            }
+            List<Field> list = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    list.add(field);
+                }
+            }
+            list.sort(Comparator.comparing(Field::getName));
+            this.fields = list.toArray(new Field[0]);
+            this.kinds = new Kind[fields.length];
+            StringBuilder signature = new StringBuilder();
+            for (int i = 0; i < fields.length; i++) {
+                kinds[i] = Kind.of(fields[i].getType());
+                signature.append(fields[i].getName()).append(':').append(fields[i].getGenericType().getTypeName()).append(';');
+            }
+            this.fingerprint = signature.toString().hashCode();
+        }
+
+        void write(Output out, Object value) {
+            if (scalar != null) {
+                writeValue(out, scalar, value);
+                return;
+            }
+            try {
+                // 空值位图：第i位为1表示第i个字段为null
+                int bitmapPos = out.size;
+                int bitmapSize = (fields.length + 7) >>> 3;
+                out.ensure(bitmapSize);
+                out.size += bitmapSize;
+                for (int i = 0; i < fields.length; i++) {
+                    Object v = fields[i].get(value);
+                    if (v == null) {
+                        out.buf[bitmapPos + (i >>> 3)] |= (byte) (1 << (i & 7));
+                    } else {
+                        writeValue(out, kinds[i], v);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        Object read(Input in) {
+            if (scalar != null) {
+                return readValue(in, scalar, type);
+            }
+            try {
+                Object value = constructor.newInstance();
+                int bitmapPos = in.pos;
+                in.pos += (fields.length + 7) >>> 3;
+                for (int i = 0; i < fields.length; i++) {
+                    if ((in.bytes[bitmapPos + (i >>> 3)] & (1 << (i & 7))) == 0) {
+                        fields[i].set(value, readValue(in, kinds[i], fields[i].getGenericType()));
+                    }
+                }
+                return value;
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static void writeValue(Output out, Kind kind, Object v) {
+            switch (kind) {
+                case LONG:
+                    out.writeZigZag((Long) v);
+                    break;
+                case INT:
+                    out.writeZigZag((Integer) v);
+                    break;
+                case SHORT:
+                    out.writeZigZag((Short) v);
+                    break;
+                case BYTE:
+                    out.writeByte((Byte) v);
+                    break;
+                case BOOLEAN:
+                    out.writeByte((Boolean) v ? 1 : 0);
+                    break;
+                case DOUBLE:
+                    out.writeLong(Double.doubleToRawLongBits((Double) v));
+                    break;
+                case FLOAT:
+                    out.writeInt(Float.floatToRawIntBits((Float) v));
+                    break;
+                case STRING:
+                    out.writeString((String) v);
+                    break;
+                case LOCAL_DATE_TIME:
+                    out.writeLocalDateTime((LocalDateTime) v);
+                    break;
+                case LOCAL_DATE:
+                    out.writeZigZag(((LocalDate) v).toEpochDay());
+                    break;
+                case BIG_DECIMAL:
+                    out.writeString(((BigDecimal) v).toString());
+                    break;
+                default:
+                    out.writeString(JSONUtil.toJsonStr(v));
+            }
+        }
+
+        private static Object readValue(Input in, Kind kind, Type type) {
+            switch (kind) {
+                case LONG:
+                    return in.readZigZag();
+                case INT:
+                    return (int) in.readZigZag();
+                case SHORT:
+                    return (short) in.readZigZag();
+                case BYTE:
+                    return in.bytes[in.pos++];
+                case BOOLEAN:
+                    return in.bytes[in.pos++] != 0;
+                case DOUBLE:
+                    return Double.longBitsToDouble(in.readLong());
+                case FLOAT:
+                    return Float.intBitsToFloat(in.readInt());
+                case STRING:
+                    return in.readString();
+                case LOCAL_DATE_TIME:
+                    return in.readLocalDateTime();
+                case LOCAL_DATE:
+                    return LocalDate.ofEpochDay(in.readZigZag());
+                case BIG_DECIMAL:
+                    return new BigDecimal(in.readString());
+                default:
+                    return JSONUtil.toBean(in.readString(), type, false);
+            }
+        }
+    }
+
+    private static class Output {
+        private byte[] buf;
+        private int size;
+
+        Output(int capacity) {
+            this.buf = new byte[capacity];
+        }
+
+        void ensure(int n) {
+            if (size + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[size++] = (byte) b;
+        }
+
+        void writeBytes(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, buf, size, length);
+            size += length;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            buf[size++] = (byte) (v >>> 24);
+            buf[size++] = (byte) (v >>> 16);
+            buf[size++] = (byte) (v >>> 8);
+            buf[size++] = (byte) v;
+        }
+
+        void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[size++] = (byte) v;
+        }
+
+        void writeZigZag(long v) {
+            writeVarLong((v << 1) ^ (v >> 63));
+        }
+
+        void writeString(String s) {
+            int length = s.length();
+            // ASCII字符串直接逐字节写入，不用先转成byte[]
+            boolean ascii = true;
+            for (int i = 0; i < length; i++) {
+                if (s.charAt(i) >= 0x80) {
+                    ascii = false;
+                    break;
+                }
+            }
+            if (ascii) {
+                writeVarLong(length);
+                ensure(length);
+                for (int i = 0; i < length; i++) {
+                    buf[size++] = (byte) s.charAt(i);
+                }
+                return;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            writeBytes(bytes, 0, bytes.length);
+        }
+
+        void writeLocalDateTime(LocalDateTime time) {
+            writeZigZag(time.toEpochSecond(ZoneOffset.UTC));
+            writeVarLong(time.getNano());
+        }
+
+        byte[] toByteArray() {
+            return size == buf.length ? buf : Arrays.copyOf(buf, size);
+        }
+    }
+
+    private static class Input {
+        private final byte[] bytes;
+        private int pos;
+
+        Input(byte[] bytes, int pos) {
+            this.bytes = bytes;
+            this.pos = pos;
+        }
+
+        int readInt() {
+            return (bytes[pos++] & 0xFF) << 24 | (bytes[pos++] & 0xFF) << 16 | (bytes[pos++] & 0xFF) << 8 | (bytes[pos++] & 0xFF);
+        }
+
+        long readLong() {
+            return (long) readInt() << 32 | (readInt() & 0xFFFFFFFFL);
+        }
+
+        long readVarLong() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = bytes[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+            throw new IllegalStateException("变长整数格式错误");
+        }
+
+        long readZigZag() {
+            long v = readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        String readString() {
+            int length = (int) readVarLong();
+            String s = new String(bytes, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+
+        LocalDateTime readLocalDateTime() {
+            long second = readZigZag();
+            int nano = (int) readVarLong();
+            return LocalDateTime.ofEpochSecond(second, nano, ZoneOffset.UTC);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 本地布隆过滤器（只存long类型的id），线程安全，put和mightContain都不加锁
+ * <p>
+ * 位数组 m = -n*ln(p)/(ln2)^2，哈希函数个数 k = m/n*ln2，n是预计元素数，p是误判率。
+ * 用SplitMix64把id打散成两个64位哈希h1、h2，第i个位置取 h1+i*h2（双重哈希，效果和k个独立哈希函数差不多）。
+ * </p>
+ * <p>
+ * 1000万个id：p=1%时 m≈9585万位（约11.4MB），k=7；p=0.1%时 m≈1.44亿位（约17.1MB），k=10。
+ * 不存在的id有p的概率被误判为存在（放过去查缓存/数据库），存在的id一定判断为存在。
+ * </p>
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long numBits;
+    private final int numHashes;
+
+    public BloomFilter(long expectedInsertions, double fpp) {
+        long n = Math.max(1, expectedInsertions);
+        long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        m = Math.max(64, (m + 63) >>> 6 << 6);
+        this.numBits = m;
+        this.numHashes = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+        this.bits = new AtomicLongArray((int) (m >>> 6));
+    }
+
+    public void put(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1);
+        for (int i = 0; i < numHashes; i++) {
+            long index = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            // 已经置位了就不用CAS
+            if ((bits.get(word) & mask) == 0) {
+                bits.accumulateAndGet(word, mask, (a, b) -> a | b);
+            }
+        }
+    }
+
+    public boolean mightContain(long id) {
+        long h1 = mix(id);
+        long h2 = mix(h1);
+        for (int i = 0; i < numHashes; i++) {
+            long index = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 位数组占用的字节数
+     */
+    public long sizeInBytes() {
+        return numBits >>> 3;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    // SplitMix64
+    private static long mix(long x) {
+        x += 0x9E3779B97F4A7C15L;
+        x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+}
@@ -1,132 +1,826 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.hmdp.config.CacheProperties;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+
+/**
+ * redis缓存工具类，可选开启进程内的本地缓存（L1）放在redis（L2）前面
+ * <p>
+ * L1保存的是反序列化好的对象（空值也缓存），命中时不访问redis、不解析json，返回的对象是共享的，调用方不要修改。
+ * 数据更新时调用 {@link #evict(String)}：删除redis缓存，并通过redis pub/sub（cache:invalidate）通知所有节点删除L1；
+ * 通知可能丢失，L1按大小和写入时间淘汰，最长不一致时间就是 localTtlSeconds。
+ * 失效通知按key分段计数（{@link #INVALIDATION_STRIPES} 段），读redis期间同一段收到过失效通知的才丢弃读到的值，
+ * 其他key的失效不影响这次的L1写入。
+ * </p>
+ * <p>
+ * redis里的缓存值由 {@link CacheCodec} 编解码（json或二进制，读取时自动识别），空值存0字节；解码失败（比如类的字段改了）当作未命中。
+ * </p>
+ * <p>
+ * 缓存重建在本节点内合并（single-flight）：同一个key同时未命中时只有一个线程去加载，其他线程等它的结果；
+ * 再加上redis互斥锁，整个集群同一个key同时只有一个线程查数据库。
+ * </p>
+ * <p>
+ * 逻辑过期的key记录上次重建的耗时，读到时按XFetch算法概率性提前重建，过期前通常已经被某个读者刷新，不会在过期那一刻一起抢锁；
+ * 写入的过期时间都加了随机抖动，同一批预热的key不会同时过期。
+ * </p>
+ * <p>
+ * 每次查询都在 {@link HotKeyDetector} 记一次访问：{@link #queryWithHotKey} 里访问频率高的热点key自动改用逻辑过期，冷却后降级回TTL缓存；
+ * 开启 localHotOnly 时本地缓存只放热点key。
+ * </p>
+ * <p>
+ * 命中、回源等统计按key前缀记在 {@link CacheMetrics} 里，{@link #metrics()} 返回合计、每个前缀的统计和重建线程池的排队情况。
+ * </p>
+ */
 @Slf4j
 @Component
 public class CacheClient {
     private final StringRedisTemplate stringRedisTemplate;
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);    // 重建缓存的线程池
+    private final RedisTemplate<String, byte[]> byteRedisTemplate;     // 读写缓存值
+    private final CacheCodec cacheCodec;
+    private final CacheProperties cacheProperties;
+    private final CacheMetrics cacheMetrics;
+    private final IdBloomFilter idBloomFilter;
+    private final HotKeyDetector hotKeyDetector;
+    private final Cache<String, Object> localCache;    // L1，未开启时为null
+    private final boolean localHotOnly;     // L1只放热点key
+    private static final int INVALIDATION_STRIPES = 256;     // 失效通知计数的分段数（2的幂）
+    private final AtomicLongArray invalidations = new AtomicLongArray(INVALIDATION_STRIPES);  // 每段收到的失效通知数，用来丢弃失效前读到的旧数据
+    private static final Object NULL_VALUE = new Object();      // L1里的空值
+    private static final byte[] EMPTY = new byte[0];            // redis里的空值
+    private static final long LOCK_RETRY_MIN_MILLIS = 10;      // 没抢到redis锁时，重新检查缓存的间隔（逐次翻倍）
+    private static final long LOCK_RETRY_MAX_MILLIS = 200;
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();  // 本节点正在加载的key
+    private final Set<String> rebuilding = ConcurrentHashMap.newKeySet();     // 本节点正在逻辑过期重建的key
+    private static final ThreadPoolExecutor CACHE_REBUILD_EXECUTOR = (ThreadPoolExecutor) Executors.newFixedThreadPool(10);    // 重建缓存的线程池
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisTemplate<String, byte[]> byteRedisTemplate,
+                       CacheCodec cacheCodec, CacheProperties cacheProperties,
+                       CacheMetrics cacheMetrics, IdBloomFilter idBloomFilter, HotKeyDetector hotKeyDetector,
+                       RedisMessageListenerContainer redisMessageListenerContainer) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.byteRedisTemplate = byteRedisTemplate;
+        this.cacheCodec = cacheCodec;
+        this.cacheProperties = cacheProperties;
+        this.cacheMetrics = cacheMetrics;
+        this.idBloomFilter = idBloomFilter;
+        this.hotKeyDetector = hotKeyDetector;
+        this.localHotOnly = cacheProperties.isLocalHotOnly();
+        if (cacheProperties.isLocalEnabled()) {
+            this.localCache = Caffeine.newBuilder()
+                    .maximumSize(cacheProperties.getLocalMaxSize())
+                    .expireAfterWrite(cacheProperties.getLocalTtlSeconds(), TimeUnit.SECONDS)
+                    .build();
+            redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+                cacheMetrics.invalidation();
+                invalidateLocal(new String(message.getBody(), StandardCharsets.UTF_8));
+            }, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        } else {
+            this.localCache = null;
+        }
     }
 
     /**
-     * 1、将任意对象序列化为json并存储在string类型的key中，并且可以设置TTL过期时间
+     * 1、将任意对象序列化并存储在string类型的key中，并且可以设置TTL过期时间
      */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        byteRedisTemplate.opsForValue().set(key, cacheCodec.encode(value), jitter(unit.toMillis(time)), TimeUnit.MILLISECONDS);
+        invalidateLocal(key);
     }
 
     /**
-     * 2、将任意对象序列化为json并存储在string类型的key中，并且可以设置逻辑过期时间，用于处理缓存击穿
+     * 2、将任意对象序列化并存储在string类型的key中，并且可以设置逻辑过期时间，用于处理缓存击穿
      * 设置逻辑过期时间，不用设置key的TTL，手动预热缓存，清理缓存
      */
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
-        // 设置逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        // 写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setWithLogicalExpire(key, value, time, unit, 0);
+    }
+
+    /**
+     * 同上，同时记录这次重建（查数据库）的耗时，读取时用来概率性提前重建
+     */
+    public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, long rebuildMillis) {
+        writeLogical(key, value, time, unit, rebuildMillis, false);
+    }
+
+    /**
+     * 写入带逻辑过期时间的缓存
+     *
+     * @param safetyTtl 是否同时给key设置TTL（逻辑过期时间的2倍）：热点key是各节点自己识别的，
+     *                  没有哪个节点负责把它降级回TTL缓存，不设TTL的话没人再访问后会一直留在redis里；手动预热的key不设
+     */
+    private void writeLogical(String key, Object value, Long time, TimeUnit unit, long rebuildMillis, boolean safetyTtl) {
+        if (value == null) {
+            // 数据已经不存在了，删掉缓存
+            byteRedisTemplate.delete(key);
+            invalidateLocal(key);
+            return;
+        }
+        // 设置逻辑过期时间，写入redis
+        long expireMillis = jitter(unit.toMillis(time));
+        LocalDateTime expireTime = LocalDateTime.now().plus(Duration.ofMillis(expireMillis));
+        byte[] bytes = cacheCodec.encodeWithExpire(value, expireTime, rebuildMillis);
+        if (safetyTtl && expireMillis > 0) {
+            byteRedisTemplate.opsForValue().set(key, bytes, expireMillis * 2, TimeUnit.MILLISECONDS);
+        } else {
+            byteRedisTemplate.opsForValue().set(key, bytes);
+        }
+        invalidateLocal(key);
+        // 其他节点L1里的旧数据还没逻辑过期，不通知的话会一直用到过期为止
+        publishInvalidation(Collections.singletonList(key));
+    }
+
+    /**
+     * 批量写入缓存（和1一样，TTL加随机抖动），用一个pipeline发完，预热用
+     *
+     * @param values key -> 对象
+     */
+    public void setAll(Map<String, ?> values, Long time, TimeUnit unit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        long millis = unit.toMillis(time);
+        byteRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                connection.pSetEx(key, jitter(millis), cacheCodec.encode(entry.getValue()));
+            }
+            return null;
+        });
+        values.keySet().forEach(this::invalidateLocal);
+    }
+
+    /**
+     * 删除缓存：删除redis中的key，并通知所有节点（包括自己）删除本地缓存
+     */
+    public void evict(String key) {
+        evictAll(Collections.singletonList(key));
+    }
+
+    /**
+     * 批量删除缓存：一条DEL删除所有key，再用pipeline通知所有节点删除本地缓存
+     * 删除redis失败时抛异常（调用方重试），通知失败只打日志
+     */
+    public void evictAll(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        byteRedisTemplate.delete(keys);
+        keys.forEach(this::invalidateLocal);
+        publishInvalidation(keys);
+    }
+
+    // 用pipeline通知所有节点删除本地缓存，失败只打日志
+    private void publishInvalidation(Collection<String> keys) {
+        if (localCache == null) {
+            return;
+        }
+        try {
+            byte[] channel = CACHE_INVALIDATE_CHANNEL.getBytes(StandardCharsets.UTF_8);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (String key : keys) {
+                    connection.publish(channel, key.getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            // 通知失败时，其他节点的本地缓存等过期后自己失效
+            log.error("广播本地缓存失效异常, keys: {}", keys.size(), e);
+        }
+    }
+
+    /**
+     * 本地缓存、各层命中统计（合计和按key前缀），重建线程池的排队情况
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = cacheMetrics.snapshot();
+        metrics.put("l1Enabled", localCache != null);
+        metrics.put("l1Size", localCache == null ? 0 : localCache.estimatedSize());
+        metrics.put("bloom", idBloomFilter.stats());
+        metrics.put("hotKeys", hotKeyDetector.hotKeys().size());
+        Map<String, Object> executor = new LinkedHashMap<>();
+        executor.put("poolSize", CACHE_REBUILD_EXECUTOR.getPoolSize());
+        executor.put("active", CACHE_REBUILD_EXECUTOR.getActiveCount());
+        executor.put("queued", CACHE_REBUILD_EXECUTOR.getQueue().size());
+        executor.put("completed", CACHE_REBUILD_EXECUTOR.getCompletedTaskCount());
+        metrics.put("rebuildExecutor", executor);
+        metrics.put("inFlightLoads", inFlight.size());
+        metrics.put("rebuilding", rebuilding.size());
+        return metrics;
+    }
+
+    /**
+     * 当前的热点key，按访问频率从高到低
+     */
+    public List<Map<String, Object>> hotKeys() {
+        return hotKeyDetector.hotKeys();
+    }
+
+    /**
+     * 衰减热点key的访问次数（HotKeyDecayJob定时调用），冷却的热点key降级：只删掉本节点的本地缓存
+     * <p>
+     * 不动redis里的key：其他节点可能还把它当热点key在读；热点key写入时已经带了TTL（逻辑过期时间的2倍），
+     * 降级后按普通缓存读取，等TTL到了按普通缓存重新加载。
+     * </p>
+     */
+    public void decayHotKeys() {
+        for (HotKeyDetector.HotKey hotKey : hotKeyDetector.decay()) {
+            if (localCache != null) {
+                localCache.invalidate(hotKey.getKey());
+            }
+            log.debug("热点key降级: {}", hotKey.getKey());
+        }
     }
 
     /**
      * 3、根据指定的key查询缓存，并反序列化为指定类型，利用缓存空值 (空字符串""，不是null) 解决缓存穿透问题
+     * 有布隆过滤器的key前缀（店铺），一定不存在的id直接返回null，不查redis、数据库，也不缓存空值
      */
     public <R, ID> R queryWithCachePenetrate(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        CacheMetrics.Stats stats = cacheMetrics.of(keyPrefix);
+        if (!mightExist(keyPrefix, id, stats)) {
+            return null;
+        }
         String key = keyPrefix + id;
-        // 从redis查询缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
-        // 缓存命中
-        if (StrUtil.isNotBlank(json)) {
-            return JSONUtil.toBean(json, type);
-        }
-        // json为null 或者 空值""
-        if (json != null) {
-            // 缓存查到的是空值""。返回错误信息
+        hotKeyDetector.record(key);
+        return queryWithTtl(key, id, type, dbFallback, time, unit, stats);
+    }
+
+    /**
+     * 7、热点key自动分层：访问频率没超过阈值的key按3查询（TTL缓存 + 缓存空值）；
+     * 热点key改用逻辑过期（redis里的TTL是逻辑过期时间的2倍，只用来清理没人访问的key；快过期和过期后异步重建，不会因为过期击穿到数据库，
+     * redis里没有时本节点只有一个线程去加载），
+     * 冷却后降级回TTL缓存。两种格式的值都能读，刚升级、降级的key读到另一种格式也没问题
+     */
+    public <R, ID> R queryWithHotKey(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        CacheMetrics.Stats stats = cacheMetrics.of(keyPrefix);
+        if (!mightExist(keyPrefix, id, stats)) {
             return null;
         }
+        String key = keyPrefix + id;
+        if (!hotKeyDetector.record(key)) {
+            return queryWithTtl(key, id, type, dbFallback, time, unit, stats);
+        }
+        return queryLogical(key, id, type, dbFallback, time, unit, true, stats);
+    }
+
+    // 查TTL缓存，未命中查数据库
+    private <R, ID> R queryWithTtl(String key, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit, CacheMetrics.Stats stats) {
+        Object cached = getCached(key, type, stats);
+        if (cached != null) {
+            return cached == NULL_VALUE ? null : type.cast(cached);
+        }
         // 缓存未命中，根据id查数据库
-        R r = dbFallback.apply(id);
+        return loadAndSet(key, id, dbFallback, time, unit, stats);
+    }
 
-        if (r != null) {    // 数据库中有，写入redis
-            this.set(key, r, time, unit);
-        } else {    // 数据库也没有，将空值""写入redis
-            stringRedisTemplate.opsForValue().set(key, "", time, unit);
+    /**
+     * 5、根据指定的key查询缓存，未命中时用互斥锁重建缓存，解决缓存击穿问题（同时缓存空值解决缓存穿透）
+     * <p>
+     * 本节点内同一个key只有一个线程去抢redis锁、查数据库，其他线程等它的结果（不轮询）；
+     * 没抢到redis锁（其他节点在重建）时，由这一个线程退避着重新检查redis，等到锁超时还没有结果就自己查数据库。
+     * </p>
+     */
+    public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        CacheMetrics.Stats stats = cacheMetrics.of(keyPrefix);
+        if (!mightExist(keyPrefix, id, stats)) {
+            return null;
+        }
+        String key = keyPrefix + id;
+        hotKeyDetector.record(key);
+        Object cached = getCached(key, type, stats);
+        if (cached != null) {
+            return cached == NULL_VALUE ? null : type.cast(cached);
+        }
+        return singleFlight(key, stats, () -> {
+            String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(RedisConstants.LOCK_SHOP_TTL);
+            long backoff = LOCK_RETRY_MIN_MILLIS;
+            while (true) {
+                if (tryLock(lockKey, stats)) {
+                    try {
+                        // double check，等锁期间可能已经有人重建好了
+                        Object rebuilt = getRedis(key, type, stats);
+                        if (rebuilt != null) {
+                            return rebuilt == NULL_VALUE ? null : type.cast(rebuilt);
+                        }
+                        return loadAndSet(key, id, dbFallback, time, unit, stats);
+                    } finally {
+                        unlock(lockKey);
+                    }
+                }
+                if (System.currentTimeMillis() >= deadline) {
+                    // 持有锁的节点迟迟没有重建好（可能已经宕机），自己查数据库
+                    return loadAndSet(key, id, dbFallback, time, unit, stats);
+                }
+                sleep(backoff);
+                backoff = Math.min(backoff * 2, LOCK_RETRY_MAX_MILLIS);
+                Object rebuilt = getRedis(key, type, stats);
+                if (rebuilt != null) {
+                    return rebuilt == NULL_VALUE ? null : type.cast(rebuilt);
+                }
+            }
+        });
+    }
+
+    /**
+     * 6、批量查询：一次MGET查出所有key，未命中的id用一次IN查询从数据库加载，再用pipeline批量写回redis（数据库也没有的写入空值""）
+     * 列表接口每页只需要2~3次网络往返，而不是每个id各查一次
+     *
+     * @param batchDbFallback 根据未命中的id批量查数据库，返回 id -> 数据
+     * @return 和ids一一对应（顺序相同），不存在的id对应null
+     */
+    public <R, ID> List<R> queryMany(String keyPrefix, List<ID> ids, Class<R> type, Function<List<ID>, Map<ID, R>> batchDbFallback, Long time, TimeUnit unit) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        CacheMetrics.Stats stats = cacheMetrics.of(keyPrefix);
+        Map<ID, Object> found = new LinkedHashMap<>(ids.size() * 2);    // id -> 对象/NULL_VALUE
+        // 1.布隆过滤器和本地缓存
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            if (found.containsKey(id)) {
+                continue;
+            }
+            if (!mightExist(keyPrefix, id, stats)) {
+                found.put(id, NULL_VALUE);
+                continue;
+            }
+            String key = keyPrefix + id;
+            hotKeyDetector.record(key);
+            Object local = getLocal(key);
+            if (local != null) {
+                stats.localHit();
+                found.put(id, local instanceof LocalData ? ((LocalData) local).data : local);
+                continue;
+            }
+            if (localCache != null) {
+                stats.localMiss();
+            }
+            found.put(id, null);
+            remoteIds.add(id);
+        }
+        // 2.一次MGET查redis
+        List<ID> missIds = new ArrayList<>();
+        if (!remoteIds.isEmpty()) {
+            List<String> keys = new ArrayList<>(remoteIds.size());
+            long[] versions = new long[remoteIds.size()];
+            for (int i = 0; i < remoteIds.size(); i++) {
+                keys.add(keyPrefix + remoteIds.get(i));
+                versions[i] = version(keys.get(i));
+            }
+            List<byte[]> values = byteRedisTemplate.opsForValue().multiGet(keys);
+            for (int i = 0; i < remoteIds.size(); i++) {
+                ID id = remoteIds.get(i);
+                Object cached = decode(keys.get(i), values == null ? null : values.get(i), type, versions[i], stats);
+                if (cached != null) {
+                    found.put(id, cached);
+                } else {
+                    stats.redisMiss();
+                    missIds.add(id);
+                }
+            }
+        }
+        // 3.未命中的一次查数据库，pipeline写回redis
+        if (!missIds.isEmpty()) {
+            long begin = System.currentTimeMillis();
+            Map<ID, R> loaded = batchDbFallback.apply(missIds);
+            long millis = unit.toMillis(time);
+            byteRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : missIds) {
+                    R r = loaded == null ? null : loaded.get(id);
+                    byte[] key = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                    connection.pSetEx(key, jitter(millis), r == null ? EMPTY : cacheCodec.encode(r));
+                }
+                return null;
+            });
+            stats.dbLoad(System.currentTimeMillis() - begin);
+            for (ID id : missIds) {
+                R r = loaded == null ? null : loaded.get(id);
+                String key = keyPrefix + id;
+                putLocal(key, r == null ? NULL_VALUE : r, version(key));
+                found.put(id, r == null ? NULL_VALUE : r);
+            }
+        }
+        // 4.按输入顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            Object value = found.get(id);
+            result.add(value == null || value == NULL_VALUE ? null : type.cast(value));
+        }
+        return result;
+    }
+
+    /**
+     * 本节点内合并同一个key的并发加载：第一个线程执行loader，同时到达的其他线程等待并共享它的结果（或异常）
+     */
+    public <T> T singleFlight(String key, Supplier<T> loader) {
+        return singleFlight(key, cacheMetrics.of(key.substring(0, key.lastIndexOf(':') + 1)), loader);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T singleFlight(String key, CacheMetrics.Stats stats, Supplier<T> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            stats.sharedLoad();
+            try {
+                return (T) running.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            T value = loader.get();
+            future.complete(value);
+            return value;
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
         }
-        return r;
     }
 
     /**
      * 4、根据指定的key查询缓存，并反序列化为指定类型，需要利用逻辑过期解决缓存击穿问题
      */
     public <R, ID> R queryWithCacheBreakdownWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
-        String key = keyPrefix + id;
+        return queryLogical(keyPrefix + id, id, type, dbFallback, time, unit, false, cacheMetrics.of(keyPrefix));
+    }
+
+    /**
+     * 查逻辑过期的缓存
+     *
+     * @param loadOnMiss redis里没有时是否查数据库：手动预热的key（4）不查，直接返回null；热点key（7）查
+     */
+    private <R, ID> R queryLogical(String key, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit, boolean loadOnMiss,
+                                   CacheMetrics.Stats stats) {
+        stats.logicalRead();
+        // 先查本地缓存，本地缓存的数据没有逻辑过期才能直接用
+        Object local = getLocal(key);
+        if (local instanceof LocalData) {
+            LocalData localData = (LocalData) local;
+            long remaining = millisUntil(localData.expireTime);
+            if (remaining > 0) {
+                stats.localHit();
+                if (shouldRefreshEarly(remaining, localData.rebuildMillis)) {
+                    refresh(key, id, type, localData.expireTime, dbFallback, time, unit, loadOnMiss, stats);
+                }
+                return type.cast(localData.data);
+            }
+            // 逻辑过期了，去redis看看有没有重建好的数据
+            localCache.invalidate(key);
+        } else if (local != null && loadOnMiss) {
+            // 升级成热点key之前按普通缓存放进来的，还没过期，直接用
+            stats.localHit();
+            return local == NULL_VALUE ? null : type.cast(local);
+        }
+        if (localCache != null) {
+            stats.localMiss();
+        }
+        long version = version(key);
         // 查缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = byteRedisTemplate.opsForValue().get(key);
         // 缓存未命中
-        if (StrUtil.isBlank(json)) {
-            return null;    // 不是热点key，没事先预热，返回null即可
+        if (bytes == null) {
+            stats.redisMiss();
+            // 手动预热的key：不是热点key，没事先预热，返回null即可
+            return loadOnMiss ? loadLogical(key, id, dbFallback, time, unit, stats) : null;
+        }
+        // 缓存的空值
+        if (bytes.length == 0) {
+            stats.redisNullHit();
+            putLocal(key, NULL_VALUE, version);
+            return null;
         }
-        // 缓存命中，解析json
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        JSONObject jsonObject = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(jsonObject, type);      // 缓存中的java对象数据
-        LocalDateTime expireTime = redisData.getExpireTime();   // 过期时间
+        stats.redisHit();
+        // 缓存命中，解码一次得到对象和逻辑过期时间
+        RedisData redisData = decodeWithExpire(key, bytes, type, stats);
+        R r = redisData == null ? null : type.cast(redisData.getData());      // 缓存中的java对象数据
+        // 解码失败、普通缓存格式（没有逻辑过期时间）都当作已过期，重建缓存
+        boolean hasExpire = redisData != null && redisData.getExpireTime() != null;
+        LocalDateTime expireTime = hasExpire ? redisData.getExpireTime() : LocalDateTime.MIN;   // 过期时间
+        long remaining = hasExpire ? millisUntil(expireTime) : -1;
 
         // 缓存没过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
+        if (remaining > 0) {
+            putLocal(key, new LocalData(r, expireTime, redisData.getRebuildMillis()), version);
+            // 快过期了，概率性提前重建，自己照样返回当前数据
+            if (shouldRefreshEarly(remaining, redisData.getRebuildMillis())) {
+                refresh(key, id, type, expireTime, dbFallback, time, unit, loadOnMiss, stats);
+            }
             return r;
         }
+        // 解码失败，没有旧数据可以返回，热点key直接查数据库
+        if (r == null && loadOnMiss) {
+            return loadLogical(key, id, dbFallback, time, unit, stats);
+        }
         // 缓存过期，需要重建缓存
+        Object rebuilt = refresh(key, id, type, expireTime, dbFallback, time, unit, loadOnMiss, stats);
+        if (rebuilt != null) {
+            return type.cast(rebuilt);    // 缓存中的新数据
+        }
+        // 返回旧数据（保证可用性）
+        if (r != null) {
+            stats.staleServe();
+        }
+        return r;
+    }
+
+    // 查数据库，写入带逻辑过期时间的缓存（数据库也没有时写入空值），本节点同一个key只有一个线程去查
+    private <R, ID> R loadLogical(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit, CacheMetrics.Stats stats) {
+        return singleFlight(key, stats, () -> {
+            long begin = System.currentTimeMillis();
+            R r = dbFallback.apply(id);
+            long rebuildMillis = System.currentTimeMillis() - begin;
+            if (r != null) {
+                writeLogical(key, r, time, unit, rebuildMillis, true);
+            } else {
+                byteRedisTemplate.opsForValue().set(key, EMPTY, jitter(unit.toMillis(time)), TimeUnit.MILLISECONDS);
+                putLocal(key, NULL_VALUE, version(key));
+            }
+            stats.dbLoad(System.currentTimeMillis() - begin);
+            return r;
+        });
+    }
+
+    /**
+     * 抢锁后异步重建逻辑过期的缓存。double check时发现已经被别人重建了（过期时间比seenExpireTime新，并且没过期）就返回新数据，否则返回null
+     *
+     * @param safetyTtl 重建后的key是否带TTL，热点key（7）带，手动预热的key（4）不带
+     */
+    private <R, ID> Object refresh(String key, ID id, Class<R> type, LocalDateTime seenExpireTime, Function<ID, R> dbFallback, Long time, TimeUnit unit,
+                                   boolean safetyTtl, CacheMetrics.Stats stats) {
+        // 本节点已经有线程在重建了，不用再去抢redis锁
+        if (!rebuilding.add(key)) {
+            return null;
+        }
         // 获取互斥锁
         String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        boolean getLock = tryLock(lockKey);
-        if (getLock) {   // 成功获取锁
+        boolean getLock = false;
+        try {
+            getLock = tryLock(lockKey, stats);
+            if (!getLock) {
+                return null;
+            }
             // 重建缓存前，需要再次检查缓存的过期时间，double check
-            json = stringRedisTemplate.opsForValue().get(key);
-            redisData = JSONUtil.toBean(json, RedisData.class);
-            expireTime = redisData.getExpireTime();
-            if (expireTime.isAfter(LocalDateTime.now())) {  // 现在的缓存又没过期
-                return JSONUtil.toBean((JSONObject) redisData.getData(), type);    // 缓存中的新数据
+            byte[] bytes = byteRedisTemplate.opsForValue().get(key);
+            RedisData redisData = bytes == null || bytes.length == 0 ? null : decodeWithExpire(key, bytes, type, stats);
+            if (redisData != null && redisData.getExpireTime() != null && redisData.getExpireTime().isAfter(seenExpireTime)
+                    && redisData.getExpireTime().isAfter(LocalDateTime.now())) {  // 已经被别人重建了
+                getLock = false;
+                unlock(lockKey);
+                return redisData.getData();
+            }
+            if (seenExpireTime.isAfter(LocalDateTime.now())) {
+                stats.earlyRefresh();
             }
-            // 还是过期的数据，要重建缓存了
+            // 还是之前的数据，要重建缓存了
+            stats.asyncRebuild();
             CACHE_REBUILD_EXECUTOR.submit(() -> {
                 try {
-                    // 查数据库
+                    // 查数据库，记录耗时
+                    long begin = System.currentTimeMillis();
                     R r1 = dbFallback.apply(id);
                     // 写入redis，带逻辑过期时间
-                    this.setWithLogicalExpire(key, r1, time, unit);
+                    writeLogical(key, r1, time, unit, System.currentTimeMillis() - begin, safetyTtl);
+                    stats.dbLoad(System.currentTimeMillis() - begin);
                 } catch (Exception e) {
+                    stats.asyncRebuildFail();
                     throw new RuntimeException(e);
                 } finally {
                     unlock(lockKey);
+                    rebuilding.remove(key);
                 }
             });
+            return null;
+        } finally {
+            if (!getLock) {
+                rebuilding.remove(key);
+            }
         }
-        // 返回旧数据（保证可用性）
+    }
+
+    /**
+     * XFetch：剩余时间 <= 重建耗时 * beta * -ln(随机数) 时提前重建
+     * 离过期越近、重建越慢，提前重建的概率越大；每次读独立抽样，大量读者里只有少数几个会在过期前触发重建
+     */
+    private boolean shouldRefreshEarly(long remainingMillis, long rebuildMillis) {
+        double beta = cacheProperties.getEarlyRefreshBeta();
+        if (beta <= 0 || rebuildMillis <= 0) {
+            return false;
+        }
+        return remainingMillis <= rebuildMillis * beta * -Math.log(ThreadLocalRandom.current().nextDouble());
+    }
+
+    // 过期时间加上 [0, ttlJitterRatio) 倍的随机抖动
+    private long jitter(long millis) {
+        double ratio = cacheProperties.getTtlJitterRatio();
+        if (ratio <= 0 || millis <= 0) {
+            return millis;
+        }
+        return millis + (long) (millis * ratio * ThreadLocalRandom.current().nextDouble());
+    }
+
+    private static long millisUntil(LocalDateTime expireTime) {
+        return Duration.between(LocalDateTime.now(), expireTime).toMillis();
+    }
+
+    // 布隆过滤器判断id是否可能存在
+    private boolean mightExist(String keyPrefix, Object id, CacheMetrics.Stats stats) {
+        if (idBloomFilter.mightContainCacheKey(keyPrefix, id)) {
+            return true;
+        }
+        stats.bloomReject();
+        return false;
+    }
+
+    /**
+     * 依次查本地缓存、redis，命中时返回对象（空值返回NULL_VALUE），都未命中返回null
+     */
+    private Object getCached(String key, Class<?> type, CacheMetrics.Stats stats) {
+        // 先查本地缓存
+        Object local = getLocal(key);
+        if (local != null) {
+            stats.localHit();
+            // 热点key按逻辑过期放进来的，本地缓存的过期时间已经限制了不一致时间，直接用
+            return local instanceof LocalData ? ((LocalData) local).data : local;
+        }
+        if (localCache != null) {
+            stats.localMiss();
+        }
+        Object cached = getRedis(key, type, stats);
+        if (cached == null) {
+            stats.redisMiss();
+        }
+        return cached;
+    }
+
+    // 查redis，命中时放入本地缓存
+    private Object getRedis(String key, Class<?> type, CacheMetrics.Stats stats) {
+        long version = version(key);
+        return decode(key, byteRedisTemplate.opsForValue().get(key), type, version, stats);
+    }
+
+    /**
+     * 解码redis里的值并放入本地缓存：返回对象，空值返回NULL_VALUE，不存在或解码失败返回null
+     */
+    private Object decode(String key, byte[] bytes, Class<?> type, long version, CacheMetrics.Stats stats) {
+        if (bytes == null) {
+            return null;
+        }
+        // 缓存查到的是空值
+        if (bytes.length == 0) {
+            stats.redisNullHit();
+            putLocal(key, NULL_VALUE, version);
+            return NULL_VALUE;
+        }
+        Object r;
+        try {
+            r = cacheCodec.decode(bytes, type);
+        } catch (Exception e) {
+            // 格式不对（类的字段改了、其他版本写入的数据），当作未命中，重新加载后覆盖
+            log.warn("缓存解码失败，当作未命中, key: {}, {}", key, e.getMessage());
+            stats.decodeFail();
+            return null;
+        }
+        stats.redisHit();
+        putLocal(key, r, version);
         return r;
     }
 
+    // 解码带逻辑过期时间的值；普通缓存格式（刚升级成热点key）返回的expireTime为null；解码失败返回null
+    private RedisData decodeWithExpire(String key, byte[] bytes, Class<?> type, CacheMetrics.Stats stats) {
+        try {
+            return cacheCodec.decodeWithExpire(bytes, type);
+        } catch (Exception e) {
+            try {
+                RedisData redisData = new RedisData();
+                redisData.setData(cacheCodec.decode(bytes, type));
+                return redisData;
+            } catch (Exception ignored) {
+                log.warn("缓存解码失败，当作已过期, key: {}, {}", key, e.getMessage());
+                stats.decodeFail();
+                return null;
+            }
+        }
+    }
+
+    // 查数据库，写入redis（数据库也没有时写入空值""）和本地缓存
+    private <R, ID> R loadAndSet(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit, CacheMetrics.Stats stats) {
+        long begin = System.currentTimeMillis();
+        R r = dbFallback.apply(id);
+
+        if (r != null) {    // 数据库中有，写入redis
+            this.set(key, r, time, unit);
+        } else {    // 数据库也没有，将空值写入redis
+            byteRedisTemplate.opsForValue().set(key, EMPTY, jitter(unit.toMillis(time)), TimeUnit.MILLISECONDS);
+        }
+        // 数据库读到的是最新的数据，写入redis之后再放进本地缓存
+        putLocal(key, r == null ? NULL_VALUE : r, version(key));
+        stats.dbLoad(System.currentTimeMillis() - begin);
+        return r;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待缓存重建时被中断", e);
+        }
+    }
+
+    // 查本地缓存，未开启或未命中返回null
+    private Object getLocal(String key) {
+        return localCache == null ? null : localCache.getIfPresent(key);
+    }
+
+    // key所在分段
+    private static int stripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (INVALIDATION_STRIPES - 1);
+    }
+
+    // key所在分段当前的失效通知数，读redis之前取一次，放入本地缓存时用
+    private long version(String key) {
+        return invalidations.get(stripe(key));
+    }
+
+    /**
+     * 放入本地缓存。version是读redis之前key所在分段的失效通知数，读的过程中这一段收到过失效通知的话，读到的可能是旧数据，不能留在本地缓存里
+     * （先放再检查：失效通知在放之前到达会被这里发现，在放之后到达会直接删掉它）
+     */
+    private void putLocal(String key, Object value, long version) {
+        if (localCache == null || (localHotOnly && !hotKeyDetector.isHot(key))) {
+            return;
+        }
+        localCache.put(key, value);
+        if (version(key) != version) {
+            localCache.invalidate(key);
+        }
+    }
+
+    private void invalidateLocal(String key) {
+        if (localCache == null) {
+            return;
+        }
+        invalidations.incrementAndGet(stripe(key));
+        localCache.invalidate(key);
+    }
+
+    // 本地缓存里逻辑过期的数据（已经反序列化好的对象 + 逻辑过期时间）
+    private static class LocalData {
+        private final Object data;
+        private final LocalDateTime expireTime;
+        private final long rebuildMillis;
+
+        LocalData(Object data, LocalDateTime expireTime, long rebuildMillis) {
+            this.data = data;
+            this.expireTime = expireTime;
+            this.rebuildMillis = rebuildMillis;
+        }
+    }
+
     // 使用redis的setnx命令实现互斥锁
-    private boolean tryLock(String key) {
+    private boolean tryLock(String key, CacheMetrics.Stats stats) {
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
         // flag如果为null，自动拆箱时，由于没有对应的类型，回报空指针异常，所以使用BooleanUtil.isTrue()方法
-        return BooleanUtil.isTrue(flag);
+        boolean getLock = BooleanUtil.isTrue(flag);
+        stats.lockAttempt(getLock);
+        return getLock;
     }
 
     private void unlock(String key) {
@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+import java.time.LocalDateTime;
+
+/**
+ * 缓存值的编解码：对象 <-> redis里的字节
+ * <p>
+ * 空值（缓存穿透时缓存的""）不经过编解码，直接存0字节。
+ * </p>
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码普通缓存值
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 解码普通缓存值，带逻辑过期时间的值也能解码（忽略过期时间）
+     * 数据格式不对（比如类的字段改了）时抛异常，调用方当作缓存未命中
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 编码带逻辑过期时间的缓存值
+     *
+     * @param rebuildMillis 重建这个值（查数据库）的耗时，读取时用来决定是否提前重建，0表示未知
+     */
+    byte[] encodeWithExpire(Object value, LocalDateTime expireTime, long rebuildMillis);
+
+    /**
+     * 解码带逻辑过期时间的缓存值，返回的RedisData.data已经是type类型的对象
+     * 没有逻辑过期时间的普通缓存值抛异常
+     */
+    RedisData decodeWithExpire(byte[] bytes, Class<?> type);
+}
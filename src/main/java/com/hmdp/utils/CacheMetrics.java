@@ -0,0 +1,233 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CacheClient的分层命中统计：L1（本地缓存）、L2（redis）、数据库，按key前缀（cache:shop:、cache:user:...）分别统计
+ * <p>
+ * 计数用LongAdder，命中路径上只有一次按前缀的map查找（前缀是常量字符串，hash已缓存）和一次无竞争的累加；
+ * 总数在 {@link #snapshot()} 时把各前缀加起来，不在命中路径上重复累加。
+ * </p>
+ */
+@Component
+public class CacheMetrics {
+
+    private final LongAdder invalidation = new LongAdder(); // 收到的L1失效通知数（不分前缀）
+    private final Map<String, Stats> prefixes = new ConcurrentHashMap<>();
+
+    /**
+     * key前缀对应的统计
+     */
+    public Stats of(String keyPrefix) {
+        Stats stats = prefixes.get(keyPrefix);
+        return stats != null ? stats : prefixes.computeIfAbsent(keyPrefix, k -> new Stats());
+    }
+
+    public void invalidation() {
+        invalidation.increment();
+    }
+
+    /**
+     * 当前的计数和各层命中率：外层是所有前缀的合计，prefixes里是每个前缀各自的
+     */
+    public Map<String, Object> snapshot() {
+        Stats total = new Stats();
+        Map<String, Object> byPrefix = new TreeMap<>();
+        prefixes.forEach((prefix, stats) -> {
+            total.add(stats);
+            byPrefix.put(prefix, stats.snapshot());
+        });
+        Map<String, Object> snapshot = total.snapshot();
+        snapshot.put("invalidation", invalidation.sum());
+        snapshot.put("prefixes", byPrefix);
+        return snapshot;
+    }
+
+    private static double rate(long hit, long total) {
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    /**
+     * 一个key前缀的统计
+     */
+    public static class Stats {
+        // 回源耗时的分桶上限（毫秒），最后一个桶是更慢的
+        private static final long[] LOAD_BUCKETS = {10, 50, 100, 500, 1000};
+
+        private final LongAdder bloomReject = new LongAdder();  // 被布隆过滤器拦截的不存在的id
+        private final LongAdder localHit = new LongAdder();     // L1命中
+        private final LongAdder localMiss = new LongAdder();    // L1未命中（包括逻辑过期后要回源redis的）
+        private final LongAdder redisHit = new LongAdder();     // L2命中数据
+        private final LongAdder redisNullHit = new LongAdder(); // L2命中空值""
+        private final LongAdder redisMiss = new LongAdder();    // L2未命中
+        private final LongAdder decodeFail = new LongAdder();   // 解码失败（当作未命中或已过期）
+        private final LongAdder dbLoad = new LongAdder();       // 回源数据库次数（重建缓存次数）
+        private final LongAdder dbLoadMillis = new LongAdder(); // 回源数据库的总耗时
+        private final LongAccumulator dbLoadMaxMillis = new LongAccumulator(Math::max, 0);
+        private final LongAdder[] dbLoadBuckets = new LongAdder[LOAD_BUCKETS.length + 1];
+        private final LongAdder sharedLoad = new LongAdder();   // 等待本节点其他线程加载结果的次数（single-flight合并掉的加载）
+        private final LongAdder logicalRead = new LongAdder();  // 逻辑过期方式的查询次数
+        private final LongAdder staleServe = new LongAdder();   // 逻辑过期后返回旧数据的次数
+        private final LongAdder earlyRefresh = new LongAdder(); // 没过期就概率性提前触发重建的次数
+        private final LongAdder asyncRebuild = new LongAdder(); // 提交给重建线程池的异步重建次数
+        private final LongAdder asyncRebuildFail = new LongAdder(); // 异步重建失败次数
+        private final LongAdder lockAttempt = new LongAdder();  // 抢重建锁（lock:shop:）的次数
+        private final LongAdder lockAcquired = new LongAdder(); // 抢到锁的次数
+
+        Stats() {
+            for (int i = 0; i < dbLoadBuckets.length; i++) {
+                dbLoadBuckets[i] = new LongAdder();
+            }
+        }
+
+        public void bloomReject() {
+            bloomReject.increment();
+        }
+
+        public void localHit() {
+            localHit.increment();
+        }
+
+        public void localMiss() {
+            localMiss.increment();
+        }
+
+        public void redisHit() {
+            redisHit.increment();
+        }
+
+        public void redisNullHit() {
+            redisNullHit.increment();
+        }
+
+        public void redisMiss() {
+            redisMiss.increment();
+        }
+
+        public void decodeFail() {
+            decodeFail.increment();
+        }
+
+        /**
+         * 回源数据库一次（查完数据库、写完缓存之后调用）
+         *
+         * @param millis 耗时
+         */
+        public void dbLoad(long millis) {
+            dbLoad.increment();
+            dbLoadMillis.add(millis);
+            dbLoadMaxMillis.accumulate(millis);
+            int bucket = 0;
+            while (bucket < LOAD_BUCKETS.length && millis > LOAD_BUCKETS[bucket]) {
+                bucket++;
+            }
+            dbLoadBuckets[bucket].increment();
+        }
+
+        public void sharedLoad() {
+            sharedLoad.increment();
+        }
+
+        public void logicalRead() {
+            logicalRead.increment();
+        }
+
+        public void staleServe() {
+            staleServe.increment();
+        }
+
+        public void earlyRefresh() {
+            earlyRefresh.increment();
+        }
+
+        public void asyncRebuild() {
+            asyncRebuild.increment();
+        }
+
+        public void asyncRebuildFail() {
+            asyncRebuildFail.increment();
+        }
+
+        public void lockAttempt(boolean acquired) {
+            lockAttempt.increment();
+            if (acquired) {
+                lockAcquired.increment();
+            }
+        }
+
+        // 把other的计数加到这里（算合计用）
+        private void add(Stats other) {
+            bloomReject.add(other.bloomReject.sum());
+            localHit.add(other.localHit.sum());
+            localMiss.add(other.localMiss.sum());
+            redisHit.add(other.redisHit.sum());
+            redisNullHit.add(other.redisNullHit.sum());
+            redisMiss.add(other.redisMiss.sum());
+            decodeFail.add(other.decodeFail.sum());
+            dbLoad.add(other.dbLoad.sum());
+            dbLoadMillis.add(other.dbLoadMillis.sum());
+            dbLoadMaxMillis.accumulate(other.dbLoadMaxMillis.get());
+            for (int i = 0; i < dbLoadBuckets.length; i++) {
+                dbLoadBuckets[i].add(other.dbLoadBuckets[i].sum());
+            }
+            sharedLoad.add(other.sharedLoad.sum());
+            logicalRead.add(other.logicalRead.sum());
+            staleServe.add(other.staleServe.sum());
+            earlyRefresh.add(other.earlyRefresh.sum());
+            asyncRebuild.add(other.asyncRebuild.sum());
+            asyncRebuildFail.add(other.asyncRebuildFail.sum());
+            lockAttempt.add(other.lockAttempt.sum());
+            lockAcquired.add(other.lockAcquired.sum());
+        }
+
+        private Map<String, Object> snapshot() {
+            long l1Hit = localHit.sum();
+            long l1Miss = localMiss.sum();
+            long l2Hit = redisHit.sum();
+            long l2NullHit = redisNullHit.sum();
+            long l2Miss = redisMiss.sum();
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("bloomReject", bloomReject.sum());
+            snapshot.put("l1Hit", l1Hit);
+            snapshot.put("l1Miss", l1Miss);
+            snapshot.put("l1HitRate", rate(l1Hit, l1Hit + l1Miss));
+            snapshot.put("l2Hit", l2Hit);
+            snapshot.put("l2NullHit", l2NullHit);
+            snapshot.put("l2Miss", l2Miss);
+            snapshot.put("l2HitRate", rate(l2Hit + l2NullHit, l2Hit + l2NullHit + l2Miss));
+            snapshot.put("decodeFail", decodeFail.sum());
+            long loads = dbLoad.sum();
+            snapshot.put("dbLoad", loads);
+            snapshot.put("dbLoadAvgMillis", loads == 0 ? 0 : (double) dbLoadMillis.sum() / loads);
+            snapshot.put("dbLoadMaxMillis", dbLoadMaxMillis.get());
+            Map<String, Long> buckets = new LinkedHashMap<>();
+            for (int i = 0; i < LOAD_BUCKETS.length; i++) {
+                buckets.put("<=" + LOAD_BUCKETS[i] + "ms", dbLoadBuckets[i].sum());
+            }
+            buckets.put(">" + LOAD_BUCKETS[LOAD_BUCKETS.length - 1] + "ms", dbLoadBuckets[LOAD_BUCKETS.length].sum());
+            snapshot.put("dbLoadMillis", buckets);
+            snapshot.put("sharedLoad", sharedLoad.sum());
+            long logical = logicalRead.sum();
+            long stale = staleServe.sum();
+            long lockTotal = lockAttempt.sum();
+            long locked = lockAcquired.sum();
+            snapshot.put("logicalRead", logical);
+            snapshot.put("staleServe", stale);
+            snapshot.put("staleServeRate", rate(stale, logical));
+            snapshot.put("earlyRefresh", earlyRefresh.sum());
+            snapshot.put("asyncRebuild", asyncRebuild.sum());
+            snapshot.put("asyncRebuildFail", asyncRebuildFail.sum());
+            snapshot.put("lockAttempt", lockTotal);
+            snapshot.put("lockAcquired", locked);
+            snapshot.put("lockFailRate", rate(lockTotal - locked, lockTotal));
+            return snapshot;
+        }
+    }
+}
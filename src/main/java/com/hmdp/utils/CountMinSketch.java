@@ -0,0 +1,103 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * count-min sketch：用固定大小的计数器估计每个key的访问次数，线程安全，不加锁
+ * <p>
+ * depth行、每行width个计数器，key在每行各映射到一个计数器，访问时都加1，估计值取这几个计数器的最小值。
+ * 估计值只会偏大不会偏小，偏大的部分来自哈希冲突，大约是 总访问次数/width。
+ * {@link #decay()} 把所有计数器减半，次数就变成了按时间衰减的访问频率，访问少了的key会慢慢降下来。
+ * </p>
+ */
+public class CountMinSketch {
+
+    private final AtomicIntegerArray counters;
+    private final int depth;
+    private final int widthMask;
+
+    /**
+     * @param depth 行数（哈希函数个数）
+     * @param width 每行的计数器个数，向上取到2的幂
+     */
+    public CountMinSketch(int depth, int width) {
+        this.depth = depth;
+        int w = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+        this.widthMask = w - 1;
+        this.counters = new AtomicIntegerArray(depth * w);
+    }
+
+    /**
+     * 访问次数加1，返回加完后的估计值
+     */
+    public int increment(String key) {
+        long h1 = hash(key);
+        long h2 = mix(h1);
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int index = index(i, h1, h2);
+            int count = counters.get(index);
+            // 计数器到上限后不再加，避免溢出
+            if (count < Integer.MAX_VALUE) {
+                count = counters.incrementAndGet(index);
+            }
+            min = Math.min(min, count);
+        }
+        return min;
+    }
+
+    /**
+     * 估计访问次数
+     */
+    public int estimate(String key) {
+        long h1 = hash(key);
+        long h2 = mix(h1);
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            min = Math.min(min, counters.get(index(i, h1, h2)));
+        }
+        return min;
+    }
+
+    /**
+     * 所有计数器减半（和并发的increment之间不加锁，少算几次没关系）
+     */
+    public void decay() {
+        for (int i = 0; i < counters.length(); i++) {
+            int count = counters.get(i);
+            if (count != 0) {
+                counters.set(i, count >>> 1);
+            }
+        }
+    }
+
+    /**
+     * 计数器占用的字节数
+     */
+    public long sizeInBytes() {
+        return counters.length() * 4L;
+    }
+
+    // 第row行的计数器下标，和BloomFilter一样用双重哈希
+    private int index(int row, long h1, long h2) {
+        return row * (widthMask + 1) + (int) ((h1 + row * h2) & widthMask);
+    }
+
+    private static long hash(String key) {
+        // String.hashCode只有32位，冲突多，用64位的FNV-1a（直接按char算，不分配内存）
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    // SplitMix64
+    private static long mix(long x) {
+        x += 0x9E3779B97F4A7C15L;
+        x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+}
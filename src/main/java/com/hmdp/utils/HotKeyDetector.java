@@ -0,0 +1,126 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 热点key识别：CacheClient每次查询都记一次访问，访问频率超过阈值的key成为热点key，冷却后降级
+ * <p>
+ * 1.访问次数用count-min sketch估计（固定内存，和key的数量无关），定时衰减（HotKeyDecayJob，计数器减半）；<br>
+ * 2.估计值达到 hotKeyThreshold 时升级为热点key（最多 hotKeyMaxSize 个），衰减后低于阈值的一半时降级，中间留一段避免来回切换；<br>
+ * 3.每个节点各自统计本节点的访问，同一个key在不同节点上可能一个是热点一个不是，CacheClient两种缓存格式都能读，
+ * 降级时也不动redis里的key（热点key写入redis时带了兜底的TTL）。
+ * </p>
+ */
+@Component
+public class HotKeyDetector {
+
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 1 << 16;    // 4*65536个int，共1MB
+
+    private final CacheProperties cacheProperties;
+    private final CountMinSketch sketch = new CountMinSketch(SKETCH_DEPTH, SKETCH_WIDTH);
+    private final Map<String, HotKey> hotKeys = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();    // 热点key数（包括正在升级的），先占名额再放进hotKeys，保证不超过上限
+
+    public HotKeyDetector(CacheProperties cacheProperties) {
+        this.cacheProperties = cacheProperties;
+    }
+
+    /**
+     * 记录一次访问，返回key现在是不是热点key
+     */
+    public boolean record(String key) {
+        if (!cacheProperties.isHotKeyEnabled()) {
+            return false;
+        }
+        int count = sketch.increment(key);
+        if (count < cacheProperties.getHotKeyThreshold()) {
+            return hotKeys.containsKey(key);
+        }
+        if (!hotKeys.containsKey(key) && reserve()) {
+            if (hotKeys.putIfAbsent(key, new HotKey(key)) != null) {
+                // 别的线程已经把它升级了，退还名额
+                size.decrementAndGet();
+            }
+        }
+        return hotKeys.containsKey(key);
+    }
+
+    // 占一个热点key的名额，满了返回false
+    private boolean reserve() {
+        int max = cacheProperties.getHotKeyMaxSize();
+        while (true) {
+            int current = size.get();
+            if (current >= max) {
+                return false;
+            }
+            if (size.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 衰减访问次数，返回降级的热点key
+     */
+    public List<HotKey> decay() {
+        sketch.decay();
+        List<HotKey> demoted = new ArrayList<>();
+        int coolThreshold = cacheProperties.getHotKeyThreshold() / 2;
+        for (Iterator<HotKey> it = hotKeys.values().iterator(); it.hasNext(); ) {
+            HotKey hotKey = it.next();
+            if (sketch.estimate(hotKey.key) < coolThreshold) {
+                it.remove();
+                size.decrementAndGet();
+                demoted.add(hotKey);
+            }
+        }
+        return demoted;
+    }
+
+    /**
+     * 当前的热点key，按访问频率从高到低
+     */
+    public List<Map<String, Object>> hotKeys() {
+        List<Map<String, Object>> list = new ArrayList<>(hotKeys.size());
+        for (HotKey hotKey : hotKeys.values()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("key", hotKey.key);
+            item.put("frequency", sketch.estimate(hotKey.key));
+            item.put("promoteTime", hotKey.promoteTime);
+            list.add(item);
+        }
+        list.sort(Comparator.comparing(item -> -(Integer) item.get("frequency")));
+        return list;
+    }
+
+    /**
+     * 热点key
+     */
+    public static class HotKey {
+        private final String key;
+        private final long promoteTime = System.currentTimeMillis();
+
+        HotKey(String key) {
+            this.key = key;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.mapper.BlogMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+import static com.hmdp.utils.RedisConstants.BLOOM_RECENT_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
+
+/**
+ * 店铺、blog、用户id的布隆过滤器，每个节点在内存里各存一份（不访问redis），用来拦截不存在的id，防止缓存穿透
+ * <p>
+ * 1.启动时后台从数据库按id分批（keyset分页）加载，加载完之前一律当作存在；<br>
+ * 2.新增数据时调用 {@link #add(String, long)}，本地加入后通过redis pub/sub（bloom:add）通知其他节点加入，
+ * 同时记到 bloom:recent:{name}（zset，score是新增时间）；<br>
+ * 3.pub/sub消息可能丢失：定时（IdBloomFilterSyncJob，bloomRecentSyncMillis）把 bloom:recent:{name} 里上次同步之后新增的id补到本地过滤器，
+ * 查询时只查本地过滤器、不访问redis，通知丢失的新id最多被拦截一个同步间隔；<br>
+ * 4.数据删除后id也还在过滤器里，所以定时全量重建（IdBloomFilterRebuildJob），重建期间新增的id同时写入新旧两份
+ * （写入和新旧交换在同一把锁里，不会漏掉），重建完删掉 bloom:recent 里两个重建间隔之前的id。
+ * </p>
+ */
+@Slf4j
+@Component
+public class IdBloomFilter {
+
+    public static final String SHOP = "shop";
+    public static final String BLOG = "blog";
+    public static final String USER = "user";
+
+    // 缓存key前缀 -> 过滤器，CacheClient按key前缀找对应的过滤器
+    private static final Map<String, String> CACHE_KEY_PREFIXES = new HashMap<>();
+
+    static {
+        CACHE_KEY_PREFIXES.put(CACHE_SHOP_KEY, SHOP);
+        CACHE_KEY_PREFIXES.put(CACHE_USER_KEY, USER);
+    }
+
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private BlogMapper blogMapper;
+    @Resource
+    private UserMapper userMapper;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private CacheProperties cacheProperties;
+
+    private final Map<String, Filter<?>> filters = new LinkedHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        filters.put(SHOP, new Filter<>(shopMapper));
+        filters.put(BLOG, new Filter<>(blogMapper));
+        filters.put(USER, new Filter<>(userMapper));
+        if (!cacheProperties.isBloomEnabled()) {
+            return;
+        }
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int i = body.indexOf(':');
+            Filter<?> filter = filters.get(body.substring(0, i));
+            if (filter != null) {
+                filter.put(Long.parseLong(body.substring(i + 1)));
+            }
+        }, new ChannelTopic(BLOOM_ADD_CHANNEL));
+        // 后台加载，不阻塞启动
+        Thread thread = new Thread(this::rebuildAll, "id-bloom-filter-init");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * id是否可能存在，false表示一定不存在；未开启或者还没加载完时返回true。只查本地过滤器，不访问redis
+     */
+    public boolean mightContain(String name, long id) {
+        Filter<?> filter = filters.get(name);
+        if (filter == null) {
+            return true;
+        }
+        BloomFilter current = filter.current;
+        return current == null || current.mightContain(id);
+    }
+
+    /**
+     * 按缓存key前缀判断id是否可能存在，没有对应过滤器的前缀返回true
+     */
+    public boolean mightContainCacheKey(String keyPrefix, Object id) {
+        String name = CACHE_KEY_PREFIXES.get(keyPrefix);
+        if (name == null || !(id instanceof Number)) {
+            return true;
+        }
+        return mightContain(name, ((Number) id).longValue());
+    }
+
+    /**
+     * 新增数据后调用，加入本地过滤器并通知其他节点
+     */
+    public void add(String name, long id) {
+        Filter<?> filter = filters.get(name);
+        if (filter == null || !cacheProperties.isBloomEnabled()) {
+            return;
+        }
+        filter.put(id);
+        try {
+            // 先记到最近新增的id里，再通知，其他节点收不到通知也能查到
+            stringRedisTemplate.opsForZSet().add(BLOOM_RECENT_KEY + name, String.valueOf(id), System.currentTimeMillis());
+            stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, name + ":" + id);
+        } catch (Exception e) {
+            // 其他节点在下次重建时会加上
+            log.error("广播布隆过滤器新增id异常, {}: {}", name, id, e);
+        }
+    }
+
+    /**
+     * 把 bloom:recent 里上次同步之后新增的id补到本地过滤器，兜底丢失的新增通知
+     * <p>
+     * score是新增节点的时间，各节点时钟可能有偏差，每次从上次同步时间往前多读一个同步间隔（重复加入没有影响）
+     * </p>
+     */
+    public void syncRecent() {
+        if (!cacheProperties.isBloomEnabled()) {
+            return;
+        }
+        filters.forEach((name, filter) -> {
+            long now = System.currentTimeMillis();
+            long from = Math.max(0, filter.syncedUntil - cacheProperties.getBloomRecentSyncMillis());
+            Set<String> ids;
+            try {
+                ids = stringRedisTemplate.opsForZSet().rangeByScore(BLOOM_RECENT_KEY + name, from, Double.POSITIVE_INFINITY);
+            } catch (Exception e) {
+                // 下次从同一个时间点继续
+                log.warn("同步最近新增的id异常, {}, {}", name, e.getMessage());
+                return;
+            }
+            if (ids != null) {
+                for (String id : ids) {
+                    filter.put(Long.parseLong(id));
+                }
+            }
+            filter.syncedUntil = now;
+        });
+    }
+
+    /**
+     * 从数据库全量重建所有过滤器
+     */
+    public void rebuildAll() {
+        if (!cacheProperties.isBloomEnabled()) {
+            return;
+        }
+        filters.forEach((name, filter) -> {
+            try {
+                rebuild(name, filter);
+            } catch (Exception e) {
+                // 重建失败继续用旧的
+                filter.abort();
+                log.error("重建布隆过滤器异常, {}", name, e);
+                return;
+            }
+            try {
+                // 两个重建间隔之前新增的id，所有节点都已经从数据库重新加载过了
+                long before = System.currentTimeMillis() - 2 * cacheProperties.getBloomRebuildIntervalMillis();
+                stringRedisTemplate.opsForZSet().removeRangeByScore(BLOOM_RECENT_KEY + name, 0, before);
+            } catch (Exception e) {
+                log.warn("清理最近新增的id异常, {}, {}", name, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * 各个过滤器的大小
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        filters.forEach((name, filter) -> {
+            BloomFilter current = filter.current;
+            stats.put(name, current == null ? Collections.emptyMap() : filter.stats());
+        });
+        return stats;
+    }
+
+    private <T> void rebuild(String name, Filter<T> filter) {
+        long begin = System.currentTimeMillis();
+        long count = filter.mapper.selectCount(null);
+        // 预留一倍的空间给之后新增的数据
+        long expected = Math.max(cacheProperties.getBloomExpectedInsertions(), count * 2);
+        BloomFilter building = new BloomFilter(expected, cacheProperties.getBloomFpp());
+        filter.startBuilding(building);
+        int batchSize = Math.max(1, cacheProperties.getBloomLoadBatchSize());
+        long lastId = 0;
+        long loaded = 0;
+        while (true) {
+            List<Object> ids = filter.mapper.selectObjs(new QueryWrapper<T>()
+                    .select("id").gt("id", lastId).orderByAsc("id").last("limit " + batchSize));
+            for (Object id : ids) {
+                lastId = ((Number) id).longValue();
+                building.put(lastId);
+            }
+            loaded += ids.size();
+            if (ids.size() < batchSize) {
+                break;
+            }
+        }
+        filter.finishBuilding();
+        filter.count = loaded;
+        filter.expected = expected;
+        log.info("布隆过滤器{}加载完成, id数: {}, 容量: {}, 大小: {}KB, 耗时: {}ms",
+                name, loaded, expected, building.sizeInBytes() / 1024, System.currentTimeMillis() - begin);
+    }
+
+    /**
+     * 一个表的过滤器。查询只读current不加锁；新增id（很少）和新旧交换用同一把锁，
+     * 新增的id要么写进了交换前的current和building，要么写进了交换后的current，不会两边都漏掉
+     */
+    private static class Filter<T> {
+        private final BaseMapper<T> mapper;
+        private volatile BloomFilter current;       // 正在使用的，加载完之前为null
+        private volatile BloomFilter building;      // 正在重建的
+        private volatile long count;
+        private volatile long expected;
+        private volatile long syncedUntil;          // 上次从bloom:recent同步到的时间
+
+        Filter(BaseMapper<T> mapper) {
+            this.mapper = mapper;
+        }
+
+        synchronized void put(long id) {
+            if (current != null) {
+                current.put(id);
+            }
+            if (building != null) {
+                building.put(id);
+            }
+        }
+
+        synchronized void startBuilding(BloomFilter building) {
+            this.building = building;
+        }
+
+        synchronized void finishBuilding() {
+            current = building;
+            building = null;
+        }
+
+        synchronized void abort() {
+            building = null;
+        }
+
+        Map<String, Object> stats() {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("loaded", count);
+            stats.put("expected", expected);
+            stats.put("hashes", current.getNumHashes());
+            stats.put("bytes", current.sizeInBytes());
+            return stats;
+        }
+    }
+}
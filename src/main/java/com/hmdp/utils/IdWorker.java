@@ -0,0 +1,17 @@
+package com.hmdp.utils;
+
+/**
+ * 全局唯一id生成器
+ * 实现：RedisIdWorker（默认，序列号在redis里自增）、SnowflakeIdWorker（hmdp.id.strategy=snowflake，本地生成）
+ */
+public interface IdWorker {
+
+    /**
+     * 生成id
+     *
+     * @param keyPrefix 业务前缀，如 order
+     * @return 正数id
+     */
+    long generateId(String keyPrefix);
+
+}
@@ -0,0 +1,53 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+/**
+ * 原来的缓存格式：hutool json字符串（UTF-8），带逻辑过期时间的是RedisData的json
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        // 带逻辑过期时间的值（热点key降级后留下的），只取data
+        if (json.containsKey("expireTime") && json.containsKey("data")) {
+            json = json.getJSONObject("data");
+        }
+        return json.toBean(type);
+    }
+
+    @Override
+    public byte[] encodeWithExpire(Object value, LocalDateTime expireTime, long rebuildMillis) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(expireTime);
+        redisData.setRebuildMillis(rebuildMillis);
+        return encode(redisData);
+    }
+
+    @Override
+    public RedisData decodeWithExpire(byte[] bytes, Class<?> type) {
+        // 只解析一次json，data直接转成目标类型（原来是先整体转RedisData，data再从JSONObject转一次）
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(json.get("expireTime", LocalDateTime.class));
+        if (redisData.getExpireTime() == null) {
+            throw new IllegalStateException("缓存数据没有逻辑过期时间");
+        }
+        redisData.setData(json.get("data", type));
+        // 旧数据没有重建耗时
+        Long rebuildMillis = json.getLong("rebuildMillis");
+        redisData.setRebuildMillis(rebuildMillis == null ? 0 : rebuildMillis);
+        return redisData;
+    }
+}
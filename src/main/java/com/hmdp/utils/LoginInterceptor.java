@@ -5,6 +5,8 @@ import org.springframework.web.servlet.HandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.util.Arrays;
+import java.util.List;
 
 
 /**
@@ -12,8 +14,18 @@ import javax.servlet.http.HttpServletResponse;
  */
 public class LoginInterceptor implements HandlerInterceptor {
 
+    // 不需要登录的请求方法（同一路径下查询公开、修改要登录时用）
+    private final List<String> anonymousMethods;
+
+    public LoginInterceptor(String... anonymousMethods) {
+        this.anonymousMethods = Arrays.asList(anonymousMethods);
+    }
+
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (anonymousMethods.contains(request.getMethod())) {
+            return true;
+        }
         // 1.判断是否需要拦截（ThreadLocal中是否有用户）
         if (UserHolder.getUser() == null) {
             // 没有，需要拦截，设置401状态码
@@ -11,10 +11,37 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
+    public static final String BLOOM_RECENT_KEY = "bloom:recent:";
+
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_ORDER_BITMAP_KEY = "seckill:bitmap:";
+    public static final String SECKILL_STOCK_RETURNED_KEY = "seckill:returned:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_LEASE_KEY = "seckill:lease:";
+    public static final String SECKILL_LEASE_NODE_KEY = "seckill:lease:node:";
+    public static final String SECKILL_LEASE_VOUCHERS_KEY = "seckill:lease:vouchers";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_WARM_VOUCHERS_KEY = "seckill:warm-vouchers";
+    public static final String SECKILL_ADMISSION_KEY = "seckill:admission:";
+    public static final String SECKILL_ADMISSION_TICKET_KEY = "seckill:admission:ticket:";
+    public static final String SECKILL_ADMISSION_SECRET_KEY = "seckill:admission-secret";
+    public static final String SECKILL_ORDER_STATUS_KEY = "seckill:order:status:";
+    public static final String SECKILL_ORDER_STATUS_CHANNEL = "seckill:order:status";
+    public static final String SECKILL_ORDER_DELAY_KEY = "seckill:order:delay";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DLQ = "stream.orders.dlq";
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String ID_WORKER_LAST_KEY = "id:worker:last:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
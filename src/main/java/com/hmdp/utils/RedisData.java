@@ -11,4 +11,5 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;   // 逻辑过期时间
     private Object data;    // 缓存数据(各种类型的数据都可以存放在这)
+    private long rebuildMillis;     // 上次重建（查数据库）的耗时，用来概率性提前重建，0表示未知
 }
@@ -1,27 +1,65 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 生成的id格式：符号位(1bit)+时间戳(31bit--换算成秒)+序列号(32bit)
+ * <p>
+ * 序列号按天自增（icr:{keyPrefix}:{yyyy:MM:dd}），有两种取法：<br>
+ * 1.segment-size=0：每个id一次INCR（原来的方式）；<br>
+ * 2.segment-size>0：号段模式，一次INCRBY预留一段序列号放到本地，用原子计数器发放，用到剩20%时后台预取下一段。
+ * 各节点的号段互不重叠，所以跨节点唯一；本节点内号段只会越来越大，所以单调递增。节点重启时没用完的号段直接丢弃，id会有空洞。
+ * </p>
  */
+@Slf4j
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IdWorker {
 
     private static final long BEGIN_TIMESTAMP = 1704067200L;    // 开始时间戳
     private static final int COUNT_BIT = 32;    // 序列号的位数
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    private static final double PREFETCH_RATIO = 0.2;           // 号段剩余不到20%时预取下一段
 
     private final StringRedisTemplate stringRedisTemplate;
+    private final int segmentSize;
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    private final ExecutorService prefetchExecutor;
+    private volatile Day today;
+
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate,
+                         @Value("${hmdp.id.segment-size:0}") int segmentSize) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.segmentSize = Math.max(0, segmentSize);
+        this.prefetchExecutor = this.segmentSize > 0 ? Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "id-segment-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+        }
     }
 
+    @Override
     public long generateId(String keyPrefix) {
         // 1.生成时间戳 = 当前时间戳 - 开始时间戳
         LocalDateTime now = LocalDateTime.now();
@@ -29,15 +67,120 @@ public class RedisIdWorker {
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
 
         // 2.生成序列号
-        // 2.1 获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        // 2.1 获取当前日期，精确到天（一天只格式化一次）
+        String date = dateOf(now.toLocalDate());
         // 2.2 自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);  // count占32bit
+        long count = segmentSize > 0
+                ? nextFromSegment(keyPrefix, date)
+                : stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);  // count占32bit
 
         // 3.拼接id，返回
         return timestamp << COUNT_BIT | count;
     }
 
+    private String dateOf(LocalDate date) {
+        Day day = today;
+        if (day == null || !day.date.equals(date)) {
+            day = new Day(date);
+            today = day;
+        }
+        return day.text;
+    }
+
+    // 从本地号段取一个序列号，号段用完/换天了就换成下一段
+    private long nextFromSegment(String keyPrefix, String date) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null && segment.date.equals(date)) {
+                long count = segment.cursor.getAndIncrement();
+                if (count <= segment.end) {
+                    if (count == segment.prefetchAt) {
+                        // 只有取到这个号的线程会触发预取
+                        prefetch(buffer, segment);
+                    }
+                    return count;
+                }
+            }
+            synchronized (buffer) {
+                if (buffer.current != segment) {
+                    // 其他线程已经换过了
+                    continue;
+                }
+                Segment next = buffer.next;
+                buffer.next = null;
+                // 预取的号段不是今天的，或者比当前段小（预取慢了，期间已经同步取过更大的段），都不能用
+                if (next == null || !next.date.equals(date) || (segment != null && next.start <= segment.end)) {
+                    next = allocate(keyPrefix, date);
+                }
+                buffer.current = next;
+            }
+        }
+    }
+
+    private void prefetch(SegmentBuffer buffer, Segment segment) {
+        prefetchExecutor.execute(() -> {
+            try {
+                Segment next = allocate(buffer.keyPrefix, segment.date);
+                synchronized (buffer) {
+                    if (buffer.current == segment && buffer.next == null) {
+                        buffer.next = next;
+                    }
+                }
+            } catch (Exception e) {
+                // 预取失败不影响发号，用完时会同步再取
+                log.error("预取id号段异常, keyPrefix: {}", buffer.keyPrefix, e);
+            }
+        });
+    }
+
+    // INCRBY icr:{keyPrefix}:{date} segmentSize，预留 (end-segmentSize, end] 这一段
+    private Segment allocate(String keyPrefix, String date) {
+        Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, segmentSize);
+        if (end == null) {
+            throw new IllegalStateException("获取id号段失败, keyPrefix: " + keyPrefix);
+        }
+        return new Segment(date, end - segmentSize + 1, end, end - (long) (segmentSize * PREFETCH_RATIO));
+    }
+
+    // 一个业务前缀的号段：正在用的 + 预取好的下一段
+    private static class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private Segment next;
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+    }
+
+    // 号段 [start, end]，cursor是下一个要发的序列号
+    private static class Segment {
+        private final String date;
+        private final long start;
+        private final long end;
+        private final long prefetchAt;
+        private final AtomicLong cursor;
+
+        Segment(String date, long start, long end, long prefetchAt) {
+            this.date = date;
+            this.start = start;
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    private static class Day {
+        private final LocalDate date;
+        private final String text;
+
+        Day(LocalDate date) {
+            this.date = date;
+            this.text = date.format(DATE_FORMATTER);
+        }
+    }
+
     public static void main(String[] args) {
         LocalDateTime time = LocalDateTime.of(2024, 1, 1, 0, 0, 0);
         long epochSecond = time.toEpochSecond(ZoneOffset.UTC);
@@ -4,7 +4,7 @@ import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -14,7 +14,7 @@ import java.util.concurrent.TimeUnit;
 /**
  * token刷新拦截器
  */
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
 
     // 不是spring容器管理的对象，不能通过@Autowired注入，得自己手动new
     private StringRedisTemplate stringRedisTemplate;
@@ -61,4 +61,12 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         // 移除用户，释放ThreadLocal中的资源
         UserHolder.removeUser();
     }
+
+    /**
+     * 异步请求（如长轮询订单状态）在当前线程上不会执行afterCompletion，这里也要清理，避免用户信息留给下一个请求
+     */
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserHolder.removeUser();
+    }
 }
@@ -0,0 +1,230 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.crypto.SecureUtil;
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ADMISSION_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ADMISSION_SECRET_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ADMISSION_TICKET_KEY;
+
+/**
+ * 秒杀排队入场：开卖瞬间的请求量远大于下单能力，先领入场券，只有带着有效入场券的请求才会去执行秒杀lua脚本
+ * <p>
+ * 1.每张券一个redis令牌桶（seckill_admission.lua），按订单处理能力补充令牌，发放总数不超过 库存*超发比例；<br>
+ * 2.节点一次从令牌桶取一批令牌放到本地发放，领券请求大多不访问redis；<br>
+ * 3.入场券 = 过期时间.HMAC(voucherId:userId:过期时间)，绑定用户和券，下单时先在内存里校验签名；<br>
+ * 4.每个用户每张券只发一张（HSETNX登记在 seckill:admission:ticket:{voucherId}，重复领取返回同一张，过期的换发一张新的），
+ * 下单时原子地把登记改成已使用，同一张入场券不能并发重复下单；下单没成功（还没开始、库存不足、异常）时归还，
+ * 用户还能用它再抢。登记随券一起在结束后清理。
+ * </p>
+ */
+@Slf4j
+@Component
+public class SeckillAdmission {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    private static final DefaultRedisScript<Long> ADMISSION_SCRIPT;
+
+    static {
+        ADMISSION_SCRIPT = new DefaultRedisScript<>();
+        ADMISSION_SCRIPT.setLocation(new ClassPathResource("seckill_admission.lua"));
+        ADMISSION_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> TICKET_USE_SCRIPT;
+
+    static {
+        TICKET_USE_SCRIPT = new DefaultRedisScript<>();
+        TICKET_USE_SCRIPT.setLocation(new ClassPathResource("seckill_ticket_use.lua"));
+        TICKET_USE_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final long EMPTY_RETRY_MILLIS = 100;     // 令牌桶取不到令牌后，多久再去redis试一次
+    private static final String USED_TICKET = "0";          // 已经用过的入场券的登记值
+
+    private final Map<Long, LocalTokens> localTokens = new ConcurrentHashMap<>();
+    private byte[] secret;
+
+    @PostConstruct
+    private void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        String key = seckillProperties.getAdmissionSecret();
+        if (StrUtil.isBlank(key)) {
+            // 没有配置密钥，所有节点共用redis里的随机密钥
+            stringRedisTemplate.opsForValue().setIfAbsent(SECKILL_ADMISSION_SECRET_KEY, UUID.randomUUID().toString(true));
+            key = stringRedisTemplate.opsForValue().get(SECKILL_ADMISSION_SECRET_KEY);
+        }
+        secret = key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public boolean isEnabled() {
+        return seckillProperties.isAdmissionEnabled();
+    }
+
+    /**
+     * 用户已经领到的入场券
+     *
+     * @return 入场券（已经用过的是"0"，过期的校验不通过），没领过返回null
+     */
+    public String issuedTicket(Long voucherId, Long userId) {
+        Object ticket = stringRedisTemplate.opsForHash().get(SECKILL_ADMISSION_TICKET_KEY + voucherId, userId.toString());
+        return ticket == null ? null : ticket.toString();
+    }
+
+    /**
+     * 入场券是否已经用过（下单成功了）
+     */
+    public boolean isUsed(String ticket) {
+        return USED_TICKET.equals(ticket);
+    }
+
+    /**
+     * 发放入场券，每个用户每张券只发一张，同一用户并发领取时都拿到先登记的那张
+     *
+     * @param previous 之前登记的入场券（已经过期，换发新的），没领过传null
+     * @return 入场券，令牌发完了返回null
+     */
+    public String issueTicket(Long voucherId, Long userId, String previous) {
+        LocalTokens tokens = localTokens.computeIfAbsent(voucherId, id -> new LocalTokens());
+        if (!tokens.tryTake() && !(fetch(voucherId, tokens) && tokens.tryTake())) {
+            return null;
+        }
+        long expireAt = System.currentTimeMillis() + seckillProperties.getAdmissionTicketSeconds() * 1000;
+        String ticket = expireAt + "." + sign(voucherId, userId, expireAt);
+        boolean issued = previous == null
+                ? Boolean.TRUE.equals(stringRedisTemplate.opsForHash()
+                        .putIfAbsent(SECKILL_ADMISSION_TICKET_KEY + voucherId, userId.toString(), ticket))
+                : updateTicket(voucherId, userId, previous, ticket);
+        // 没登记上：同一用户的另一个请求先领到了（这次取的令牌作废）
+        return issued ? ticket : issuedTicket(voucherId, userId);
+    }
+
+    /**
+     * 使用入场券：签名、用户、券、有效期都对，并且是登记的那张、没有用过，用过之后不能再用（下单没成功时用 {@link #returnTicket} 归还）
+     */
+    public boolean useTicket(Long voucherId, Long userId, String ticket) {
+        // 先在内存里校验，伪造/过期的入场券不访问redis
+        if (!verifyTicket(voucherId, userId, ticket)) {
+            return false;
+        }
+        return updateTicket(voucherId, userId, ticket, USED_TICKET);
+    }
+
+    /**
+     * 归还入场券：下单没成功（还没开始、库存不足、重复下单、异常），登记改回这张入场券，用户可以再用它下单。
+     * 归还失败只打日志，入场券过期后用户可以重新领取
+     */
+    public void returnTicket(Long voucherId, Long userId, String ticket) {
+        try {
+            updateTicket(voucherId, userId, USED_TICKET, ticket);
+        } catch (Exception e) {
+            log.error("归还入场券异常, voucherId: {}, userId: {}", voucherId, userId, e);
+        }
+    }
+
+    // 登记的值是expected时改成value（seckill_ticket_use.lua）
+    private boolean updateTicket(Long voucherId, Long userId, String expected, String value) {
+        Long r = stringRedisTemplate.execute(
+                TICKET_USE_SCRIPT,
+                Collections.singletonList(SECKILL_ADMISSION_TICKET_KEY + voucherId),
+                userId.toString(), expected, value
+        );
+        return r != null && r == 1;
+    }
+
+    /**
+     * 校验入场券：签名正确、属于该用户和券、没过期
+     */
+    public boolean verifyTicket(Long voucherId, Long userId, String ticket) {
+        if (StrUtil.isBlank(ticket)) {
+            return false;
+        }
+        int dot = ticket.indexOf('.');
+        if (dot <= 0) {
+            return false;
+        }
+        long expireAt;
+        try {
+            expireAt = Long.parseLong(ticket.substring(0, dot));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            return false;
+        }
+        // 定长比较，避免按耗时猜签名
+        return MessageDigest.isEqual(
+                sign(voucherId, userId, expireAt).getBytes(StandardCharsets.UTF_8),
+                ticket.substring(dot + 1).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String sign(Long voucherId, Long userId, long expireAt) {
+        return SecureUtil.hmacSha256(secret).digestHex(voucherId + ":" + userId + ":" + expireAt);
+    }
+
+    // 从redis令牌桶取一批令牌，同一张券同时只有一个线程去取
+    private boolean fetch(Long voucherId, LocalTokens tokens) {
+        synchronized (tokens) {
+            if (tokens.remaining.get() > 0) {
+                // 其他线程已经取到了
+                return true;
+            }
+            if (System.currentTimeMillis() < tokens.emptyUntil) {
+                return false;
+            }
+            Long n = stringRedisTemplate.execute(
+                    ADMISSION_SCRIPT,
+                    Collections.singletonList(SECKILL_ADMISSION_KEY + voucherId),
+                    String.valueOf(seckillProperties.getAdmissionRate()),
+                    String.valueOf(seckillProperties.getAdmissionBurst()),
+                    String.valueOf(seckillProperties.getAdmissionBatchSize())
+            );
+            if (n == null || n <= 0) {
+                tokens.emptyUntil = System.currentTimeMillis() + EMPTY_RETRY_MILLIS;
+                return false;
+            }
+            tokens.remaining.addAndGet(n.intValue());
+            return true;
+        }
+    }
+
+    // 一张券在本节点还能发的令牌
+    private static class LocalTokens {
+        private final AtomicInteger remaining = new AtomicInteger();
+        private volatile long emptyUntil;       // 令牌桶空了，这之前不再去redis取
+
+        boolean tryTake() {
+            while (true) {
+                int n = remaining.get();
+                if (n <= 0) {
+                    return false;
+                }
+                if (remaining.compareAndSet(n, n - 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
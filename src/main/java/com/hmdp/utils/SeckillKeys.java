@@ -0,0 +1,94 @@
+package com.hmdp.utils;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_BITMAP_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_RETURNED_KEY;
+
+/**
+ * 秒杀券在redis中的key
+ * <p>
+ * 不分片：seckill:stock:{voucherId}、seckill:order:{voucherId}（原有格式）<br>
+ * 分片：  seckill:stock:{voucherId:i}、seckill:order:{voucherId:i}，花括号是hash tag，保证同一分片的库存和订单集合落在同一个slot
+ * </p>
+ * <p>
+ * 一人一单的已购用户有两种存法（按券选择，记在 seckill:voucher:{voucherId} 的dedupe字段）：<br>
+ * set：   seckill:order:...，成员是userId字符串，每个用户几十字节；<br>
+ * bitmap：seckill:bitmap:...，第 userId/分片数 位置1，内存只和最大userId有关（1亿用户约12MB），适合用户id连续、买家很多的券。
+ * 偏移量超过 hmdp.seckill.bitmap-max-offset 的用户（见 {@link #userDedupe}）改存到同一分片的set里，bitmap券的已购用户是bitmap和set之和
+ * </p>
+ */
+public class SeckillKeys {
+
+    public static final String DEDUPE_SET = "set";
+    public static final String DEDUPE_BITMAP = "bitmap";
+
+    /**
+     * bitmap偏移量的硬上限（redis的bitmap最大512MB），配置的最大偏移量不会超过它
+     */
+    public static final long MAX_BITMAP_OFFSET = (1L << 32) - 1;
+
+    private SeckillKeys() {
+    }
+
+    /**
+     * 规范化dedupe类型，不认识的按set处理
+     */
+    public static String dedupeType(Object dedupe) {
+        return DEDUPE_BITMAP.equals(dedupe) ? DEDUPE_BITMAP : DEDUPE_SET;
+    }
+
+    /**
+     * 用户实际使用的存法：bitmap券上偏移量为负或超过maxOffset的用户改用set，每个用户的结果是固定的
+     *
+     * @param dedupe    券的存法
+     * @param maxOffset bitmap最大偏移量
+     */
+    public static String userDedupe(String dedupe, Long userId, int shards, long maxOffset) {
+        if (!DEDUPE_BITMAP.equals(dedupe)) {
+            return DEDUPE_SET;
+        }
+        long offset = dedupeMember(userId, shards, DEDUPE_BITMAP);
+        return offset >= 0 && offset <= Math.min(maxOffset, MAX_BITMAP_OFFSET) ? DEDUPE_BITMAP : DEDUPE_SET;
+    }
+
+    public static String stockKey(Long voucherId, int shard, int shards) {
+        return shards <= 1 ? SECKILL_STOCK_KEY + voucherId : SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String orderKey(Long voucherId, int shard, int shards) {
+        return shards <= 1 ? SECKILL_ORDER_KEY + voucherId : SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String orderBitmapKey(Long voucherId, int shard, int shards) {
+        return shards <= 1 ? SECKILL_ORDER_BITMAP_KEY + voucherId : SECKILL_ORDER_BITMAP_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 已经把库存还回这个分片的订单id（取消/退款还库存的幂等标记），和分片的库存在同一个slot
+     */
+    public static String returnedKey(Long voucherId, int shard, int shards) {
+        return shards <= 1 ? SECKILL_STOCK_RETURNED_KEY + voucherId : SECKILL_STOCK_RETURNED_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 一人一单判断用的key：set或bitmap
+     */
+    public static String dedupeKey(Long voucherId, int shard, int shards, String dedupe) {
+        return DEDUPE_BITMAP.equals(dedupe) ? orderBitmapKey(voucherId, shard, shards) : orderKey(voucherId, shard, shards);
+    }
+
+    /**
+     * 用户在一人一单结构里的成员：set是userId，bitmap是偏移量（分片时每个分片只放 userId%N 相同的用户，偏移量除以N更紧凑）
+     */
+    public static long dedupeMember(Long userId, int shards, String dedupe) {
+        return DEDUPE_BITMAP.equals(dedupe) && shards > 1 ? Math.floorDiv(userId, (long) shards) : userId;
+    }
+
+    /**
+     * 用户所属的分片（一人一单只在这个分片的订单集合里判断）
+     */
+    public static int homeShard(Long userId, int shards) {
+        return shards <= 1 ? 0 : (int) Math.floorMod(userId, (long) shards);
+    }
+}
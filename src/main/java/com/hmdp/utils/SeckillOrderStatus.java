@@ -0,0 +1,139 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.dto.Result;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STATUS_KEY;
+
+/**
+ * 秒杀订单的异步处理结果：seckill:order:status:{orderId} -> 0/1/2，带过期时间
+ * <p>
+ * 1.下单成功（lua脚本返回0）时写入 0-排队中；<br>
+ * 2.stream消费者入库后写入 1-已入库，确定不会入库（重复下单、数据库库存不足）写入 2-失败，同时在 seckill:order:status 频道广播；<br>
+ * 3.查询只读redis，长轮询的请求挂在本地，收到广播就返回，不再查tb_voucher_order。
+ * </p>
+ */
+@Component
+public class SeckillOrderStatus {
+
+    public static final int QUEUED = 0;
+    public static final int PERSISTED = 1;
+    public static final int FAILED = 2;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    // 本节点上等待订单结果的长轮询请求
+    private final Map<Long, List<DeferredResult<Result>>> waiting = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            // 消息格式 orderId:status
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            int i = body.indexOf(':');
+            List<DeferredResult<Result>> results = waiting.remove(Long.valueOf(body.substring(0, i)));
+            if (results != null) {
+                Integer status = Integer.valueOf(body.substring(i + 1));
+                results.forEach(result -> result.setResult(Result.ok(status)));
+            }
+        }, new ChannelTopic(SECKILL_ORDER_STATUS_CHANNEL));
+    }
+
+    /**
+     * 下单成功，订单排队中。消费者可能已经先写了结果，所以只在没有状态时写入
+     */
+    public void queued(long orderId) {
+        stringRedisTemplate.opsForValue().setIfAbsent(SECKILL_ORDER_STATUS_KEY + orderId, String.valueOf(QUEUED), ttl());
+    }
+
+    /**
+     * 批量写入订单处理结果并广播（一次pipeline）
+     *
+     * @param statuses orderId -> PERSISTED/FAILED
+     */
+    public void publish(Map<Long, Integer> statuses) {
+        if (statuses.isEmpty()) {
+            return;
+        }
+        long ttl = ttl().getSeconds();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            statuses.forEach((orderId, status) -> {
+                conn.setEx(SECKILL_ORDER_STATUS_KEY + orderId, ttl, String.valueOf(status));
+                conn.publish(SECKILL_ORDER_STATUS_CHANNEL, orderId + ":" + status);
+            });
+            return null;
+        });
+    }
+
+    /**
+     * 订单状态，查不到（订单不存在或已过期）返回null
+     */
+    public Integer get(Long orderId) {
+        String status = stringRedisTemplate.opsForValue().get(SECKILL_ORDER_STATUS_KEY + orderId);
+        return status == null ? null : Integer.valueOf(status);
+    }
+
+    /**
+     * 查询订单状态
+     *
+     * @param wait 排队中时是否挂起等待结果（长轮询），最多等 orderStatusWaitMillis
+     */
+    public DeferredResult<Result> query(Long orderId, boolean wait) {
+        DeferredResult<Result> result = new DeferredResult<>(seckillProperties.getOrderStatusWaitMillis());
+        Integer status = get(orderId);
+        if (!wait || status == null || status != QUEUED) {
+            result.setResult(toResult(status));
+            return result;
+        }
+        waiting.compute(orderId, (id, results) -> {
+            if (results == null) {
+                results = new CopyOnWriteArrayList<>();
+            }
+            results.add(result);
+            return results;
+        });
+        result.onCompletion(() -> waiting.computeIfPresent(orderId, (id, results) -> {
+            results.remove(result);
+            return results.isEmpty() ? null : results;
+        }));
+        // 超时了还在排队，返回当前状态，客户端再发起下一次
+        result.onTimeout(() -> result.setResult(toResult(get(orderId))));
+        // 查状态和挂起之间结果可能已经广播过了，再确认一次
+        status = get(orderId);
+        if (status == null || status != QUEUED) {
+            result.setResult(toResult(status));
+        }
+        return result;
+    }
+
+    private Result toResult(Integer status) {
+        return status == null ? Result.fail("订单不存在或已过期") : Result.ok(status);
+    }
+
+    private Duration ttl() {
+        return Duration.ofSeconds(seckillProperties.getOrderStatusTtlSeconds());
+    }
+}
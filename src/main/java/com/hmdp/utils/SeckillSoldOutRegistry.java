@@ -0,0 +1,93 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本地售罄标记：秒杀券卖完后，本节点直接在内存里拒绝请求，不再访问redis
+ * <p>
+ * 任意节点发现库存不足就通过redis pub/sub通知所有节点（消息 1:voucherId）；
+ * 库存回补（归还租约库存、取消订单退库存等）时清除标记并通知所有节点（消息 0:voucherId）。
+ * pub/sub消息可能丢失，所以标记超过 soldOutRecheckMillis 后放一次请求到redis重新确认。
+ * </p>
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();     // voucherId -> 标记售罄的时间
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            Long voucherId = Long.valueOf(body.substring(2));
+            if (body.startsWith("1:")) {
+                soldOut.putIfAbsent(voucherId, System.currentTimeMillis());
+            } else {
+                soldOut.remove(voucherId);
+            }
+        }, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 秒杀券是否已售罄（纯内存判断）
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long markedAt = soldOut.get(voucherId);
+        if (markedAt == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - markedAt < seckillProperties.getSoldOutRecheckMillis()) {
+            return true;
+        }
+        // 标记太久了，放请求去redis重新确认一次，还是不足会被重新标记
+        soldOut.remove(voucherId, markedAt);
+        return false;
+    }
+
+    /**
+     * 标记售罄，并通知其他节点
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.putIfAbsent(voucherId, System.currentTimeMillis()) == null) {
+            publish("1:" + voucherId);
+        }
+    }
+
+    /**
+     * 库存回补，清除售罄标记，并通知其他节点
+     */
+    public void reset(Long voucherId) {
+        soldOut.remove(voucherId);
+        publish("0:" + voucherId);
+    }
+
+    private void publish(String message) {
+        try {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, message);
+        } catch (Exception e) {
+            // 通知失败只影响其他节点，它们会在recheck时自己发现
+            log.error("广播售罄标记异常, message: {}", message, e);
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 节点本地库存租约：节点每次从redis租一批库存（stockLeaseSize个）放到本地原子计数器里卖，
+ * 本地卖完/快卖完时再去租，节点停机时把没卖完的还回去
+ * <p>
+ * 1.库存判断在本地内存完成，库存不足的请求不再访问redis；<br>
+ * 2.一人一单仍然在redis里全局判断（seckill_leased.lua），同时把租约上的库存记为已卖出；<br>
+ * 3.租约记在 seckill:lease:{voucherId} 的hash里（field是节点名，value是租走还没卖的库存），节点定时续心跳，
+ * 心跳超时的节点被当成宕机，其他节点把它没卖完的库存收回redis；被收回的节点下单时会发现租约没了，作废本地库存。<br>
+ * 4.节点自己发现心跳丢了（重新登记了心跳，其他节点不会再收回它的租约），作废本地库存的同时把自己名下的租约全部还回redis，
+ * 还不回去的下次心跳接着还，租约库存不会泄漏。
+ * </p>
+ */
+@Slf4j
+@Component
+public class SeckillStockLease {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;             // 租库存
+    private static final DefaultRedisScript<Long> RETURN_SCRIPT;            // 还库存
+    private static final DefaultRedisScript<Long> RECLAIM_SCRIPT;           // 收回宕机节点的库存
+    private static final DefaultRedisScript<Long> LEASED_SECKILL_SCRIPT;    // 一人一单 + 下单
+    private static final DefaultRedisScript<Long> HEARTBEAT_SCRIPT;         // 节点心跳
+
+    static {
+        LEASE_SCRIPT = script("seckill_lease.lua");
+        RETURN_SCRIPT = script("seckill_lease_return.lua");
+        RECLAIM_SCRIPT = script("seckill_lease_reclaim.lua");
+        LEASED_SECKILL_SCRIPT = script("seckill_leased.lua");
+        HEARTBEAT_SCRIPT = script("seckill_lease_heartbeat.lua");
+    }
+
+    private static DefaultRedisScript<Long> script(String location) {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource(location));
+        script.setResultType(Long.class);
+        return script;
+    }
+
+    private static final long SOLD_OUT_RETRY_MILLIS = 500;  // 租不到库存后，多久再去redis试一次
+
+    private final Map<Long, LocalStock> localStocks = new ConcurrentHashMap<>();
+    private ScheduledExecutorService leaseExecutor;     // 心跳、收回宕机节点库存、预取库存
+    private String nodeId;
+    private volatile boolean registered;
+    private volatile boolean leaseLost;     // 心跳丢过，自己名下的租约还没全部还回redis
+
+    @PostConstruct
+    private void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        nodeId = seckillProperties.nodeId();
+        // 同名节点上次没正常停机留下的租约，本地已经没有对应的库存了，先还回去
+        giveBackAll();
+        heartbeat();
+        leaseExecutor = Executors.newSingleThreadScheduledExecutor();
+        long interval = Math.max(1, seckillProperties.getLeaseHeartbeatSeconds());
+        leaseExecutor.scheduleWithFixedDelay(() -> {
+            heartbeat();
+            reclaimDeadNodes();
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 停机时把没卖完的库存还给redis
+     */
+    @PreDestroy
+    private void destroy() {
+        if (leaseExecutor == null) {
+            return;
+        }
+        leaseExecutor.shutdownNow();
+        localStocks.forEach((voucherId, localStock) -> giveBack(voucherId, localStock.remaining.getAndSet(0)));
+        stringRedisTemplate.delete(SECKILL_LEASE_NODE_KEY + nodeId);
+    }
+
+    /**
+     * 下单路径上的lua脚本，预热时提前SCRIPT LOAD
+     */
+    public List<RedisScript<Long>> seckillScripts() {
+        return Arrays.asList(LEASE_SCRIPT, LEASED_SECKILL_SCRIPT);
+    }
+
+    public boolean isEnabled() {
+        return seckillProperties.getStockLeaseSize() > 0;
+    }
+
+    /**
+     * 租约模式下单
+     *
+     * @param dedupe 一人一单存法 set/bitmap
+     * @param member bitmap存法时用户的偏移量
+     * @param begin  秒杀开始时间（毫秒时间戳），0表示不限制
+     * @param end    秒杀结束时间
+     * @return 0-成功 1-库存不足 2-重复下单 3-未开始 4-已结束
+     */
+    public Long seckill(Long voucherId, Long userId, long orderId, String dedupe, long member, long begin, long end) {
+        LocalStock localStock = localStocks.computeIfAbsent(voucherId, id -> new LocalStock());
+        // 租约被收回时本地库存作废，重新租一次
+        for (int attempt = 0; attempt < 2; attempt++) {
+            // 1.本地扣库存，本地没有了就去redis租
+            if (!localStock.tryTake() && !(lease(voucherId, localStock) && localStock.tryTake())) {
+                return 1L;
+            }
+            // 2.快卖完了，后台提前租下一批
+            prefetchIfLow(voucherId, localStock);
+            // 3.全局一人一单 + 下单
+            Long result = null;
+            try {
+                result = stringRedisTemplate.execute(
+                        LEASED_SECKILL_SCRIPT,
+                        Arrays.asList(SeckillKeys.dedupeKey(voucherId, 0, 1, dedupe), SECKILL_LEASE_KEY + voucherId),
+                        voucherId.toString(), userId.toString(), String.valueOf(orderId),
+                        seckillProperties.orderStreamKey(voucherId), nodeId, dedupe, String.valueOf(member),
+                        String.valueOf(begin), String.valueOf(end), String.valueOf(seckillProperties.getStreamMaxLen())
+                );
+            } finally {
+                // 没下成单（包括脚本异常），本地库存还回去；租约被收回(6)时本地库存整体作废，不用还
+                // 脚本其实执行成功了只是响应丢了的话，本地多出来的1个库存在租约hash里没有，下一次下单会返回6作废
+                if (result == null || (result != 0 && result != 6)) {
+                    localStock.remaining.incrementAndGet();
+                }
+            }
+            if (result == 6) {
+                // 节点被当成宕机，租约已被其他节点收回，本地剩下的库存都不能再卖了
+                log.warn("库存租约已被收回, voucherId: {}", voucherId);
+                localStock.remaining.set(0);
+                continue;
+            }
+            return result;
+        }
+        return 1L;
+    }
+
+    // 从redis租一批库存，同一张券同时只有一个线程去租
+    private boolean lease(Long voucherId, LocalStock localStock) {
+        synchronized (localStock) {
+            if (localStock.remaining.get() > 0) {
+                // 其他线程已经租到了
+                return true;
+            }
+            if (System.currentTimeMillis() < localStock.soldOutUntil) {
+                return false;
+            }
+            long n = leaseFromRedis(voucherId);
+            if (n <= 0) {
+                localStock.soldOutUntil = System.currentTimeMillis() + SOLD_OUT_RETRY_MILLIS;
+                return false;
+            }
+            localStock.remaining.addAndGet((int) n);
+            return true;
+        }
+    }
+
+    private void prefetchIfLow(Long voucherId, LocalStock localStock) {
+        if (localStock.remaining.get() > seckillProperties.getStockLeaseSize() / 4
+                || !localStock.prefetching.compareAndSet(false, true)) {
+            return;
+        }
+        leaseExecutor.execute(() -> {
+            try {
+                long n = leaseFromRedis(voucherId);
+                if (n > 0) {
+                    localStock.remaining.addAndGet((int) n);
+                }
+            } catch (Exception e) {
+                log.error("预取库存租约异常, voucherId: {}", voucherId, e);
+            } finally {
+                localStock.prefetching.set(false);
+            }
+        });
+    }
+
+    private long leaseFromRedis(Long voucherId) {
+        Long n = stringRedisTemplate.execute(
+                LEASE_SCRIPT,
+                Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_LEASE_KEY + voucherId, SECKILL_LEASE_VOUCHERS_KEY),
+                nodeId, String.valueOf(seckillProperties.getStockLeaseSize()), voucherId.toString()
+        );
+        return n == null ? 0 : n;
+    }
+
+    // 归还租约库存，返回是否成功（失败时调用方决定要不要重试）
+    private boolean giveBack(Long voucherId, int n) {
+        if (n <= 0) {
+            return true;
+        }
+        try {
+            Long returned = stringRedisTemplate.execute(
+                    RETURN_SCRIPT,
+                    Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_LEASE_KEY + voucherId),
+                    nodeId, String.valueOf(n)
+            );
+            if (returned != null && returned > 0) {
+                // redis里的库存回补了，清除售罄标记
+                seckillSoldOutRegistry.reset(voucherId);
+            }
+            return true;
+        } catch (Exception e) {
+            // 停机时还不回去也没关系，心跳过期后会被其他节点收回
+            log.error("归还库存租约异常, voucherId: {}, 数量: {}", voucherId, n, e);
+            return false;
+        }
+    }
+
+    // 把本节点名下所有券的租约全部还回redis，全部成功返回true
+    private boolean giveBackAll() {
+        Set<String> voucherIds = stringRedisTemplate.opsForSet().members(SECKILL_LEASE_VOUCHERS_KEY);
+        boolean ok = true;
+        if (voucherIds != null) {
+            for (String voucherId : voucherIds) {
+                ok &= giveBack(Long.valueOf(voucherId), Integer.MAX_VALUE);
+            }
+        }
+        return ok;
+    }
+
+    // 续心跳。心跳key已经没了，说明本节点被当成宕机，租约可能已被收回，本地库存全部作废；
+    // 心跳已经重新登记了，其他节点不会再收回本节点的租约，还没被收回的部分要自己还回redis
+    private void heartbeat() {
+        try {
+            long ttl = Math.max(1, seckillProperties.getLeaseHeartbeatSeconds()) * 3;
+            Long alive = stringRedisTemplate.execute(
+                    HEARTBEAT_SCRIPT, Collections.singletonList(SECKILL_LEASE_NODE_KEY + nodeId), String.valueOf(ttl));
+            if (registered && (alive == null || alive == 0)) {
+                log.warn("库存租约心跳已过期, 作废本地库存, 归还租约");
+                localStocks.values().forEach(localStock -> localStock.remaining.set(0));
+                leaseLost = true;
+            }
+            registered = true;
+        } catch (Exception e) {
+            log.error("库存租约心跳异常", e);
+        }
+        if (leaseLost) {
+            // 先作废本地库存再还：之后正在下单的线程会因为租约hash里没有了返回6，不会多卖
+            try {
+                leaseLost = !giveBackAll();
+            } catch (Exception e) {
+                log.error("归还租约异常，下次心跳重试", e);
+            }
+        }
+    }
+
+    // 收回心跳超时节点没卖完的库存
+    private void reclaimDeadNodes() {
+        try {
+            Set<String> voucherIds = stringRedisTemplate.opsForSet().members(SECKILL_LEASE_VOUCHERS_KEY);
+            if (voucherIds == null) {
+                return;
+            }
+            for (String voucherId : voucherIds) {
+                String leaseKey = SECKILL_LEASE_KEY + voucherId;
+                Set<Object> nodes = stringRedisTemplate.opsForHash().keys(leaseKey);
+                if (nodes.isEmpty()) {
+                    stringRedisTemplate.opsForSet().remove(SECKILL_LEASE_VOUCHERS_KEY, voucherId);
+                    continue;
+                }
+                for (Object node : nodes) {
+                    if (nodeId.equals(node)) {
+                        continue;
+                    }
+                    Long n = stringRedisTemplate.execute(
+                            RECLAIM_SCRIPT,
+                            Arrays.asList(SECKILL_STOCK_KEY + voucherId, leaseKey, SECKILL_LEASE_NODE_KEY + node),
+                            node.toString()
+                    );
+                    if (n != null && n > 0) {
+                        log.warn("收回宕机节点的库存租约, voucherId: {}, 节点: {}, 数量: {}", voucherId, node, n);
+                        seckillSoldOutRegistry.reset(Long.valueOf(voucherId));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("收回库存租约异常", e);
+        }
+    }
+
+    // 一张秒杀券在本节点的库存
+    private static class LocalStock {
+        private final AtomicInteger remaining = new AtomicInteger();        // 本地还能卖的库存
+        private final AtomicBoolean prefetching = new AtomicBoolean();      // 是否正在后台预取
+        private volatile long soldOutUntil;                                 // redis也没库存了，这之前不再去租
+
+        boolean tryTake() {
+            while (true) {
+                int n = remaining.get();
+                if (n <= 0) {
+                    return false;
+                }
+                if (remaining.compareAndSet(n, n - 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
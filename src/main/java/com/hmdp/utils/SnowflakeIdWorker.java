@@ -0,0 +1,225 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+import static com.hmdp.utils.RedisConstants.ID_WORKER_LAST_KEY;
+
+/**
+ * snowflake风格的本地id生成器（hmdp.id.strategy=snowflake时替代RedisIdWorker），生成id不访问redis
+ * <p>
+ * id格式：符号位(1bit)+标志位(1bit，固定为1)+时间戳(40bit--毫秒)+workerId(10bit)+序列号(12bit)<br>
+ * 标志位让snowflake的id比RedisIdWorker在2058年前生成的id都大，切换策略后不会和已有的订单id重复。
+ * </p>
+ * <p>
+ * 1.workerId从redis租用（id:worker:{workerId}，SET NX PX），定时续租；续租失败超过租约的2/3时暂停发号，避免和新租到这个workerId的节点重复；<br>
+ * 2.续租时上报"本节点最多会用到的时间戳"（id:worker:last:{workerId}，和租约key的hash tag相同，redis cluster下脚本不会CROSSSLOT），
+ * 新租到这个workerId的节点从这个时间戳之后开始发号，节点之间时钟不一致也不会重复；<br>
+ * 3.时钟回拨时不等待、不报错：继续在上一个id的基础上递增（序列号用完进位到下一毫秒），等时钟追上来，id始终单调递增。
+ * </p>
+ */
+@Slf4j
+@Primary
+@Component
+@ConditionalOnProperty(name = "hmdp.id.strategy", havingValue = "snowflake")
+public class SnowflakeIdWorker implements IdWorker {
+
+    private static final long BEGIN_MILLIS = 1704067200000L;    // 开始时间戳 2024-01-01
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final long SNOWFLAKE_FLAG = 1L << 62;
+    private static final long ROLLBACK_WARN_MILLIS = 5;         // 时钟回拨超过多少毫秒打日志
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Value("${hmdp.id.worker-lease-seconds:30}")
+    private long leaseSeconds;
+
+    private static final DefaultRedisScript<Long> ACQUIRE_SCRIPT;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        ACQUIRE_SCRIPT = script("id_worker_acquire.lua");
+        RENEW_SCRIPT = script("id_worker_renew.lua");
+        RELEASE_SCRIPT = script("id_worker_release.lua");
+    }
+
+    private static DefaultRedisScript<Long> script(String location) {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource(location));
+        script.setResultType(Long.class);
+        return script;
+    }
+
+    private final LongSupplier clock;                       // 当前时间（毫秒），测试时可以换成能回拨的时钟
+    private final AtomicLong state = new AtomicLong();      // 上一个id的 时间戳(相对BEGIN_MILLIS)<<12 | 序列号
+    private volatile long workerId = -1;
+    private volatile long leaseValidUntil;                  // 本地认为租约有效的截止时间（System.nanoTime，不受时钟回拨影响）
+    private volatile long lastRollbackWarn;
+    private String owner;
+    private ScheduledExecutorService heartbeatExecutor;
+
+    public SnowflakeIdWorker() {
+        this(System::currentTimeMillis);
+    }
+
+    public SnowflakeIdWorker(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    @PostConstruct
+    private void init() {
+        owner = seckillProperties.nodeId() + ":" + UUID.randomUUID().toString(true);
+        if (!acquire(-1)) {
+            throw new IllegalStateException("没有可用的snowflake workerId");
+        }
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "id-worker-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, leaseMillis() / 3);
+        heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        heartbeatExecutor.shutdownNow();
+        long id = workerId;
+        if (id < 0) {
+            return;
+        }
+        try {
+            // 上报最后用到的时间戳，下一个使用者从这之后开始
+            stringRedisTemplate.execute(RELEASE_SCRIPT, keys(id), owner, String.valueOf(issuedUntil()));
+        } catch (Exception e) {
+            log.error("释放workerId异常, workerId: {}", id, e);
+        }
+    }
+
+    @Override
+    public long generateId(String keyPrefix) {
+        long worker = workerId;
+        if (worker < 0 || System.nanoTime() >= leaseValidUntil) {
+            throw new IllegalStateException("workerId租约已失效，暂停生成id");
+        }
+        long next;
+        while (true) {
+            long prev = state.get();
+            long last = prev >>> SEQUENCE_BITS;
+            long now = clock.getAsLong() - BEGIN_MILLIS;
+            // 新的一毫秒：序列号从0开始；同一毫秒/时钟回拨：上一个id+1，序列号用完会进位到下一毫秒
+            next = now > last ? now << SEQUENCE_BITS : prev + 1;
+            if (state.compareAndSet(prev, next)) {
+                if (last - now > ROLLBACK_WARN_MILLIS) {
+                    warnRollback(last - now);
+                }
+                break;
+            }
+        }
+        return SNOWFLAKE_FLAG
+                | (next >>> SEQUENCE_BITS) << (WORKER_BITS + SEQUENCE_BITS)
+                | worker << SEQUENCE_BITS
+                | (next & SEQUENCE_MASK);
+    }
+
+    /**
+     * 租一个空闲的workerId，优先租preferred（续租失败时尽量拿回原来的）
+     */
+    private boolean acquire(long preferred) {
+        long leaseMillis = leaseMillis();
+        long start = preferred >= 0 ? preferred : ThreadLocalRandom.current().nextLong(MAX_WORKER_ID + 1);
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long id = (start + i) & MAX_WORKER_ID;
+            long begin = System.nanoTime();
+            Long last = stringRedisTemplate.execute(ACQUIRE_SCRIPT, keys(id), owner, String.valueOf(leaseMillis));
+            if (last == null || last < 0) {
+                continue;
+            }
+            // 从上一个使用者可能用到的时间戳之后开始发号
+            if (last > BEGIN_MILLIS) {
+                long from = (last - BEGIN_MILLIS + 1) << SEQUENCE_BITS;
+                state.accumulateAndGet(from, Math::max);
+            }
+            leaseValidUntil = begin + TimeUnit.MILLISECONDS.toNanos(leaseMillis - leaseMillis / 3);
+            workerId = id;
+            log.info("租到snowflake workerId: {}", id);
+            return true;
+        }
+        return false;
+    }
+
+    private void heartbeat() {
+        long id = workerId;
+        long leaseMillis = leaseMillis();
+        long begin = System.nanoTime();
+        try {
+            if (id >= 0) {
+                // 续租，上报租约到期前最多会用到的时间戳
+                Long ok = stringRedisTemplate.execute(RENEW_SCRIPT, keys(id), owner,
+                        String.valueOf(leaseMillis), String.valueOf(issuedUntil() + leaseMillis));
+                if (ok != null && ok == 1) {
+                    leaseValidUntil = begin + TimeUnit.MILLISECONDS.toNanos(leaseMillis - leaseMillis / 3);
+                    return;
+                }
+                // 租约已经不是自己的了（redis数据丢失、节点卡顿太久被别人租走），马上停止发号，重新租一个
+                log.warn("snowflake workerId租约已丢失, workerId: {}", id);
+                workerId = -1;
+            }
+            if (!acquire(id)) {
+                log.error("没有可用的snowflake workerId");
+            }
+        } catch (Exception e) {
+            // 租约有效期内还可以继续发号，下次心跳再试
+            log.error("snowflake workerId续租异常, workerId: {}", id, e);
+        }
+    }
+
+    // 本节点已经用到的时间戳（时钟回拨/序列号进位时可能比当前时间大）
+    private long issuedUntil() {
+        return Math.max(clock.getAsLong(), (state.get() >>> SEQUENCE_BITS) + BEGIN_MILLIS);
+    }
+
+    private void warnRollback(long millis) {
+        long now = clock.getAsLong();
+        if (now - lastRollbackWarn > 1000) {
+            lastRollbackWarn = now;
+            log.warn("时钟回拨{}ms，沿用上一个id的时间戳继续递增", millis);
+        }
+    }
+
+    private long leaseMillis() {
+        return Math.max(3, leaseSeconds) * 1000;
+    }
+
+    // 租约和最后用到的时间戳，hash tag都是workerId
+    private static List<String> keys(long workerId) {
+        return Arrays.asList(ID_WORKER_KEY + "{" + workerId + "}", ID_WORKER_LAST_KEY + "{" + workerId + "}");
+    }
+}
@@ -5,4 +5,10 @@ public class SystemConstants {
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    // 优惠券订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款
+    public static final int ORDER_UNPAID = 1;
+    public static final int ORDER_PAID = 2;
+    public static final int ORDER_CANCELLED = 4;
+    public static final int ORDER_REFUNDING = 5;
+    public static final int ORDER_REFUNDED = 6;
 }
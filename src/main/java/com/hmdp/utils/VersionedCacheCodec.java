@@ -0,0 +1,50 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+
+/**
+ * 缓存编解码入口：按 hmdp.cache.codec 选择写入格式，读取时按第一个字节自动识别格式
+ * <p>
+ * 以魔数0xC1开头的是二进制格式（BinaryCacheCodec），否则是原来的json。
+ * 滚动升级时先保持codec=json，所有节点都能读二进制格式后再改成binary；旧的json缓存过期或被删除后自然换成二进制。
+ * </p>
+ */
+@Component
+public class VersionedCacheCodec implements CacheCodec {
+
+    private final CacheCodec json = new JsonCacheCodec();
+    private final CacheCodec binary;
+    private final CacheCodec writer;
+
+    public VersionedCacheCodec(CacheProperties cacheProperties) {
+        this.binary = new BinaryCacheCodec(cacheProperties.getCompressThreshold());
+        this.writer = "binary".equalsIgnoreCase(cacheProperties.getCodec()) ? binary : json;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return writer.encode(value);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return reader(bytes).decode(bytes, type);
+    }
+
+    @Override
+    public byte[] encodeWithExpire(Object value, LocalDateTime expireTime, long rebuildMillis) {
+        return writer.encodeWithExpire(value, expireTime, rebuildMillis);
+    }
+
+    @Override
+    public RedisData decodeWithExpire(byte[] bytes, Class<?> type) {
+        return reader(bytes).decodeWithExpire(bytes, type);
+    }
+
+    private CacheCodec reader(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == BinaryCacheCodec.MAGIC ? binary : json;
+    }
+}
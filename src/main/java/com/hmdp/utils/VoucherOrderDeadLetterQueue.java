@@ -0,0 +1,129 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+
+/**
+ * 订单死信stream stream.orders.dlq：投递次数超过 orderMaxDeliveries 还处理不成功的订单消息
+ * <p>
+ * 死信 = 原消息字段(userId、voucherId、id) + stream(来源) + sourceId(原消息id) + deliveries(投递次数)。
+ * 移入死信的订单状态记为失败，redis里的库存和已购用户不会自动还回去（对账时死信算作在途订单，不会被当成差异修复掉）；
+ * 排查完问题后可以重放，订单入库是幂等的，重放已经入库的订单不会重复扣库存。
+ * </p>
+ */
+@Slf4j
+@Component
+public class VoucherOrderDeadLetterQueue {
+
+    private static final long DEAD_LETTER_MAX_LEN = 100000;    // 死信stream最多保留多少条
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    private static final DefaultRedisScript<String> DEAD_LETTER_SCRIPT;
+    private static final DefaultRedisScript<Long> REPLAY_SCRIPT;
+
+    static {
+        DEAD_LETTER_SCRIPT = new DefaultRedisScript<>();
+        DEAD_LETTER_SCRIPT.setLocation(new ClassPathResource("stream_dead_letter.lua"));
+        DEAD_LETTER_SCRIPT.setResultType(String.class);
+        REPLAY_SCRIPT = new DefaultRedisScript<>();
+        REPLAY_SCRIPT.setLocation(new ClassPathResource("stream_dead_letter_replay.lua"));
+        REPLAY_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 把pending-list里的消息移入死信并ACK
+     *
+     * @return 移入死信的订单id，消息已经被处理掉/已经被裁剪时返回null
+     */
+    public Long moveToDeadLetter(String stream, RecordId id, long deliveries) {
+        String orderId = stringRedisTemplate.execute(
+                DEAD_LETTER_SCRIPT,
+                Arrays.asList(stream, SECKILL_ORDER_DLQ),
+                SECKILL_ORDER_GROUP, id.getValue(), String.valueOf(deliveries), String.valueOf(DEAD_LETTER_MAX_LEN)
+        );
+        if (orderId == null) {
+            return null;
+        }
+        if (orderId.isEmpty()) {
+            log.error("订单消息已经被裁剪，无法移入死信, stream: {}, id: {}", stream, id);
+            return null;
+        }
+        log.error("订单消息投递{}次仍处理失败，移入死信, stream: {}, id: {}, orderId: {}", deliveries, stream, id, orderId);
+        return Long.valueOf(orderId);
+    }
+
+    /**
+     * 查询最早的count条死信
+     */
+    public List<Map<String, Object>> list(int count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(SECKILL_ORDER_DLQ, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        if (records == null || records.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Map<String, Object>> deadLetters = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<String, Object> deadLetter = new LinkedHashMap<>();
+            deadLetter.put("dlqId", record.getId().getValue());
+            record.getValue().forEach((field, value) -> deadLetter.put(field.toString(), value));
+            deadLetters.add(deadLetter);
+        }
+        return deadLetters;
+    }
+
+    /**
+     * 重放最早的count条死信，按voucherId重新投递到对应分区的订单stream
+     *
+     * @return 重放的条数
+     */
+    public int replay(int count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(SECKILL_ORDER_DLQ, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        if (records == null || records.isEmpty()) {
+            return 0;
+        }
+        int replayed = 0;
+        for (MapRecord<String, Object, Object> record : records) {
+            Object voucherId = record.getValue().get("voucherId");
+            if (voucherId == null) {
+                log.error("死信缺少voucherId，无法重放, id: {}", record.getId());
+                continue;
+            }
+            // 分区数可能改过，按当前分区数重新选stream
+            String stream = seckillProperties.orderStreamKey(Long.valueOf(voucherId.toString()));
+            Long r = stringRedisTemplate.execute(
+                    REPLAY_SCRIPT,
+                    Arrays.asList(SECKILL_ORDER_DLQ, stream),
+                    record.getId().getValue()
+            );
+            if (r != null && r == 1) {
+                replayed++;
+            }
+        }
+        log.info("重放订单死信 {} 条", replayed);
+        return replayed;
+    }
+}
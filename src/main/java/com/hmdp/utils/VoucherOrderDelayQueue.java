@@ -0,0 +1,100 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DELAY_KEY;
+
+/**
+ * 未支付订单的延时队列：zset seckill:order:delay，member是订单id，score是支付截止时间（毫秒）
+ * <p>
+ * 订单入库后加入队列，定时任务批量领取到期的订单去取消；退款的订单也以"立即到期"加入队列，和取消走同一条还库存的路径
+ * </p>
+ */
+@Component
+public class VoucherOrderDelayQueue {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("order_delay_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    private static final DefaultRedisScript<Long> ADD_SCRIPT;
+
+    static {
+        ADD_SCRIPT = new DefaultRedisScript<>();
+        ADD_SCRIPT.setLocation(new ClassPathResource("order_delay_add.lua"));
+        ADD_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 新入库的订单加入队列，orderPayTimeoutSeconds后到期
+     * <p>
+     * 幂等：已经在队列里的订单不改截止时间，订单消息重复投递时可以再调用一次
+     * </p>
+     */
+    public void add(Collection<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + seckillProperties.getOrderPayTimeoutSeconds() * 1000;
+        List<String> args = new ArrayList<>(orderIds.size() + 1);
+        args.add(String.valueOf(deadline));
+        for (Long orderId : orderIds) {
+            args.add(orderId.toString());
+        }
+        stringRedisTemplate.execute(ADD_SCRIPT, Collections.singletonList(SECKILL_ORDER_DELAY_KEY), args.toArray());
+    }
+
+    /**
+     * 订单立即到期（退款）
+     */
+    public void addNow(Long orderId) {
+        stringRedisTemplate.opsForZSet().add(SECKILL_ORDER_DELAY_KEY, orderId.toString(), System.currentTimeMillis());
+    }
+
+    /**
+     * 领取一批到期的订单
+     */
+    public List<Long> claimDue(int count) {
+        List<?> ids = stringRedisTemplate.execute(
+                CLAIM_SCRIPT,
+                Collections.singletonList(SECKILL_ORDER_DELAY_KEY),
+                String.valueOf(System.currentTimeMillis()), String.valueOf(count),
+                String.valueOf(seckillProperties.getOrderTimeoutLeaseSeconds() * 1000)
+        );
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Long> orderIds = new ArrayList<>(ids.size());
+        for (Object id : ids) {
+            orderIds.add(Long.valueOf(id.toString()));
+        }
+        return orderIds;
+    }
+
+    /**
+     * 订单不需要取消了（已支付），移出队列
+     */
+    public void remove(Long orderId) {
+        stringRedisTemplate.opsForZSet().remove(SECKILL_ORDER_DELAY_KEY, orderId.toString());
+    }
+}
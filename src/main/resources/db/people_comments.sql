@@ -65,6 +65,25 @@ CREATE TABLE `tb_blog_comments`  (
 -- Records of tb_blog_comments
 -- ----------------------------
 
+-- ----------------------------
+-- Table structure for tb_cache_outbox
+-- ----------------------------
+DROP TABLE IF EXISTS `tb_cache_outbox`;
+CREATE TABLE `tb_cache_outbox`  (
+  `id` bigint(20) UNSIGNED NOT NULL AUTO_INCREMENT COMMENT '主键',
+  `cache_key` varchar(255) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NOT NULL COMMENT '要删除的缓存key',
+  `phase` tinyint(1) UNSIGNED NOT NULL DEFAULT 0 COMMENT '0-等待提交后删除 1-等待延迟双删',
+  `attempts` int(8) UNSIGNED NOT NULL DEFAULT 0 COMMENT '连续失败次数',
+  `next_time` datetime(3) NOT NULL COMMENT '下次处理时间',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+  PRIMARY KEY (`id`) USING BTREE,
+  INDEX `idx_next_time`(`next_time`) USING BTREE
+) ENGINE = InnoDB AUTO_INCREMENT = 1 CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+
+-- ----------------------------
+-- Records of tb_cache_outbox
+-- ----------------------------
+
 -- ----------------------------
 -- Table structure for tb_follow
 -- ----------------------------
@@ -88,6 +107,7 @@ DROP TABLE IF EXISTS `tb_seckill_voucher`;
 CREATE TABLE `tb_seckill_voucher`  (
   `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '关联的优惠券的id',
   `stock` int(8) NOT NULL COMMENT '库存',
+  `dedupe_type` varchar(16) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NOT NULL DEFAULT 'set' COMMENT '一人一单的已购用户在redis中的存法 set/bitmap',
   `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
   `begin_time` timestamp NOT NULL DEFAULT '0000-00-00 00:00:00' COMMENT '生效时间',
   `end_time` timestamp NOT NULL DEFAULT '0000-00-00 00:00:00' COMMENT '失效时间',
@@ -1274,7 +1294,9 @@ CREATE TABLE `tb_voucher_order`  (
   `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
   `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  `active` tinyint(1) GENERATED ALWAYS AS (if(`status` in (4, 6), NULL, 1)) VIRTUAL COMMENT '有效订单为1，已取消/已退款为NULL（不参与一人一单唯一索引）',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `active`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
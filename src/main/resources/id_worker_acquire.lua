@@ -0,0 +1,9 @@
+-- 租用snowflake的workerId（用在SnowflakeIdWorker.java中）
+-- KEYS[1] id:worker:{workerId}，KEYS[2] 这个workerId最后用到的时间戳 id:worker:last:{workerId}（hash tag相同，在同一个slot）
+-- ARGV[1] 节点标识，ARGV[2] 租约时长（毫秒）
+-- 返回 -1-已被其他节点占用，否则返回这个workerId上一个使用者最后上报的时间戳（毫秒，没有返回0）
+
+if (not redis.call('set', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2])) then
+    return -1
+end
+return tonumber(redis.call('get', KEYS[2])) or 0
@@ -0,0 +1,9 @@
+-- 释放snowflake的workerId（用在SnowflakeIdWorker.java中），先上报时间戳，下一个使用者从这之后开始
+-- KEYS[1] id:worker:{workerId}，KEYS[2] id:worker:last:{workerId}
+-- ARGV[1] 节点标识，ARGV[2] 本节点用到的时间戳（毫秒）
+
+if (redis.call('get', KEYS[1]) ~= ARGV[1]) then
+    return 0
+end
+redis.call('set', KEYS[2], ARGV[2])
+return redis.call('del', KEYS[1])
@@ -0,0 +1,11 @@
+-- 续租snowflake的workerId，同时上报本节点用到的时间戳（用在SnowflakeIdWorker.java中）
+-- KEYS[1] id:worker:{workerId}，KEYS[2] id:worker:last:{workerId}
+-- ARGV[1] 节点标识，ARGV[2] 租约时长（毫秒），ARGV[3] 本节点用到的时间戳（毫秒）
+-- 返回 1-续租成功 0-租约已经不是自己的了
+
+if (redis.call('get', KEYS[1]) ~= ARGV[1]) then
+    return 0
+end
+redis.call('pexpire', KEYS[1], ARGV[2])
+redis.call('set', KEYS[2], ARGV[3])
+return 1
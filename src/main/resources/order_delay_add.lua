@@ -0,0 +1,9 @@
+-- 新入库的订单加入超时取消的延时队列（用在VoucherOrderDelayQueue.java中）
+-- ZADD NX：已经在队列里的订单不改截止时间，同一条订单消息重复投递时重复加入也没关系
+-- KEYS[1] 延时队列zset seckill:order:delay
+-- ARGV[1] 支付截止时间(毫秒)，ARGV[2...] 订单id
+
+for i = 2, #ARGV do
+    redis.call('zadd', KEYS[1], 'NX', ARGV[1], ARGV[i])
+end
+return #ARGV - 1
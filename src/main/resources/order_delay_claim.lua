@@ -0,0 +1,11 @@
+-- 领取到期的超时订单（用在VoucherOrderDelayQueue.java中）
+-- 领走的订单把分数推后一个租期，其他节点不会重复领取；本节点没处理完就宕机的，租期过后会被重新领取
+-- KEYS[1] 延时队列zset seckill:order:delay（member是订单id，score是到期时间）
+-- ARGV[1] 当前时间(毫秒)，ARGV[2] 最多领取条数，ARGV[3] 租期(毫秒)
+
+local ids = redis.call('zrangebyscore', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[2]))
+local leaseUntil = tonumber(ARGV[1]) + tonumber(ARGV[3])
+for _, id in ipairs(ids) do
+    redis.call('zadd', KEYS[1], leaseUntil, id)
+end
+return ids
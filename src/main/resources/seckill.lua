@@ -8,30 +8,72 @@ local voucherId = ARGV[1]
 local userId = ARGV[2]
 -- 1.3 订单id
 local orderId = ARGV[3]
+-- 1.4 订单stream的key（分区时由调用方按 voucherId % 分区数 选好 stream.orders:{i}）
+local streamKey = ARGV[4]
+-- 1.5 一人一单的存法 set/bitmap（不传按set），bitmap时ARGV[6]是用户的偏移量
+local dedupe = ARGV[5] or 'set'
+local offset = ARGV[6]
+-- 1.6 秒杀开始、结束时间（毫秒时间戳，预热时写入 seckill:voucher:{voucherId}）
+local beginTime = tonumber(ARGV[7]) or 0
+local endTime = tonumber(ARGV[8]) or 0
+-- 1.7 stream最大长度，超过后近似裁剪最老的消息（兜底内存，正常靠消费者定时XTRIM已确认的消息），0表示不限制
+local maxLen = tonumber(ARGV[9]) or 0
 
 -- 2.秒杀券在redis中的key
 -- 2.1 库存key (value是秒杀券的库存)
 local stockKey = 'seckill:stock:' .. voucherId
--- 2.2 订单key (value是userId，表明该用户已下单)
+-- 2.2 订单key (set的成员是userId，表明该用户已下单；bitmap是第userId位为1)
 local orderKey = 'seckill:order:' .. voucherId
+if (dedupe == 'bitmap') then
+    orderKey = 'seckill:bitmap:' .. voucherId
+end
 
 -- 3.脚本业务
--- 3.1 判断库存是否充足 get stockKey
-if (tonumber(redis.call('get', stockKey)) <= 0) then
+-- 3.0 判断是否在秒杀时间内（0表示不限制），用redis服务器时间判断，各节点时钟不一致也不影响
+if (beginTime > 0 or endTime > 0) then
+    -- 脚本里先读TIME再写数据，redis 5以前要按命令复制
+    redis.replicate_commands()
+    local t = redis.call('time')
+    local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+    if (beginTime > 0 and now < beginTime) then
+        -- 秒杀尚未开始，返回3
+        return 3
+    end
+    if (endTime > 0 and now >= endTime) then
+        -- 秒杀已经结束，返回4
+        return 4
+    end
+end
+-- 3.1 判断库存是否充足 get stockKey（券已清理/未预热时key不存在，按库存不足处理）
+if ((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
     -- 3.2 库存不足，返回1
     return 1
 end
--- 3.2 判断用户是否下单(查redis中orderKey对应的value里是否有userId) SISMEMBER orderKey userId
-if (redis.call('sismember', orderKey, userId) == 1) then
+-- 3.2 判断用户是否下单(查redis中orderKey对应的value里是否有userId) SISMEMBER orderKey userId / GETBIT orderKey offset
+local bought
+if (dedupe == 'bitmap') then
+    bought = redis.call('getbit', orderKey, offset)
+else
+    bought = redis.call('sismember', orderKey, userId)
+end
+if (bought == 1) then
     -- 3.3 存在，说明是用户已经抢到过一次秒杀券，重复下单，返回2
     return 2
 end
 -- 3.4 用户秒杀成功，扣减库存 incrby stockKey -1
 redis.call('incrby', stockKey, -1)
--- 3.5 用户下单，保存用户 --> 将userId存入到订单集合中 sadd orderKey userId
-redis.call('sadd', orderKey, userId)
--- 3.6 发送消息到队列中 XADD stream.order * k1 v1 k2 v2 ...
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+-- 3.5 用户下单，保存用户 --> 将userId存入到订单集合中 sadd orderKey userId / setbit orderKey offset 1
+if (dedupe == 'bitmap') then
+    redis.call('setbit', orderKey, offset, 1)
+else
+    redis.call('sadd', orderKey, userId)
+end
+-- 3.6 发送消息到队列中 XADD stream.orders [MAXLEN ~ n] * k1 v1 k2 v2 ...
+if (maxLen > 0) then
+    redis.call('xadd', streamKey, 'MAXLEN', '~', maxLen, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+else
+    redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+end
 
 -- 4.成功，返回0
 return 0
\ No newline at end of file
@@ -0,0 +1,34 @@
+-- 秒杀入场令牌桶，节点一次取一批令牌到本地发放入场券（用在SeckillAdmission.java中）
+-- KEYS[1] 令牌桶hash seckill:admission:{voucherId}
+--         tokens-当前令牌数 ts-上次补充时间(毫秒) issued-已发放令牌数 limit-最多发放令牌数(预热时写入 库存*超发比例)
+-- ARGV[1] 每秒补充令牌数，ARGV[2] 桶容量，ARGV[3] 本次要取的令牌数
+-- 返回实际取到的令牌数
+
+local bucket = redis.call('hmget', KEYS[1], 'tokens', 'ts', 'issued', 'limit')
+local limit = tonumber(bucket[4])
+if (not limit) then
+    -- 券没有预热（或已经清理），不发入场券
+    return 0
+end
+local rate = tonumber(ARGV[1])
+local capacity = tonumber(ARGV[2])
+local want = tonumber(ARGV[3])
+
+-- 先读TIME再写数据，redis 5以前要按命令复制
+redis.replicate_commands()
+local t = redis.call('time')
+local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+
+-- 1.按距离上次补充过去的时间补充令牌，不超过桶容量
+local tokens = tonumber(bucket[1]) or capacity
+local ts = tonumber(bucket[2]) or now
+local issued = tonumber(bucket[3]) or 0
+tokens = math.min(capacity, tokens + math.max(0, now - ts) * rate / 1000)
+
+-- 2.本次发放：不超过桶里的令牌，总数不超过limit
+local n = math.min(want, math.floor(tokens), limit - issued)
+if (n < 0) then
+    n = 0
+end
+redis.call('hset', KEYS[1], 'tokens', tostring(tokens - n), 'ts', tostring(now), 'issued', tostring(issued + n))
+return n
@@ -0,0 +1,16 @@
+-- 节点从redis租一批库存到本地内存里卖（用在SeckillStockLease.java中）
+-- KEYS[1] 库存key seckill:stock:{voucherId}，KEYS[2] 租约hash seckill:lease:{voucherId}(field是节点名，value是租走还没卖的库存)，KEYS[3] 有租约的秒杀券集合
+-- ARGV[1] 节点名，ARGV[2] 想租的数量，ARGV[3] 秒杀券id
+
+local stock = tonumber(redis.call('get', KEYS[1])) or 0
+local n = math.min(tonumber(ARGV[2]), stock)
+if (n <= 0) then
+    -- 库存不足，返回0
+    return 0
+end
+-- 扣redis库存，记到节点的租约上
+redis.call('incrby', KEYS[1], -n)
+redis.call('hincrby', KEYS[2], ARGV[1], n)
+redis.call('sadd', KEYS[3], ARGV[3])
+-- 返回租到的数量
+return n
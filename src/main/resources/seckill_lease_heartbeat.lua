@@ -0,0 +1,9 @@
+-- 节点租约心跳（用在SeckillStockLease.java中）
+-- KEYS[1] 节点心跳key；ARGV[1] 过期时间(秒)
+-- 心跳key还在返回1；心跳key已经没了（可能被当成宕机，租约被收回了）返回0
+
+if (redis.call('expire', KEYS[1], ARGV[1]) == 1) then
+    return 1
+end
+redis.call('set', KEYS[1], '1', 'EX', ARGV[1])
+return 0
@@ -0,0 +1,14 @@
+-- 收回宕机节点没卖完的租约库存（用在SeckillStockLease.java中）
+-- KEYS[1] 库存key，KEYS[2] 租约hash，KEYS[3] 宕机节点的心跳key；ARGV[1] 宕机节点名
+
+-- 心跳还在，说明节点没宕机，不能收回
+if (redis.call('exists', KEYS[3]) == 1) then
+    return 0
+end
+local leased = tonumber(redis.call('hget', KEYS[2], ARGV[1])) or 0
+redis.call('hdel', KEYS[2], ARGV[1])
+if (leased > 0) then
+    redis.call('incrby', KEYS[1], leased)
+end
+-- 返回收回的数量
+return leased
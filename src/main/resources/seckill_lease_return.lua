@@ -0,0 +1,16 @@
+-- 节点把没卖完的租约库存还给redis（用在SeckillStockLease.java中）
+-- KEYS[1] 库存key，KEYS[2] 租约hash；ARGV[1] 节点名，ARGV[2] 归还数量
+
+local leased = tonumber(redis.call('hget', KEYS[2], ARGV[1])) or 0
+local n = math.min(tonumber(ARGV[2]), leased)
+if (n <= 0) then
+    return 0
+end
+redis.call('incrby', KEYS[1], n)
+if (leased - n <= 0) then
+    redis.call('hdel', KEYS[2], ARGV[1])
+else
+    redis.call('hincrby', KEYS[2], ARGV[1], -n)
+end
+-- 返回实际归还的数量
+return n
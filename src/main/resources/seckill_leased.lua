@@ -0,0 +1,60 @@
+-- 库存租约模式下的秒杀下单lua脚本（用在SeckillStockLease.java中）
+-- 库存已经在节点本地扣过了，这里只做全局的一人一单判断，并把节点租约上的库存记为已卖出
+
+-- KEYS[1] 订单set seckill:order:{voucherId}（bitmap存法时是 seckill:bitmap:{voucherId}），KEYS[2] 租约hash seckill:lease:{voucherId}
+-- ARGV: 秒杀券id、用户id、订单id、订单stream的key、节点名、一人一单的存法(set/bitmap)、bitmap偏移量、秒杀开始时间、结束时间、stream最大长度
+local voucherId = ARGV[1]
+local userId = ARGV[2]
+local orderId = ARGV[3]
+local streamKey = ARGV[4]
+local nodeId = ARGV[5]
+local dedupe = ARGV[6] or 'set'
+local offset = ARGV[7]
+local beginTime = tonumber(ARGV[8]) or 0
+local endTime = tonumber(ARGV[9]) or 0
+-- stream最大长度（近似裁剪），0表示不限制
+local maxLen = tonumber(ARGV[10]) or 0
+
+-- 判断是否在秒杀时间内（0表示不限制），用redis服务器时间判断，各节点时钟不一致也不影响
+if (beginTime > 0 or endTime > 0) then
+    -- 脚本里先读TIME再写数据，redis 5以前要按命令复制
+    redis.replicate_commands()
+    local t = redis.call('time')
+    local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+    if (beginTime > 0 and now < beginTime) then
+        -- 秒杀尚未开始，返回3
+        return 3
+    end
+    if (endTime > 0 and now >= endTime) then
+        -- 秒杀已经结束，返回4
+        return 4
+    end
+end
+
+-- 1.节点的租约已经被收回了（心跳超时被当成宕机），本地库存作废，返回6
+if ((tonumber(redis.call('hget', KEYS[2], nodeId)) or 0) <= 0) then
+    return 6
+end
+-- 2.判断用户是否下单，重复下单返回2
+local bought
+if (dedupe == 'bitmap') then
+    bought = redis.call('getbit', KEYS[1], offset)
+else
+    bought = redis.call('sismember', KEYS[1], userId)
+end
+if (bought == 1) then
+    return 2
+end
+-- 3.租约上的库存卖出1个，登记用户，发送消息到队列中
+redis.call('hincrby', KEYS[2], nodeId, -1)
+if (dedupe == 'bitmap') then
+    redis.call('setbit', KEYS[1], offset, 1)
+else
+    redis.call('sadd', KEYS[1], userId)
+end
+if (maxLen > 0) then
+    redis.call('xadd', streamKey, 'MAXLEN', '~', maxLen, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+else
+    redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+end
+return 0
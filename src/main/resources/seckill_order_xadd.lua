@@ -0,0 +1,11 @@
+-- 投递秒杀订单消息（用在VoucherOrderServiceImpl.java中，分片库存扣完之后调用）
+-- KEYS[1] 订单stream（stream.orders 或 stream.orders:{i}）
+-- ARGV[1] stream最大长度（近似裁剪），0表示不限制；ARGV[2] 用户id，ARGV[3] 秒杀券id，ARGV[4] 订单id
+
+local maxLen = tonumber(ARGV[1]) or 0
+if (maxLen > 0) then
+    redis.call('xadd', KEYS[1], 'MAXLEN', '~', maxLen, '*', 'userId', ARGV[2], 'voucherId', ARGV[3], 'id', ARGV[4])
+else
+    redis.call('xadd', KEYS[1], '*', 'userId', ARGV[2], 'voucherId', ARGV[3], 'id', ARGV[4])
+end
+return 0
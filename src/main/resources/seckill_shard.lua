@@ -0,0 +1,58 @@
+-- 分片库存的秒杀券，一人一单lua脚本（用在VoucherOrderServiceImpl.java中）
+-- 一个分片 = 一个库存key + 一个订单set，用户固定落在 userId % N 号分片(home分片)，一人一单只在home分片的订单set里判断
+-- 脚本只访问home分片的两个key（同一个hash tag，同一个slot），订单消息由调用方用 seckill_order_xadd.lua 投递，
+-- redis cluster下也不会CROSSSLOT
+
+-- 1.参数列表
+-- KEYS[1] 用户home分片的库存key，KEYS[2] 用户home分片的订单set（bitmap存法时是订单bitmap）
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+-- 1.1 用户id
+local userId = ARGV[1]
+-- 1.2 一人一单的存法 set/bitmap，bitmap时ARGV[3]是用户的偏移量
+local dedupe = ARGV[2] or 'set'
+local offset = ARGV[3]
+-- 1.3 秒杀开始、结束时间（毫秒时间戳）
+local beginTime = tonumber(ARGV[4]) or 0
+local endTime = tonumber(ARGV[5]) or 0
+
+-- 2.判断是否在秒杀时间内（0表示不限制），用redis服务器时间判断，各节点时钟不一致也不影响
+if (beginTime > 0 or endTime > 0) then
+    -- 脚本里先读TIME再写数据，redis 5以前要按命令复制
+    redis.replicate_commands()
+    local t = redis.call('time')
+    local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+    if (beginTime > 0 and now < beginTime) then
+        -- 秒杀尚未开始，返回3
+        return 3
+    end
+    if (endTime > 0 and now >= endTime) then
+        -- 秒杀已经结束，返回4
+        return 4
+    end
+end
+
+-- 3.判断用户是否下单，重复下单返回2
+local bought
+if (dedupe == 'bitmap') then
+    bought = redis.call('getbit', orderKey, offset)
+else
+    bought = redis.call('sismember', orderKey, userId)
+end
+if (bought == 1) then
+    return 2
+end
+-- 4.登记用户（home分片卖完时也先登记，占住一人一单，调用方去兄弟分片扣库存，扣不到再撤销登记）
+if (dedupe == 'bitmap') then
+    redis.call('setbit', orderKey, offset, 1)
+else
+    redis.call('sadd', orderKey, userId)
+end
+-- 5.扣减home分片库存
+if ((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
+    -- home分片库存不足，返回5，由调用方去兄弟分片扣库存
+    return 5
+end
+redis.call('incrby', stockKey, -1)
+-- 6.成功，返回0
+return 0
@@ -0,0 +1,16 @@
+-- 分片库存下单没有完成时归还占用的资源（用在VoucherOrderServiceImpl.java中），每次只访问一个key
+-- KEYS[1] 库存key / 订单set / 订单bitmap
+-- ARGV[1] stock:还1个库存（券已经结束清理了就不用还） set:移除用户ARGV[2] bitmap:清除偏移量ARGV[2]
+-- 返回 1-已归还 0-不需要归还
+
+if (ARGV[1] == 'stock') then
+    if (redis.call('exists', KEYS[1]) == 1) then
+        redis.call('incr', KEYS[1])
+        return 1
+    end
+    return 0
+end
+if (ARGV[1] == 'bitmap') then
+    return redis.call('setbit', KEYS[1], ARGV[2], 0)
+end
+return redis.call('srem', KEYS[1], ARGV[2])
@@ -0,0 +1,8 @@
+-- 从兄弟分片扣减1个库存（用在VoucherOrderServiceImpl.java中）
+-- KEYS[1] 分片库存key；扣减成功返回1，库存不足返回0
+
+if ((tonumber(redis.call('get', KEYS[1])) or 0) > 0) then
+    redis.call('incrby', KEYS[1], -1)
+    return 1
+end
+return 0
@@ -0,0 +1,13 @@
+-- 秒杀库存对账修复（用在SeckillStockReconcileServiceImpl.java中）
+-- 只有库存还是对账时看到的值才修改（CAS），期间有人下单/还库存就放弃，等下一轮对账
+-- KEYS[1] 库存key（分片时是其中一个分片）
+-- ARGV[1] 对账时看到的库存，ARGV[2] 要调整的数量（正数补库存，负数扣库存，最多扣到0）
+-- 返回 1-已修复 0-库存变过了/券已经清理了
+
+local stock = redis.call('get', KEYS[1])
+if (not stock or tonumber(stock) ~= tonumber(ARGV[1])) then
+    return 0
+end
+local delta = math.max(tonumber(ARGV[2]), -tonumber(stock))
+redis.call('incrby', KEYS[1], delta)
+return 1
@@ -0,0 +1,27 @@
+-- 订单取消/退款后把库存还给redis（用在VoucherOrderServiceImpl.java中），只访问用户home分片的key，都在同一个slot
+-- 还过库存的订单id记在同一分片的 seckill:returned:... set里，重试时不会重复还；还完之后调用方再把订单移出延时队列
+-- KEYS[1] 库存key（分片时是用户home分片的库存），KEYS[2] 已购用户set/bitmap，KEYS[3] 已还库存的订单id set
+-- ARGV[1] 订单id，ARGV[2] 一人一单存法 set/bitmap，ARGV[3] 用户id，ARGV[4] bitmap偏移量
+-- 返回 1-库存已还 0-已经处理过/不需要还
+
+-- 1.券已经结束清理了，不用还
+if (redis.call('exists', KEYS[1]) == 0) then
+    return 0
+end
+-- 2.这个订单已经还过了
+if (redis.call('sadd', KEYS[3], ARGV[1]) == 0) then
+    return 0
+end
+-- 3.把用户移出已购用户，用户可以重新抢购
+local removed
+if (ARGV[2] == 'bitmap') then
+    removed = redis.call('setbit', KEYS[2], ARGV[4], 0)
+else
+    removed = redis.call('srem', KEYS[2], ARGV[3])
+end
+-- 4.还库存
+if (removed == 1) then
+    redis.call('incr', KEYS[1])
+    return 1
+end
+return 0
@@ -0,0 +1,11 @@
+-- 更新秒杀入场券的登记（用在SeckillAdmission.java中），登记的值是ARGV[2]时才改成ARGV[3]：
+-- 使用入场券（入场券 -> '0'）、下单没成功时归还（'0' -> 入场券）、过期后换发（旧入场券 -> 新入场券）
+-- KEYS[1] 已发放的入场券hash seckill:admission:ticket:{voucherId}（field是userId，value是入场券，用过的是'0'）
+-- ARGV[1] 用户id，ARGV[2] 现在登记的值，ARGV[3] 要改成的值
+-- 返回 1-更新成功 0-登记的不是ARGV[2]（不是发给这个用户的入场券/已经用过/已经被别的请求换发、归还）
+
+if (redis.call('hget', KEYS[1], ARGV[1]) ~= ARGV[2]) then
+    return 0
+end
+redis.call('hset', KEYS[1], ARGV[1], ARGV[3])
+return 1
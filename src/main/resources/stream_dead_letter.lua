@@ -0,0 +1,31 @@
+-- 把投递次数超过上限的订单消息移到死信stream（用在VoucherOrderDeadLetterQueue.java中）
+-- KEYS[1] 订单stream，KEYS[2] 死信stream stream.orders.dlq
+-- ARGV[1] 消费者组，ARGV[2] 消息id，ARGV[3] 投递次数，ARGV[4] 死信stream最大长度
+-- 返回 订单id-已移入死信 空字符串-原消息已经被裁剪掉了，只做了ACK nil-消息已经不在pending-list里（被处理过了）
+
+-- 1.只处理还在pending-list里的消息 XPENDING stream.orders g1 id id 1
+local pending = redis.call('xpending', KEYS[1], ARGV[1], ARGV[2], ARGV[2], 1)
+if (#pending == 0) then
+    return false
+end
+-- 2.原消息内容 + 来源stream、原消息id、投递次数，写入死信stream
+local orderId = ''
+local entries = redis.call('xrange', KEYS[1], ARGV[2], ARGV[2])
+if (#entries > 0) then
+    local fields = entries[1][2]
+    for i = 1, #fields, 2 do
+        if (fields[i] == 'id') then
+            orderId = fields[i + 1]
+        end
+    end
+    table.insert(fields, 'stream')
+    table.insert(fields, KEYS[1])
+    table.insert(fields, 'sourceId')
+    table.insert(fields, ARGV[2])
+    table.insert(fields, 'deliveries')
+    table.insert(fields, ARGV[3])
+    redis.call('xadd', KEYS[2], 'MAXLEN', '~', ARGV[4], '*', unpack(fields))
+end
+-- 3.确认原消息，不再重试
+redis.call('xack', KEYS[1], ARGV[1], ARGV[2])
+return orderId
@@ -0,0 +1,22 @@
+-- 重放死信：把死信stream里的订单消息重新投递到订单stream（用在VoucherOrderDeadLetterQueue.java中）
+-- 订单入库是幂等的（唯一索引 + insert ignore），重放已经入库的订单不会重复扣库存
+-- KEYS[1] 死信stream stream.orders.dlq，KEYS[2] 订单stream；ARGV[1] 死信消息id
+-- 返回 1-已重放 0-死信已经不在了（被其他请求重放了）
+
+local entries = redis.call('xrange', KEYS[1], ARGV[1], ARGV[1])
+if (#entries == 0) then
+    return 0
+end
+-- 去掉死信附加的字段，还原成下单时的消息
+local fields = entries[1][2]
+local order = {}
+for i = 1, #fields, 2 do
+    local field = fields[i]
+    if (field ~= 'stream' and field ~= 'sourceId' and field ~= 'deliveries') then
+        table.insert(order, field)
+        table.insert(order, fields[i + 1])
+    end
+end
+redis.call('xadd', KEYS[2], '*', unpack(order))
+redis.call('xdel', KEYS[1], ARGV[1])
+return 1
@@ -0,0 +1,10 @@
+-- 创建订单stream的消费者组（stream不存在时一起创建），用在VoucherOrderStreamConsumer.java中
+-- 相当于：XGROUP CREATE stream.orders g1 0 MKSTREAM，组已存在(BUSYGROUP)时忽略
+
+local result = redis.pcall('xgroup', 'create', KEYS[1], ARGV[1], '0', 'MKSTREAM')
+if (type(result) == 'table' and result.err) then
+    -- 消费者组已存在，返回0
+    return 0
+end
+-- 创建成功，返回1
+return 1
@@ -0,0 +1,30 @@
+-- 裁剪订单stream里已经确认的消息（用在VoucherOrderStreamConsumer.java中），XTRIM MINID需要redis 6.2+
+-- 保留消费者组还没ACK的消息（pending-list里最早的那条及之后）和还没投递的消息（last-delivered-id之后）
+-- KEYS[1] 订单stream，ARGV[1] 消费者组
+-- 返回裁掉的条数，消费者组不存在返回-1
+
+if (redis.call('exists', KEYS[1]) == 0) then
+    return 0
+end
+-- 1.消费者组投递到哪了：XINFO GROUPS 每个组是 name g1 consumers n pending n last-delivered-id id ... 的数组
+local lastDelivered
+for _, group in ipairs(redis.call('xinfo', 'groups', KEYS[1])) do
+    local info = {}
+    for i = 1, #group, 2 do
+        info[group[i]] = group[i + 1]
+    end
+    if (info['name'] == ARGV[1]) then
+        lastDelivered = info['last-delivered-id']
+    end
+end
+if (not lastDelivered) then
+    return -1
+end
+-- 2.有pending消息时从最早的pending消息开始保留 XPENDING stream.orders g1 -> 条数 最小id 最大id 消费者
+local minId = lastDelivered
+local pending = redis.call('xpending', KEYS[1], ARGV[1])
+if (pending[1] > 0) then
+    minId = pending[2]
+end
+-- 3.近似裁剪（按整个宏节点删除，开销小）
+return redis.call('xtrim', KEYS[1], 'MINID', '~', minId)
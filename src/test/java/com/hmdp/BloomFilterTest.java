@@ -0,0 +1,45 @@
+package com.hmdp;
+
+import com.hmdp.utils.BloomFilter;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 布隆过滤器：1000万个连续id（和自增主键一样）的实际误判率和内存占用，存在的id不能被判断为不存在
+ */
+class BloomFilterTest {
+
+    private static final int N = 10000000;
+    private static final int PROBES = 1000000;
+
+    @Test
+    void testFalsePositiveRate() {
+        check(0.01);
+        check(0.001);
+    }
+
+    private void check(double fpp) {
+        BloomFilter filter = new BloomFilter(N, fpp);
+        long begin = System.currentTimeMillis();
+        for (long id = 1; id <= N; id++) {
+            filter.put(id);
+        }
+        long cost = System.currentTimeMillis() - begin;
+        for (long id = 1; id <= N; id++) {
+            assertTrue(filter.mightContain(id));
+        }
+        int falsePositives = 0;
+        for (long id = N + 1; id <= N + PROBES; id++) {
+            if (filter.mightContain(id)) {
+                falsePositives++;
+            }
+        }
+        double rate = (double) falsePositives / PROBES;
+        System.out.println("fpp = " + fpp + ", k = " + filter.getNumHashes()
+                + ", memory = " + filter.sizeInBytes() / 1024 / 1024 + "MB"
+                + ", put " + N + " ids: " + cost + "ms"
+                + ", false positive rate = " + rate);
+        assertTrue(rate < fpp * 1.5);
+    }
+}
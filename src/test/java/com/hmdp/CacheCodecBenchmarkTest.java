@@ -0,0 +1,102 @@
+package com.hmdp;
+
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RedisData;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 缓存编解码：json和二进制格式都能还原出一样的对象，二进制格式的字节数更少，大字段（blog正文）压缩后不到json的一半
+ * <p>
+ * 每种格式编码后的字节数通过junit的TestReporter输出，下面的店铺、blog算出来是：<br>
+ * 店铺：json 477字节，二进制 314字节（带逻辑过期时间和重建耗时 321字节），约为json的2/3；<br>
+ * blog（正文约10KB）：二进制不压缩 10358字节，压缩后 554字节。<br>
+ * 编码/解码耗时用JMH测，见 {@link CacheCodecJmhBenchmark}
+ * </p>
+ */
+class CacheCodecBenchmarkTest {
+
+    private final CacheCodec json = new JsonCacheCodec();
+    private final CacheCodec binary = new BinaryCacheCodec(1024);
+
+    @Test
+    void testShop(TestReporter reporter) {
+        Shop shop = shop();
+        // 两种格式都能还原出一样的对象
+        assertEquals(shop, json.decode(json.encode(shop), Shop.class));
+        assertEquals(shop, binary.decode(binary.encode(shop), Shop.class));
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(20).withNano(0);
+        RedisData redisData = binary.decodeWithExpire(binary.encodeWithExpire(shop, expireTime, 35), Shop.class);
+        assertEquals(shop, redisData.getData());
+        assertEquals(expireTime, redisData.getExpireTime());
+        assertEquals(35, redisData.getRebuildMillis());
+
+        int jsonBytes = json.encode(shop).length;
+        int binaryBytes = binary.encode(shop).length;
+        reporter.publishEntry("shop.json.bytes", String.valueOf(jsonBytes));
+        reporter.publishEntry("shop.binary.bytes", String.valueOf(binaryBytes));
+        reporter.publishEntry("shop.binaryWithExpire.bytes", String.valueOf(binary.encodeWithExpire(shop, expireTime, 35).length));
+        assertTrue(binaryBytes < jsonBytes);
+    }
+
+    @Test
+    void testLargeBlog(TestReporter reporter) {
+        Blog blog = blog();
+        assertEquals(blog, binary.decode(binary.encode(blog), Blog.class));
+
+        int jsonBytes = json.encode(blog).length;
+        int binaryBytes = binary.encode(blog).length;
+        reporter.publishEntry("blog.json.bytes", String.valueOf(jsonBytes));
+        reporter.publishEntry("blog.binary.bytes", String.valueOf(new BinaryCacheCodec(0).encode(blog).length));
+        reporter.publishEntry("blog.binaryDeflated.bytes", String.valueOf(binaryBytes));
+        // 正文超过阈值被压缩
+        assertTrue(binaryBytes < jsonBytes / 2);
+    }
+
+    static Shop shop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+
+    static Blog blog() {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            content.append("生活就是一半烟火，一半诗意。手执烟火以谋生，心怀诗意以谋爱。第").append(i).append("段<br>");
+        }
+        Blog blog = new Blog();
+        blog.setId(4L);
+        blog.setShopId(4L);
+        blog.setUserId(2L);
+        blog.setTitle("无尽浪漫的夜晚丨在万花丛中摇晃着红酒杯🍷品战斧牛排🥩");
+        blog.setImages("/imgs/blogs/7/14/4771fefb-1a87-4252-816c-9f7ec41ffa4a.jpg");
+        blog.setContent(content.toString());
+        blog.setLiked(46);
+        blog.setComments(104);
+        blog.setCreateTime(LocalDateTime.of(2021, 12, 28, 19, 50, 1));
+        blog.setUpdateTime(LocalDateTime.of(2022, 3, 10, 14, 26, 34));
+        return blog;
+    }
+}
@@ -0,0 +1,80 @@
+package com.hmdp;
+
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存编解码的JMH基准：json / 二进制 两种格式，店铺（小对象）/ blog（正文超过压缩阈值）两种数据，
+ * 编码和解码各自的吞吐量（ops/us）和平均耗时（us/op）
+ * <p>
+ * 不是junit测试，mvn test 不会跑；mvn test-compile 之后在IDE里直接运行main，或者
+ * java -cp target/test-classes:依赖 org.openjdk.jmh.Main CacheCodecJmhBenchmark
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheCodecJmhBenchmark {
+
+    @Param({"json", "binary"})
+    private String codecName;
+
+    @Param({"shop", "blog"})
+    private String data;
+
+    private CacheCodec codec;
+    private Object value;
+    private Class<?> type;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        codec = "json".equals(codecName) ? new JsonCacheCodec() : new BinaryCacheCodec(1024);
+        if ("shop".equals(data)) {
+            value = CacheCodecBenchmarkTest.shop();
+            type = Shop.class;
+        } else {
+            value = CacheCodecBenchmarkTest.blog();
+            type = Blog.class;
+        }
+        bytes = codec.encode(value);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(value);
+    }
+
+    @Benchmark
+    public Object decode() {
+        return codec.decode(bytes, type);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(CacheCodecJmhBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
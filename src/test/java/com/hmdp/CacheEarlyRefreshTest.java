@@ -0,0 +1,106 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 逻辑过期的提前重建（XFetch），只看这个key前缀的统计计数，不依赖读了多久、机器快慢
+ * <p>
+ * 1.记录的重建耗时远大于剩余时间：第一次读就提前重建，读者拿到的是没过期的数据，不算返回旧数据；<br>
+ * 2.没有记录重建耗时：不会提前重建。
+ * </p>
+ */
+@SpringBootTest
+class CacheEarlyRefreshTest {
+
+    private static final String KEY_PREFIX = "cache:bench:shop:";
+    private static final Long ID = -2L;     // 不会和真实店铺的锁 lock:shop:{id} 冲突
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @AfterEach
+    void tearDown() {
+        cacheClient.evict(KEY_PREFIX + ID);
+    }
+
+    @Test
+    void testRefreshBeforeExpire() throws InterruptedException {
+        AtomicInteger loads = new AtomicInteger();
+        Function<Long, Shop> db = id -> {
+            loads.incrementAndGet();
+            return new Shop().setId(id).setName("early-refresh");
+        };
+        // 离逻辑过期还有60秒，上次重建记成1000天：剩余时间 <= 重建耗时*beta*-ln(随机数) 几乎必然成立
+        cacheClient.setWithLogicalExpire(KEY_PREFIX + ID, new Shop().setId(ID).setName("early-refresh"),
+                60L, TimeUnit.SECONDS, TimeUnit.DAYS.toMillis(1000));
+        Map<String, Object> before = prefixStats();
+
+        Shop shop = cacheClient.queryWithCacheBreakdownWithLogicalExpire(KEY_PREFIX, ID, Shop.class, db, 60L, TimeUnit.SECONDS);
+        assertNotNull(shop);
+        // 重建在线程池里异步执行，写回redis之后才记dbLoad；等它写完再结束，
+        // 否则tearDown先删了key，重建再写回一个没有TTL的值，一直留在redis里
+        Map<String, Object> after = prefixStats();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (delta(before, after, "dbLoad") < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            after = prefixStats();
+        }
+        assertEquals(1, delta(before, after, "dbLoad"));
+        assertEquals(1, delta(before, after, "earlyRefresh"));
+        assertEquals(1, delta(before, after, "asyncRebuild"));
+        assertEquals(0, delta(before, after, "staleServe"));
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void testNoEarlyRefreshWithoutRebuildCost() {
+        AtomicInteger loads = new AtomicInteger();
+        Function<Long, Shop> db = id -> {
+            loads.incrementAndGet();
+            return new Shop().setId(id).setName("no-early-refresh");
+        };
+        cacheClient.setWithLogicalExpire(KEY_PREFIX + ID, new Shop().setId(ID).setName("no-early-refresh"),
+                60L, TimeUnit.SECONDS, 0);
+        Map<String, Object> before = prefixStats();
+
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(cacheClient.queryWithCacheBreakdownWithLogicalExpire(KEY_PREFIX, ID, Shop.class, db, 60L, TimeUnit.SECONDS));
+        }
+
+        Map<String, Object> after = prefixStats();
+        assertEquals(100, delta(before, after, "logicalRead"));
+        assertEquals(0, delta(before, after, "earlyRefresh"));
+        assertEquals(0, delta(before, after, "asyncRebuild"));
+        assertEquals(0, loads.get());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> prefixStats() {
+        Map<String, Map<String, Object>> prefixes = (Map<String, Map<String, Object>>) cacheClient.metrics().get("prefixes");
+        return prefixes.getOrDefault(KEY_PREFIX, Collections.emptyMap());
+    }
+
+    private static long delta(Map<String, Object> before, Map<String, Object> after, String name) {
+        return count(after, name) - count(before, name);
+    }
+
+    private static long count(Map<String, Object> stats, String name) {
+        Object value = stats.get(name);
+        return value == null ? 0 : ((Number) value).longValue();
+    }
+}
@@ -0,0 +1,77 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 热点key自动分层：升级后写入redis的逻辑过期值带兜底TTL（逻辑过期时间的2倍），降级不改redis里key的TTL
+ */
+@SpringBootTest(properties = {"hmdp.cache.hot-key-enabled=true", "hmdp.cache.hot-key-threshold=3"})
+class CacheHotKeyTest {
+
+    private static final String KEY_PREFIX = "cache:bench:shop:";
+    private static final Long ID = -3L;     // 不会和真实店铺的锁 lock:shop:{id} 冲突
+    private static final String KEY = KEY_PREFIX + ID;
+    private static final long TTL_SECONDS = 60;
+
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @AfterEach
+    void tearDown() {
+        cacheClient.evict(KEY);
+    }
+
+    @Test
+    void testHotKeyHasSafetyTtl() {
+        Function<Long, Shop> db = id -> new Shop().setId(id).setName("hot-key");
+        // 访问次数达到阈值，升级成热点key
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(query(db));
+        }
+        assertTrue(isHot());
+        // 删掉升级前按普通缓存写入的值，下一次按热点key加载，写入逻辑过期格式
+        cacheClient.evict(KEY);
+        assertNotNull(query(db));
+
+        // TTL是逻辑过期时间（加抖动）的2倍，比普通缓存的TTL（最多加10%抖动）长
+        Long ttl = stringRedisTemplate.getExpire(KEY, TimeUnit.SECONDS);
+        assertNotNull(ttl);
+        assertTrue(ttl > TTL_SECONDS * 11 / 10, "ttl = " + ttl);
+        assertTrue(ttl <= TTL_SECONDS * 2 * 11 / 10, "ttl = " + ttl);
+
+        // 降级：只删本地缓存，不改redis里key的TTL（其他节点可能还当它是热点key）
+        for (int i = 0; i < 10 && isHot(); i++) {
+            cacheClient.decayHotKeys();
+        }
+        assertFalse(isHot());
+        Long after = stringRedisTemplate.getExpire(KEY, TimeUnit.SECONDS);
+        assertNotNull(after);
+        assertTrue(after > TTL_SECONDS * 11 / 10, "ttl = " + after);
+        // 降级后按普通缓存读，逻辑过期格式的值照样能读
+        assertEquals("hot-key", query(db).getName());
+    }
+
+    private Shop query(Function<Long, Shop> db) {
+        return cacheClient.queryWithHotKey(KEY_PREFIX, ID, Shop.class, db, TTL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private boolean isHot() {
+        return cacheClient.hotKeys().stream().anyMatch(item -> KEY.equals(item.get("key")));
+    }
+}
@@ -0,0 +1,58 @@
+package com.hmdp;
+
+import com.hmdp.utils.CacheMetrics;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * 按key前缀的缓存统计：同一个前缀拿到同一个统计对象，合计等于各前缀之和，回源耗时落到对应的桶里
+ */
+class CacheMetricsTest {
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testPrefixStats() {
+        CacheMetrics metrics = new CacheMetrics();
+        CacheMetrics.Stats shop = metrics.of("cache:shop:");
+        CacheMetrics.Stats user = metrics.of("cache:user:");
+        assertSame(shop, metrics.of("cache:shop:"));
+
+        for (int i = 0; i < 3; i++) {
+            shop.localHit();
+        }
+        shop.localMiss();
+        shop.redisNullHit();
+        shop.dbLoad(5);
+        shop.dbLoad(2000);
+        user.redisHit();
+        user.redisMiss();
+        user.dbLoad(80);
+        user.lockAttempt(false);
+        metrics.invalidation();
+
+        Map<String, Object> snapshot = metrics.snapshot();
+        assertEquals(3L, snapshot.get("l1Hit"));
+        assertEquals(0.75, (Double) snapshot.get("l1HitRate"), 1e-9);
+        assertEquals(3L, snapshot.get("dbLoad"));
+        assertEquals(2000L, snapshot.get("dbLoadMaxMillis"));
+        assertEquals(695.0, (Double) snapshot.get("dbLoadAvgMillis"), 1e-9);
+        assertEquals(1.0, (Double) snapshot.get("lockFailRate"), 1e-9);
+        assertEquals(1L, snapshot.get("invalidation"));
+
+        Map<String, Long> buckets = (Map<String, Long>) snapshot.get("dbLoadMillis");
+        assertEquals(1L, buckets.get("<=10ms"));
+        assertEquals(1L, buckets.get("<=100ms"));
+        assertEquals(1L, buckets.get(">1000ms"));
+
+        Map<String, Map<String, Object>> prefixes = (Map<String, Map<String, Object>>) snapshot.get("prefixes");
+        assertEquals(2, prefixes.size());
+        assertEquals(1L, prefixes.get("cache:shop:").get("l2NullHit"));
+        assertEquals(2L, prefixes.get("cache:shop:").get("dbLoad"));
+        assertEquals(0.5, (Double) prefixes.get("cache:user:").get("l2HitRate"), 1e-9);
+        assertEquals(80L, prefixes.get("cache:user:").get("dbLoadMaxMillis"));
+    }
+}
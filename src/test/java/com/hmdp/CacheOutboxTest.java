@@ -0,0 +1,71 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.service.ICacheOutboxService;
+import com.hmdp.service.IShopService;
+import com.hmdp.utils.RedisConstants;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 缓存删除outbox：20个线程并发更新店铺（原样写回）共500次，再批量更新一次，
+ * 提交后缓存被删除、延迟双删后任务表清空，过程中不会每次更新都创建线程
+ */
+@SpringBootTest
+class CacheOutboxTest {
+
+    private static final int THREADS = 20;
+    private static final int UPDATES = 500;
+
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private ICacheOutboxService cacheOutboxService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    void testBulkUpdate() throws InterruptedException {
+        List<Shop> shops = shopService.query().last("limit 10").list();
+        shops.forEach(shop -> shopService.queryById(shop.getId()));
+        int threadsBefore = Thread.activeCount();
+
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch done = new CountDownLatch(UPDATES);
+        for (int i = 0; i < UPDATES; i++) {
+            Shop shop = shops.get(i % shops.size());
+            es.submit(() -> {
+                try {
+                    shopService.update(shop);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        es.shutdown();
+        shopService.updateBatch(shops);
+        // 原来每次更新都new一个线程做延迟双删
+        assertTrue(Thread.activeCount() - threadsBefore <= THREADS + 2);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (cacheOutboxService.count() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, cacheOutboxService.count());
+        for (Shop shop : shops) {
+            assertFalse(stringRedisTemplate.hasKey(RedisConstants.CACHE_SHOP_KEY + shop.getId()));
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.hmdp;
+
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 热点key缓存击穿压测：500个线程同时查一个刚失效的key，数据库查询耗时200ms
+ * 对比 原来的互斥锁方案（没抢到锁休眠50ms重试） 和 single-flight + 互斥锁 的延迟分布和数据库查询次数
+ * <p>
+ * 两种方式先各跑一轮预热（JIT、连接池），再正式测。只断言数据库查询次数和每个请求都拿到了数据（有异常就失败）；
+ * 延迟分布受机器负载影响，通过junit的TestReporter输出，不作为断言。
+ * </p>
+ */
+@SpringBootTest
+class CacheSingleFlightBenchmarkTest {
+
+    private static final int THREADS = 500;
+    private static final int WARM_UP_THREADS = 50;
+    private static final String KEY_PREFIX = "cache:bench:shop:";
+    private static final Long ID = -1L;     // 不会和真实店铺的锁 lock:shop:{id} 冲突
+
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    void testHotKeyMiss(TestReporter reporter) throws InterruptedException {
+        // 预热：两种方式各跑一轮，不统计
+        run(() -> querySleepRetry(ID, slowDb(new AtomicInteger())), WARM_UP_THREADS);
+        run(() -> cacheClient.queryWithMutex(KEY_PREFIX, ID, Shop.class, slowDb(new AtomicInteger()), 1L, TimeUnit.MINUTES), WARM_UP_THREADS);
+
+        AtomicInteger sleepRetryLoads = new AtomicInteger();
+        long[] sleepRetry = run(() -> querySleepRetry(ID, slowDb(sleepRetryLoads)), THREADS);
+        report(reporter, "sleep+retry", sleepRetry, sleepRetryLoads.get());
+
+        AtomicInteger singleFlightLoads = new AtomicInteger();
+        long[] singleFlight = run(() -> cacheClient.queryWithMutex(KEY_PREFIX, ID, Shop.class, slowDb(singleFlightLoads), 1L, TimeUnit.MINUTES), THREADS);
+        report(reporter, "single-flight", singleFlight, singleFlightLoads.get());
+
+        // 两种方式都只有拿到redis锁的那个线程查数据库
+        assertEquals(1, sleepRetryLoads.get());
+        assertEquals(1, singleFlightLoads.get());
+    }
+
+    // threads个线程同时查，返回排好序的延迟（纳秒）；有请求抛异常或者没查到数据时断言失败
+    private long[] run(Callable<Shop> query, int threads) throws InterruptedException {
+        cacheClient.evict(KEY_PREFIX + ID);
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long[] latencies = new long[threads];
+        Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        for (int i = 0; i < threads; i++) {
+            int index = i;
+            es.submit(() -> {
+                try {
+                    ready.countDown();
+                    start.await();
+                    long begin = System.nanoTime();
+                    Shop shop = query.call();
+                    latencies[index] = System.nanoTime() - begin;
+                    assertNotNull(shop);
+                } catch (Throwable e) {
+                    errors.add(e);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        ready.await();
+        start.countDown();
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        es.shutdown();
+        cacheClient.evict(KEY_PREFIX + ID);
+        if (!errors.isEmpty()) {
+            AssertionError error = new AssertionError(errors.size() + " 个请求失败");
+            error.initCause(errors.peek());
+            throw error;
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    // 模拟耗时200ms的数据库查询，并记录查询次数
+    private static Function<Long, Shop> slowDb(AtomicInteger loads) {
+        return id -> {
+            loads.incrementAndGet();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Shop shop = new Shop();
+            shop.setId(id);
+            shop.setName("bench");
+            return shop;
+        };
+    }
+
+    // 原来ShopServiceImpl.queryWithCacheBreakdownWithMutex的做法（递归改成了循环）
+    private Shop querySleepRetry(Long id, Function<Long, Shop> dbFallback) throws InterruptedException {
+        String key = KEY_PREFIX + id;
+        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
+        while (true) {
+            String json = stringRedisTemplate.opsForValue().get(key);
+            if (StrUtil.isNotBlank(json)) {
+                return JSONUtil.toBean(json, Shop.class);
+            }
+            if (BooleanUtil.isTrue(stringRedisTemplate.opsForValue().setIfAbsent(lockKey, "1", 10, TimeUnit.SECONDS))) {
+                try {
+                    Shop shop = dbFallback.apply(id);
+                    stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), 1, TimeUnit.MINUTES);
+                    return shop;
+                } finally {
+                    stringRedisTemplate.delete(lockKey);
+                }
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private static void report(TestReporter reporter, String name, long[] latencies, int loads) {
+        reporter.publishEntry(name, "db loads = " + loads
+                + ", p50 = " + percentile(latencies, 50) / 1000000 + "ms"
+                + ", p99 = " + percentile(latencies, 99) / 1000000 + "ms"
+                + ", max = " + latencies[latencies.length - 1] / 1000000 + "ms");
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)];
+    }
+}
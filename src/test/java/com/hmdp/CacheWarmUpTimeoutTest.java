@@ -0,0 +1,93 @@
+package com.hmdp;
+
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.Shop;
+import com.hmdp.job.CacheWarmUpRunner;
+import com.hmdp.job.SeckillVoucherWarmUpJob;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheClient;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 缓存预热超过时间预算：先返回（TIMEOUT），剩下的店铺在后台继续写完
+ * <p>
+ * 数据库、redis都换成mock：10个店铺每页1个，每页写入慢200ms，2个线程，100ms的时间预算一定超时。
+ * 超时后读店铺的任务还在往线程池提交写入，线程池提前关闭的话写入被丢弃，店铺预热永远完成不了。
+ * </p>
+ */
+class CacheWarmUpTimeoutTest {
+
+    private static final int SHOPS = 10;
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testFinishInBackgroundAfterTimeout() throws InterruptedException {
+        CacheProperties properties = new CacheProperties();
+        properties.setWarmUpEnabled(true);
+        properties.setWarmUpTimeoutMillis(100);
+        properties.setWarmUpPageSize(1);
+        properties.setWarmUpThreads(2);
+        properties.setWarmUpShopTopN(SHOPS);
+
+        // 店铺分页查询：每次返回下一个店铺，查完返回空列表
+        ShopMapper shopMapper = mock(ShopMapper.class);
+        List<List<Shop>> pages = new ArrayList<>();
+        for (long i = 1; i <= SHOPS; i++) {
+            pages.add(Collections.singletonList(new Shop().setId(i).setSold((int) (SHOPS - i))));
+        }
+        when(shopMapper.selectList(any())).thenReturn(pages.get(0), pages.subList(1, SHOPS).toArray(new List[0]))
+                .thenReturn(Collections.emptyList());
+        IShopService shopService = mock(IShopService.class);
+        when(shopService.query()).thenCallRealMethod();
+        when(shopService.getBaseMapper()).thenReturn(shopMapper);
+        when(shopService.count()).thenReturn(SHOPS);
+
+        CacheClient cacheClient = mock(CacheClient.class);
+        doAnswer(invocation -> {
+            Thread.sleep(200);
+            return null;
+        }).when(cacheClient).setAll(anyMap(), anyLong(), any());
+
+        CacheWarmUpRunner runner = new CacheWarmUpRunner();
+        ReflectionTestUtils.setField(runner, "cacheProperties", properties);
+        ReflectionTestUtils.setField(runner, "cacheClient", cacheClient);
+        ReflectionTestUtils.setField(runner, "shopService", shopService);
+        ReflectionTestUtils.setField(runner, "shopTypeService", mock(IShopTypeService.class));
+        ReflectionTestUtils.setField(runner, "seckillVoucherWarmUpJob", mock(SeckillVoucherWarmUpJob.class));
+
+        runner.run(null);
+        assertEquals("TIMEOUT", runner.status().get("state"));
+
+        // 等后台把剩下的店铺写完
+        Map<String, Object> shop = null;
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (System.currentTimeMillis() < deadline) {
+            shop = (Map<String, Object>) ((Map<String, Object>) runner.status().get("progress")).get("shop");
+            if (Boolean.TRUE.equals(shop.get("finished"))) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+        assertTrue(Boolean.TRUE.equals(shop.get("finished")), "shop = " + shop);
+        assertEquals((long) SHOPS, shop.get("done"));
+        assertEquals((long) SHOPS, shop.get("total"));
+    }
+}
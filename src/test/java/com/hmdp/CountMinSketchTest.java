@@ -0,0 +1,49 @@
+package com.hmdp;
+
+import com.hmdp.utils.CountMinSketch;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * count-min sketch：10万个店铺key、100万次访问（少数热点key占大部分访问），估计值不小于实际值，误差在 总访问次数/宽度 的几倍以内，衰减后减半
+ */
+class CountMinSketchTest {
+
+    private static final int KEYS = 100000;
+    private static final int ACCESSES = 1000000;
+    private static final int WIDTH = 1 << 16;
+
+    @Test
+    void testEstimate() {
+        CountMinSketch sketch = new CountMinSketch(4, WIDTH);
+        Map<String, Integer> actual = new HashMap<>();
+        Random random = new Random(1);
+        for (int i = 0; i < ACCESSES; i++) {
+            // 一半访问落在前10个key上，其他的均匀分布
+            int id = random.nextBoolean() ? random.nextInt(10) : random.nextInt(KEYS);
+            String key = "cache:shop:" + id;
+            sketch.increment(key);
+            actual.merge(key, 1, Integer::sum);
+        }
+        int maxError = 0;
+        for (Map.Entry<String, Integer> entry : actual.entrySet()) {
+            int estimate = sketch.estimate(entry.getKey());
+            assertTrue(estimate >= entry.getValue());
+            maxError = Math.max(maxError, estimate - entry.getValue());
+        }
+        System.out.println("memory = " + sketch.sizeInBytes() / 1024 + "KB, max error = " + maxError
+                + ", hot key = " + actual.get("cache:shop:0"));
+        assertTrue(maxError < 4 * ACCESSES / WIDTH);
+
+        int before = sketch.estimate("cache:shop:0");
+        sketch.decay();
+        assertEquals(before / 2, sketch.estimate("cache:shop:0"), 1);
+        assertEquals(0, sketch.estimate("cache:shop:never"), 4 * ACCESSES / WIDTH / 2);
+    }
+}
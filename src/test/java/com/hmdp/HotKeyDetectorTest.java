@@ -0,0 +1,106 @@
+package com.hmdp;
+
+import com.hmdp.config.CacheProperties;
+import com.hmdp.utils.HotKeyDetector;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 热点key识别：访问次数达到阈值升级，衰减到阈值一半以下降级，并发升级时热点key数不超过上限
+ */
+class HotKeyDetectorTest {
+
+    private static final int THRESHOLD = 10;
+
+    private static HotKeyDetector detector(int maxSize) {
+        CacheProperties properties = new CacheProperties();
+        properties.setHotKeyEnabled(true);
+        properties.setHotKeyThreshold(THRESHOLD);
+        properties.setHotKeyMaxSize(maxSize);
+        return new HotKeyDetector(properties);
+    }
+
+    @Test
+    void testPromoteAndDemote() {
+        HotKeyDetector detector = detector(100);
+        String key = "cache:shop:1";
+        for (int i = 1; i < THRESHOLD; i++) {
+            assertFalse(detector.record(key));
+        }
+        // 第THRESHOLD次访问升级
+        assertTrue(detector.record(key));
+        assertTrue(detector.isHot(key));
+        assertEquals(1, detector.hotKeys().size());
+
+        // 10 -> 5：还没低于阈值的一半，不降级
+        assertTrue(detector.decay().isEmpty());
+        assertTrue(detector.isHot(key));
+        // 5 -> 2：降级
+        List<HotKeyDetector.HotKey> demoted = detector.decay();
+        assertEquals(1, demoted.size());
+        assertEquals(key, demoted.get(0).getKey());
+        assertFalse(detector.isHot(key));
+        assertTrue(detector.hotKeys().isEmpty());
+    }
+
+    @Test
+    void testDisabled() {
+        CacheProperties properties = new CacheProperties();
+        properties.setHotKeyEnabled(false);
+        properties.setHotKeyThreshold(1);
+        HotKeyDetector detector = new HotKeyDetector(properties);
+        assertFalse(detector.record("cache:shop:1"));
+        assertFalse(detector.isHot("cache:shop:1"));
+    }
+
+    @Test
+    void testMaxSizeUnderConcurrency() throws InterruptedException {
+        int maxSize = 5;
+        int threads = 16;
+        int keys = 200;
+        HotKeyDetector detector = detector(maxSize);
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            es.submit(() -> {
+                try {
+                    start.await();
+                    // 所有线程同时把同一批key推过阈值
+                    for (int round = 0; round < THRESHOLD; round++) {
+                        for (int i = 0; i < keys; i++) {
+                            detector.record("cache:shop:" + i);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        start.countDown();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        es.shutdown();
+        assertEquals(maxSize, detector.hotKeys().size());
+
+        // 全部降级后名额退还，新的key又能升级
+        for (int i = 0; i < 10 && !detector.hotKeys().isEmpty(); i++) {
+            detector.decay();
+        }
+        assertTrue(detector.hotKeys().isEmpty());
+        for (int i = 0; i < THRESHOLD; i++) {
+            detector.record("cache:shop:new");
+        }
+        assertTrue(detector.isHot("cache:shop:new"));
+    }
+}
@@ -0,0 +1,143 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedisIdWorker;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * id生成压测：300个线程，每个id一次INCR 和 号段模式 各生成30万个id，校验唯一、单线程内递增，
+ * 两种方式的吞吐（ids/s）和比值通过junit的TestReporter输出（报告里看，不作为断言，机器快慢、redis远近都会影响）
+ * <p>
+ * 在HmDianPingApplicationTests.testRedisIdWorker的基础上改的。两种方式先各跑一小轮预热（JIT、连接池），再轮流正式测；
+ * 测试结束删除 icr:bench:* 计数器。
+ * </p>
+ */
+@SpringBootTest
+class RedisIdWorkerBenchmarkTest {
+
+    private static final int THREADS = 300;
+    private static final int IDS_PER_THREAD = 1000;
+    private static final int SEGMENT_SIZE = 1000;
+    private static final int WARM_UP_THREADS = 20;
+    private static final int WARM_UP_IDS_PER_THREAD = 200;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @AfterEach
+    void tearDown() {
+        Set<String> keys = stringRedisTemplate.keys("icr:bench:*");
+        if (keys != null && !keys.isEmpty()) {
+            stringRedisTemplate.delete(keys);
+        }
+    }
+
+    @Test
+    void testIncrVsSegment(TestReporter reporter) throws InterruptedException {
+        RedisIdWorker incr = new RedisIdWorker(stringRedisTemplate, 0);
+        RedisIdWorker segment = new RedisIdWorker(stringRedisTemplate, SEGMENT_SIZE);
+        String segmentName = "segment(" + SEGMENT_SIZE + ")";
+        try {
+            // 预热：两种方式都先跑一小轮，不计时
+            run(incr, "incr-warm-up", WARM_UP_THREADS, WARM_UP_IDS_PER_THREAD);
+            run(segment, segmentName + "-warm-up", WARM_UP_THREADS, WARM_UP_IDS_PER_THREAD);
+
+            long incrNanos = run(incr, "incr", THREADS, IDS_PER_THREAD);
+            long segmentNanos = run(segment, segmentName, THREADS, IDS_PER_THREAD);
+            long incrQps = idsPerSecond(incrNanos);
+            long segmentQps = idsPerSecond(segmentNanos);
+            reporter.publishEntry("incr.idsPerSecond", String.valueOf(incrQps));
+            reporter.publishEntry(segmentName + ".idsPerSecond", String.valueOf(segmentQps));
+            reporter.publishEntry("segment/incr", String.format("%.1f", (double) segmentQps / Math.max(1, incrQps)));
+        } finally {
+            segment.destroy();
+        }
+    }
+
+    @Test
+    void testSegmentAcrossNodes() throws InterruptedException {
+        // 两个号段模式的worker模拟两个节点，共用同一个redis计数器
+        RedisIdWorker node1 = new RedisIdWorker(stringRedisTemplate, SEGMENT_SIZE);
+        RedisIdWorker node2 = new RedisIdWorker(stringRedisTemplate, SEGMENT_SIZE);
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        CountDownLatch latch = new CountDownLatch(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            RedisIdWorker idWorker = i % 2 == 0 ? node1 : node2;
+            es.submit(() -> {
+                try {
+                    for (int j = 0; j < IDS_PER_THREAD; j++) {
+                        ids.add(idWorker.generateId("bench"));
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        es.shutdown();
+        node1.destroy();
+        node2.destroy();
+        assertEquals(THREADS * IDS_PER_THREAD, ids.size());
+    }
+
+    // threads个线程各生成idsPerThread个id，校验唯一、单线程内递增，返回耗时（纳秒）
+    private long run(RedisIdWorker idWorker, String name, int threads, int idsPerThread) throws InterruptedException {
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        AtomicInteger unordered = new AtomicInteger();
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch latch = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            es.submit(() -> {
+                try {
+                    ready.countDown();
+                    start.await();
+                    long last = 0;
+                    for (int j = 0; j < idsPerThread; j++) {
+                        long id = idWorker.generateId("bench");
+                        if (id <= last) {
+                            unordered.incrementAndGet();
+                        }
+                        last = id;
+                        ids.add(id);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        // 线程都创建好了再同时开始，计时不包括建线程
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        latch.await();
+        long nanos = System.nanoTime() - begin;
+        es.shutdown();
+
+        assertEquals(threads * idsPerThread, ids.size(), name);
+        assertEquals(0, unordered.get(), name);
+        return nanos;
+    }
+
+    private static long idsPerSecond(long nanos) {
+        return (long) THREADS * IDS_PER_THREAD * TimeUnit.SECONDS.toNanos(1) / Math.max(1, nanos);
+    }
+}
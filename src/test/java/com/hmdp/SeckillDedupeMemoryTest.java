@@ -0,0 +1,118 @@
+package com.hmdp;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.utils.SeckillKeys;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 一人一单的两种存法（set / bitmap）在 10万、100万 买家时的内存（MEMORY USAGE），以及bitmap偏移量上限
+ * <p>
+ * 用户id按 1~N 连续写入（tb_user是自增主键）：bitmap约 N/8 字节，至少比set小一个数量级。
+ * bitmap的大小只取决于最大偏移量，所以超过 bitmap-max-offset 的用户要落到set里
+ * </p>
+ */
+@SpringBootTest
+class SeckillDedupeMemoryTest {
+
+    private static final long VOUCHER_ID = 900101L;
+    private static final int BATCH = 10000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @AfterEach
+    void tearDown() {
+        stringRedisTemplate.delete(Arrays.asList(
+                SeckillKeys.orderKey(VOUCHER_ID, 0, 1), SeckillKeys.orderBitmapKey(VOUCHER_ID, 0, 1)));
+    }
+
+    @Test
+    void testMemory100k() {
+        compare(100_000);
+    }
+
+    @Test
+    void testMemory1m() {
+        compare(1_000_000);
+    }
+
+    @Test
+    void testBitmapOffsetCap() {
+        long max = seckillProperties.getBitmapMaxOffset();
+        assertTrue(max <= SeckillKeys.MAX_BITMAP_OFFSET);
+        // 上限以内用bitmap，超过上限、负数id用set
+        assertEquals(SeckillKeys.DEDUPE_BITMAP, SeckillKeys.userDedupe(SeckillKeys.DEDUPE_BITMAP, max, 1, max));
+        assertEquals(SeckillKeys.DEDUPE_SET, SeckillKeys.userDedupe(SeckillKeys.DEDUPE_BITMAP, max + 1, 1, max));
+        assertEquals(SeckillKeys.DEDUPE_SET, SeckillKeys.userDedupe(SeckillKeys.DEDUPE_BITMAP, -1L, 1, max));
+        assertEquals(SeckillKeys.DEDUPE_SET, SeckillKeys.userDedupe(SeckillKeys.DEDUPE_SET, 1L, 1, max));
+        // 分片时偏移量是 userId/分片数
+        assertEquals(SeckillKeys.DEDUPE_BITMAP, SeckillKeys.userDedupe(SeckillKeys.DEDUPE_BITMAP, max * 4, 4, max));
+        // 配置得再大也不超过redis的512MB
+        assertEquals(SeckillKeys.DEDUPE_SET,
+                SeckillKeys.userDedupe(SeckillKeys.DEDUPE_BITMAP, SeckillKeys.MAX_BITMAP_OFFSET + 1, 1, Long.MAX_VALUE));
+
+        // 很大的userId写到set里，bitmap不会被撑大
+        String bitmapKey = SeckillKeys.orderBitmapKey(VOUCHER_ID, 0, 1);
+        long huge = SeckillKeys.MAX_BITMAP_OFFSET;
+        String dedupe = SeckillKeys.userDedupe(SeckillKeys.DEDUPE_BITMAP, huge, 1, max);
+        String key = SeckillKeys.dedupeKey(VOUCHER_ID, 0, 1, dedupe);
+        assertEquals(SeckillKeys.orderKey(VOUCHER_ID, 0, 1), key);
+        stringRedisTemplate.opsForValue().setBit(bitmapKey, 1, true);
+        stringRedisTemplate.opsForSet().add(key, String.valueOf(huge));
+        assertTrue(memoryUsage(bitmapKey) < 1024);
+        assertTrue(memoryUsage(key) < 1024);
+        // bitmap key不在 seckill:order: 前缀下，按前缀扫描订单set不会扫到bitmap
+        assertFalse(bitmapKey.startsWith("seckill:order:"));
+    }
+
+    private void compare(int buyers) {
+        String setKey = SeckillKeys.orderKey(VOUCHER_ID, 0, 1);
+        String bitmapKey = SeckillKeys.orderBitmapKey(VOUCHER_ID, 0, 1);
+        stringRedisTemplate.delete(Arrays.asList(setKey, bitmapKey));
+        // 分批pipeline写入
+        for (int from = 1; from <= buyers; from += BATCH) {
+            int begin = from;
+            int end = Math.min(buyers, from + BATCH - 1);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (long userId = begin; userId <= end; userId++) {
+                    conn.sAdd(setKey, String.valueOf(userId));
+                    conn.setBit(bitmapKey, userId, true);
+                }
+                return null;
+            });
+        }
+        assertEquals(buyers, stringRedisTemplate.opsForSet().size(setKey).intValue());
+        Long bits = stringRedisTemplate.execute((RedisCallback<Long>) connection ->
+                connection.bitCount(bitmapKey.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(buyers, bits.intValue());
+        long setBytes = memoryUsage(setKey);
+        long bitmapBytes = memoryUsage(bitmapKey);
+        // bitmap是 最大userId/8 字节（加上分配器按2的幂取整），set每个成员几十字节
+        assertTrue(bitmapBytes >= buyers / 8, "bitmap " + bitmapBytes);
+        assertTrue(bitmapBytes <= buyers / 4 + 1024, "bitmap " + bitmapBytes);
+        assertTrue(bitmapBytes * 10 < setBytes, "set " + setBytes + ", bitmap " + bitmapBytes);
+    }
+
+    private long memoryUsage(String key) {
+        Object bytes = stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute(
+                "MEMORY", "USAGE".getBytes(StandardCharsets.UTF_8), key.getBytes(StandardCharsets.UTF_8),
+                "SAMPLES".getBytes(StandardCharsets.UTF_8), "0".getBytes(StandardCharsets.UTF_8)));
+        return bytes == null ? 0 : ((Number) bytes).longValue();
+    }
+}
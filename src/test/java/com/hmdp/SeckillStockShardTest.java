@@ -0,0 +1,152 @@
+package com.hmdp;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.consumer.VoucherOrderStreamConsumer;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 秒杀库存分片：压测对比 单个库存key 和 分片库存key 的下单吞吐，并校验一人一单、不超卖、每个成功的订单正好投递一条消息
+ * <p>
+ * 单机redis是单线程的，分片后吞吐基本持平；分片要在redis cluster下（分片的hash tag分散到不同节点）才能看到吞吐提升。
+ * 订单投递到单独的测试stream，消费者换成mock，不会写数据库；测试结束删除用到的所有key。
+ * </p>
+ */
+@SpringBootTest(properties = "hmdp.seckill.order-stream=stream.orders.test-shard")
+class SeckillStockShardTest {
+
+    private static final long SINGLE_VOUCHER_ID = 900001L;
+    private static final long SHARDED_VOUCHER_ID = 900002L;
+    private static final int SHARDS = 8;
+    private static final int STOCK = 20000;
+    private static final int THREADS = 200;
+    private static final int USERS = 30000;     // 用户数比库存多，能测到分片卖空后去兄弟分片扣库存
+
+    @MockBean
+    private VoucherOrderStreamConsumer voucherOrderStreamConsumer;      // 不消费测试订单
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    private final Queue<Long> orderIds = new ConcurrentLinkedQueue<>();
+
+    @AfterEach
+    void tearDown() {
+        List<String> keys = new ArrayList<>(seckillProperties.orderStreamKeys());
+        for (long voucherId : new long[]{SINGLE_VOUCHER_ID, SHARDED_VOUCHER_ID}) {
+            int shards = voucherId == SINGLE_VOUCHER_ID ? 1 : SHARDS;
+            for (int i = 0; i < shards; i++) {
+                keys.add(SeckillKeys.stockKey(voucherId, i, shards));
+                keys.add(SeckillKeys.orderKey(voucherId, i, shards));
+            }
+            keys.add(RedisConstants.SECKILL_VOUCHER_KEY + voucherId);
+        }
+        for (Long orderId : orderIds) {
+            keys.add(RedisConstants.SECKILL_ORDER_STATUS_KEY + orderId);
+        }
+        stringRedisTemplate.delete(keys);
+        orderIds.clear();
+    }
+
+    @Test
+    void testSingleStockKey() throws InterruptedException {
+        prepareStock(SINGLE_VOUCHER_ID, 1);
+        runSeckill(SINGLE_VOUCHER_ID, 1, "single");
+    }
+
+    @Test
+    void testShardedStockKeys() throws InterruptedException {
+        prepareStock(SHARDED_VOUCHER_ID, SHARDS);
+        runSeckill(SHARDED_VOUCHER_ID, SHARDS, "sharded(" + SHARDS + ")");
+    }
+
+    private void prepareStock(long voucherId, int shards) {
+        for (int i = 0; i < shards; i++) {
+            int shardStock = STOCK / shards + (i < STOCK % shards ? 1 : 0);
+            stringRedisTemplate.opsForValue().set(SeckillKeys.stockKey(voucherId, i, shards), String.valueOf(shardStock));
+        }
+        stringRedisTemplate.opsForHash().put(RedisConstants.SECKILL_VOUCHER_KEY + voucherId, "shards", String.valueOf(shards));
+    }
+
+    private void runSeckill(long voucherId, int shards, String name) throws InterruptedException {
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch latch = new CountDownLatch(USERS);
+        AtomicInteger success = new AtomicInteger();
+        AtomicInteger duplicate = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < USERS; i++) {
+            long userId = i;
+            es.submit(() -> {
+                try {
+                    UserDTO user = new UserDTO();
+                    user.setId(userId);
+                    UserHolder.saveUser(user);
+                    // 每个用户抢两次，第二次必须是重复下单
+                    Result first = voucherOrderService.seckillVoucher(voucherId);
+                    Result second = voucherOrderService.seckillVoucher(voucherId);
+                    if (first.getSuccess()) {
+                        orderIds.add((Long) first.getData());
+                        success.incrementAndGet();
+                        if (!second.getSuccess()) {
+                            duplicate.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                } finally {
+                    UserHolder.removeUser();
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long cost = System.currentTimeMillis() - begin;
+        es.shutdown();
+        System.out.println(name + ": " + USERS * 2 + " requests, cost = " + cost + "ms, qps = " + USERS * 2 * 1000L / Math.max(1, cost));
+
+        // 不超卖、卖光、一人一单
+        assertEquals(0, errors.get());
+        assertEquals(STOCK, success.get());
+        assertEquals(STOCK, duplicate.get());
+        // 每个分片的库存都卖光，已购用户正好是成功的用户（没卖到的用户撤销了登记）
+        long buyers = 0;
+        for (int i = 0; i < shards; i++) {
+            assertEquals("0", stringRedisTemplate.opsForValue().get(SeckillKeys.stockKey(voucherId, i, shards)));
+            Long size = stringRedisTemplate.opsForSet().size(SeckillKeys.orderKey(voucherId, i, shards));
+            buyers += size == null ? 0 : size;
+        }
+        assertEquals(STOCK, buyers);
+        // 每个成功的订单正好投递了一条消息
+        long messages = 0;
+        for (String stream : seckillProperties.orderStreamKeys()) {
+            Long size = stringRedisTemplate.opsForStream().size(stream);
+            messages += size == null ? 0 : size;
+        }
+        assertEquals(STOCK, messages);
+    }
+}
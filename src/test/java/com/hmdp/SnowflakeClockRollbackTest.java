@@ -0,0 +1,94 @@
+package com.hmdp;
+
+import com.hmdp.utils.SnowflakeIdWorker;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * snowflake时钟回拨：用可以手动拨动的时钟代替系统时间，回拨后id继续单调递增、不重复，时钟追上来之后照常发号
+ * <p>
+ * 不连redis：直接把workerId和租约有效期设置好，只测发号。
+ * </p>
+ */
+class SnowflakeClockRollbackTest {
+
+    private static final long NOW = 1735689600000L;     // 2025-01-01
+    private static final int SEQUENCE_PER_MILLIS = 1 << 12;
+
+    private static SnowflakeIdWorker worker(AtomicLong clock) {
+        SnowflakeIdWorker worker = new SnowflakeIdWorker(clock::get);
+        ReflectionTestUtils.setField(worker, "workerId", 1L);
+        ReflectionTestUtils.setField(worker, "leaseValidUntil", Long.MAX_VALUE);
+        return worker;
+    }
+
+    @Test
+    void testRollback() {
+        AtomicLong clock = new AtomicLong(NOW);
+        SnowflakeIdWorker worker = worker(clock);
+        Set<Long> ids = new HashSet<>();
+        long last = 0;
+        // 1.正常发号；2.回拨1秒，发的号超过一毫秒的序列号，要进位；3.时钟追上来并超过回拨前的时间
+        long[] times = {NOW, NOW - 1000, NOW + 10};
+        int[] counts = {100, SEQUENCE_PER_MILLIS * 3, 100};
+        for (int i = 0; i < times.length; i++) {
+            clock.set(times[i]);
+            for (int j = 0; j < counts[i]; j++) {
+                long id = worker.generateId("order");
+                assertTrue(id > last, "id不是递增的, 阶段: " + i);
+                last = id;
+                ids.add(id);
+            }
+        }
+        assertEquals(100 + SEQUENCE_PER_MILLIS * 3 + 100, ids.size());
+    }
+
+    @Test
+    void testRollbackConcurrently() throws InterruptedException {
+        int threads = 16;
+        int idsPerThread = 5000;
+        AtomicLong clock = new AtomicLong(NOW);
+        SnowflakeIdWorker worker = worker(clock);
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        AtomicLong unordered = new AtomicLong();
+        CountDownLatch latch = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            es.submit(() -> {
+                try {
+                    long last = 0;
+                    for (int j = 0; j < idsPerThread; j++) {
+                        if (j % 1000 == 0) {
+                            // 各线程来回拨动时钟：前进、回拨交替
+                            clock.addAndGet(j % 2000 == 0 ? -50 : 20);
+                        }
+                        long id = worker.generateId("order");
+                        if (id <= last) {
+                            unordered.incrementAndGet();
+                        }
+                        last = id;
+                        ids.add(id);
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        es.shutdown();
+        assertEquals(threads * idsPerThread, ids.size());
+        assertEquals(0, unordered.get());
+    }
+}
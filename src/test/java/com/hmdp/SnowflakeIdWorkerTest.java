@@ -0,0 +1,59 @@
+package com.hmdp;
+
+import com.hmdp.utils.IdWorker;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SnowflakeIdWorker;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.annotation.Resource;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * snowflake id：配置切换后注入的是SnowflakeIdWorker，多线程下唯一，并且比RedisIdWorker生成的id大
+ */
+@SpringBootTest(properties = "hmdp.id.strategy=snowflake")
+class SnowflakeIdWorkerTest {
+
+    private static final int THREADS = 300;
+    private static final int IDS_PER_THREAD = 1000;
+
+    @Resource
+    private IdWorker idWorker;
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    @Test
+    void testSnowflake() throws InterruptedException {
+        assertTrue(idWorker instanceof SnowflakeIdWorker);
+
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        CountDownLatch latch = new CountDownLatch(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            es.submit(() -> {
+                try {
+                    for (int j = 0; j < IDS_PER_THREAD; j++) {
+                        ids.add(idWorker.generateId("order"));
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        es.shutdown();
+
+        assertEquals(THREADS * IDS_PER_THREAD, ids.size());
+        // 切换策略后新id不会和RedisIdWorker生成过的id重复
+        long redisId = redisIdWorker.generateId("order");
+        assertTrue(ids.stream().allMatch(id -> id > redisId));
+    }
+}
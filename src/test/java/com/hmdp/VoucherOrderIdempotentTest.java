@@ -0,0 +1,107 @@
+package com.hmdp;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisIdWorker;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 订单入库不加锁：同一用户并发写同一张券，靠 uk_user_voucher 唯一索引 + insert ignore 保证只成功一单、只扣一次库存
+ */
+@SpringBootTest
+class VoucherOrderIdempotentTest {
+
+    private static final long VOUCHER_ID = 900201L;
+    private static final long USER_ID = 900201L;
+    private static final int STOCK = 10;
+    private static final int THREADS = 50;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private RedisIdWorker redisIdWorker;
+
+    @BeforeEach
+    void setUp() {
+        tearDown();
+        SeckillVoucher seckillVoucher = new SeckillVoucher();
+        seckillVoucher.setVoucherId(VOUCHER_ID);
+        seckillVoucher.setStock(STOCK);
+        seckillVoucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        seckillVoucher.setEndTime(LocalDateTime.now().plusHours(1));
+        seckillVoucherService.save(seckillVoucher);
+    }
+
+    @AfterEach
+    void tearDown() {
+        voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", VOUCHER_ID));
+        seckillVoucherService.removeById(VOUCHER_ID);
+    }
+
+    @Test
+    void testConcurrentOrdersOfSameUser() throws InterruptedException {
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(THREADS);
+        AtomicInteger success = new AtomicInteger();
+        for (int i = 0; i < THREADS; i++) {
+            // 每个线程一个不同的订单id，模拟用户重复下单
+            VoucherOrder voucherOrder = newOrder(redisIdWorker.generateId("order"));
+            es.submit(() -> {
+                try {
+                    start.await();
+                    if (voucherOrderService.createVoucherOrder(voucherOrder)) {
+                        success.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        start.countDown();
+        done.await();
+        es.shutdown();
+
+        assertEquals(1, success.get());
+        assertEquals(1, voucherOrderService.query().eq("voucher_id", VOUCHER_ID).count());
+        assertEquals(STOCK - 1, seckillVoucherService.getById(VOUCHER_ID).getStock());
+    }
+
+    @Test
+    void testRedelivery() {
+        VoucherOrder voucherOrder = newOrder(redisIdWorker.generateId("order"));
+        assertTrue(voucherOrderService.createVoucherOrder(voucherOrder));
+        // 同一条消息再投递一次：算入库成功，不重复扣库存
+        assertTrue(voucherOrderService.createVoucherOrder(voucherOrder));
+        assertEquals(1, voucherOrderService.query().eq("voucher_id", VOUCHER_ID).count());
+        assertEquals(STOCK - 1, seckillVoucherService.getById(VOUCHER_ID).getStock());
+    }
+
+    private VoucherOrder newOrder(long orderId) {
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(orderId);
+        voucherOrder.setUserId(USER_ID);
+        voucherOrder.setVoucherId(VOUCHER_ID);
+        return voucherOrder;
+    }
+}